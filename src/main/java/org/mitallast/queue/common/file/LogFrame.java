@@ -0,0 +1,109 @@
+package org.mitallast.queue.common.file;
+
+import io.netty.buffer.ByteBuf;
+import org.mitallast.queue.common.stream.StreamOutput;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Log record frame: int payload length, int crc32 of payload, int record type, payload.
+ * Frames can be skipped without decoding payload, and torn or corrupted tail is detected by checksum.
+ * Framed file starts with file header: int magic, int format version.
+ */
+public final class LogFrame {
+    public static final int HEADER_SIZE = 12;
+    public static final int FILE_MAGIC = 0x4C4F4746;
+    public static final int FILE_VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 8;
+
+    private LogFrame() {
+    }
+
+    public static void writeFileHeader(StreamOutput output) {
+        output.writeInt(FILE_MAGIC);
+        output.writeInt(FILE_VERSION);
+    }
+
+    public static void writeFileHeader(ByteBuffer buffer) {
+        buffer.putInt(0, FILE_MAGIC);
+        buffer.putInt(4, FILE_VERSION);
+    }
+
+    /**
+     * @return true if buffer starts with file header of supported version, false if it does not start with magic
+     * @throws FileException if file format version is not supported
+     */
+    public static boolean hasFileHeader(ByteBuffer buffer, int limit) {
+        if (limit < FILE_HEADER_SIZE || buffer.getInt(0) != FILE_MAGIC) {
+            return false;
+        }
+        int version = buffer.getInt(4);
+        if (version != FILE_VERSION) {
+            throw new FileException("unsupported log file version " + version);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if file header is not written yet: buffer is empty or zero filled
+     */
+    public static boolean isEmpty(ByteBuffer buffer, int limit) {
+        return limit < FILE_HEADER_SIZE || (buffer.getInt(0) == 0 && buffer.getInt(4) == 0);
+    }
+
+    /**
+     * Reserve frame header at buffer writer index, payload should be written after it.
+     */
+    public static int begin(ByteBuf buffer) {
+        int start = buffer.writerIndex();
+        buffer.writeZero(HEADER_SIZE);
+        return start;
+    }
+
+    /**
+     * Fill frame header started at start, payload is all bytes written after header.
+     */
+    public static void end(ByteBuf buffer, int start, int type) {
+        int length = buffer.writerIndex() - start - HEADER_SIZE;
+        buffer.setInt(start, length);
+        buffer.setInt(start + 4, checksum(buffer.nioBuffer(start + HEADER_SIZE, length)));
+        buffer.setInt(start + 8, type);
+    }
+
+    /**
+     * @return full frame size at position, including header
+     */
+    public static int size(ByteBuffer buffer, int position) {
+        return HEADER_SIZE + buffer.getInt(position);
+    }
+
+    /**
+     * @return full frame size at position, or 0 if there is no complete frame of expected type with valid checksum
+     */
+    public static int validate(ByteBuffer buffer, int position, int limit, int type) {
+        if (position + HEADER_SIZE > limit) {
+            return 0;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > limit - position - HEADER_SIZE) {
+            return 0;
+        }
+        if (buffer.getInt(position + 8) != type) {
+            return 0;
+        }
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(position + HEADER_SIZE + length);
+        payload.position(position + HEADER_SIZE);
+        if (checksum(payload) != buffer.getInt(position + 4)) {
+            return 0;
+        }
+        return HEADER_SIZE + length;
+    }
+
+    private static int checksum(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,116 @@
+package org.mitallast.queue.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with power of two buckets,
+ * bucket i counts values in range [2^(i-1), 2^i). Percentiles are reported
+ * as upper bound of bucket, so relative error is at most 2x.
+ */
+public class Histogram {
+    private final static int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = counts.get(i);
+            total += buckets[i];
+        }
+        long max = this.max.get();
+        return new Snapshot(
+            total,
+            total == 0 ? 0 : sum.sum() / (double) total,
+            max,
+            percentile(buckets, total, 0.5, max),
+            percentile(buckets, total, 0.9, max),
+            percentile(buckets, total, 0.99, max)
+        );
+    }
+
+    private static long percentile(long[] buckets, long total, double quantile, long max) {
+        long rank = (long) Math.ceil(total * quantile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                if (i == 0) {
+                    return 0;
+                }
+                return i == BUCKETS - 1 ? max : Math.min(max, (1L << i) - 1);
+            }
+        }
+        return max;
+    }
+
+    public static class Snapshot {
+        private final long count;
+        private final double mean;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+
+        public Snapshot(long count, double mean, long max, long p50, long p90, long p99) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double mean() {
+            return mean;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public long p50() {
+            return p50;
+        }
+
+        public long p90() {
+            return p90;
+        }
+
+        public long p99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                "count=" + count +
+                ", mean=" + mean +
+                ", max=" + max +
+                ", p50=" + p50 +
+                ", p90=" + p90 +
+                ", p99=" + p99 +
+                '}';
+        }
+    }
+}
@@ -59,7 +59,7 @@ public class ByteBufStreamOutput extends StreamOutput {
     public void writeByteBuf(ByteBuf buffer, int length) {
         writeInt(length);
         if (length > 0) {
-            buffer.readBytes(this.buffer, length);
+            this.buffer.writeBytes(buffer, length);
         }
     }
 
@@ -1,5 +1,6 @@
 package org.mitallast.queue.crdt;
 
+import javaslang.collection.Vector;
 import org.mitallast.queue.common.stream.Streamable;
 
 public interface Crdt {
@@ -7,4 +8,9 @@ public interface Crdt {
     void update(Streamable event);
 
     boolean shouldCompact(Streamable event);
+
+    /**
+     * @return downstream updates which restore current state if applied to empty instance
+     */
+    Vector<Streamable> snapshot();
 }
@@ -9,13 +9,20 @@ import org.mitallast.queue.crdt.bucket.BucketFactory;
 import org.mitallast.queue.crdt.bucket.DefaultBucket;
 import org.mitallast.queue.crdt.commutative.GCounter;
 import org.mitallast.queue.crdt.commutative.GSet;
+import org.mitallast.queue.crdt.commutative.CountMinSketch;
+import org.mitallast.queue.crdt.commutative.HyperLogLog;
+import org.mitallast.queue.crdt.commutative.LWWMap;
 import org.mitallast.queue.crdt.commutative.LWWRegister;
+import org.mitallast.queue.crdt.commutative.ORSet;
+import org.mitallast.queue.crdt.commutative.PNCounter;
 import org.mitallast.queue.crdt.log.FileReplicatedLog;
+import org.mitallast.queue.crdt.log.LogSyncService;
 import org.mitallast.queue.crdt.log.ReplicatedLog;
 import org.mitallast.queue.crdt.log.ReplicatedLogFactory;
 import org.mitallast.queue.crdt.protocol.AppendEntries;
 import org.mitallast.queue.crdt.protocol.AppendRejected;
 import org.mitallast.queue.crdt.protocol.AppendSuccessful;
+import org.mitallast.queue.crdt.protocol.InstallSnapshot;
 import org.mitallast.queue.crdt.registry.CrdtRegistry;
 import org.mitallast.queue.crdt.registry.CrdtRegistryFactory;
 import org.mitallast.queue.crdt.registry.DefaultCrdtRegistry;
@@ -36,6 +43,8 @@ import static org.mitallast.queue.common.stream.StreamableRegistry.of;
 public class CrdtModule extends AbstractModule {
     @Override
     protected void configure() {
+        bind(CrdtScheduler.class).asEagerSingleton();
+
         bind(DefaultCrdtService.class).asEagerSingleton();
         bind(CrdtService.class).to(DefaultCrdtService.class);
 
@@ -51,6 +60,8 @@ public class CrdtModule extends AbstractModule {
 
         // bucket
 
+        bind(LogSyncService.class).asEagerSingleton();
+
         install(new FactoryModuleBuilder()
             .implement(ReplicatedLog.class, FileReplicatedLog.class)
             .build(ReplicatedLogFactory.class));
@@ -82,13 +93,39 @@ public class CrdtModule extends AbstractModule {
 
         binder.addBinding().toInstance(of(GCounter.SourceAssign.class, GCounter.SourceAssign::new, 1110));
         binder.addBinding().toInstance(of(GCounter.DownstreamAssign.class, GCounter.DownstreamAssign::new, 1111));
+        binder.addBinding().toInstance(of(GCounter.DownstreamMerge.class, GCounter.DownstreamMerge::new, 1112));
 
         binder.addBinding().toInstance(of(GSet.SourceAdd.class, GSet.SourceAdd::new, 1120));
         binder.addBinding().toInstance(of(GSet.DownstreamAdd.class, GSet.DownstreamAdd::new, 1121));
+        binder.addBinding().toInstance(of(GSet.DownstreamMerge.class, GSet.DownstreamMerge::new, 1122));
+
+        binder.addBinding().toInstance(of(PNCounter.SourceAssign.class, PNCounter.SourceAssign::new, 1130));
+        binder.addBinding().toInstance(of(PNCounter.DownstreamAssign.class, PNCounter.DownstreamAssign::new, 1131));
+        binder.addBinding().toInstance(of(PNCounter.DownstreamMerge.class, PNCounter.DownstreamMerge::new, 1132));
+
+        binder.addBinding().toInstance(of(ORSet.SourceAdd.class, ORSet.SourceAdd::new, 1140));
+        binder.addBinding().toInstance(of(ORSet.SourceRemove.class, ORSet.SourceRemove::new, 1141));
+        binder.addBinding().toInstance(of(ORSet.DownstreamAdd.class, ORSet.DownstreamAdd::new, 1142));
+        binder.addBinding().toInstance(of(ORSet.DownstreamRemove.class, ORSet.DownstreamRemove::new, 1143));
+        binder.addBinding().toInstance(of(ORSet.DownstreamMerge.class, ORSet.DownstreamMerge::new, 1144));
+        binder.addBinding().toInstance(of(ORSet.DownstreamState.class, ORSet.DownstreamState::new, 1145));
+
+        binder.addBinding().toInstance(of(LWWMap.SourceAssign.class, LWWMap.SourceAssign::new, 1150));
+        binder.addBinding().toInstance(of(LWWMap.SourceRemove.class, LWWMap.SourceRemove::new, 1151));
+        binder.addBinding().toInstance(of(LWWMap.DownstreamAssign.class, LWWMap.DownstreamAssign::new, 1152));
+        binder.addBinding().toInstance(of(LWWMap.DownstreamMerge.class, LWWMap.DownstreamMerge::new, 1153));
+
+        binder.addBinding().toInstance(of(HyperLogLog.SourceAdd.class, HyperLogLog.SourceAdd::new, 1160));
+        binder.addBinding().toInstance(of(HyperLogLog.DownstreamAssign.class, HyperLogLog.DownstreamAssign::new, 1161));
+        binder.addBinding().toInstance(of(HyperLogLog.DownstreamMerge.class, HyperLogLog.DownstreamMerge::new, 1162));
+
+        binder.addBinding().toInstance(of(CountMinSketch.SourceAdd.class, CountMinSketch.SourceAdd::new, 1170));
+        binder.addBinding().toInstance(of(CountMinSketch.DownstreamMerge.class, CountMinSketch.DownstreamMerge::new, 1171));
 
         binder.addBinding().toInstance(of(AppendEntries.class, AppendEntries::new, 1300));
         binder.addBinding().toInstance(of(AppendSuccessful.class, AppendSuccessful::new, 1301));
         binder.addBinding().toInstance(of(AppendRejected.class, AppendRejected::new, 1302));
+        binder.addBinding().toInstance(of(InstallSnapshot.class, InstallSnapshot::new, 1303));
 
         binder.addBinding().toInstance(of(Resource.class, Resource::new, 1400));
         binder.addBinding().toInstance(of(RoutingTable.class, RoutingTable::new, 1401));
@@ -0,0 +1,221 @@
+package org.mitallast.queue.crdt;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mitallast.queue.common.component.AbstractLifecycleComponent;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Node-wide scheduler shared by all crdt buckets: hashed wheel timer for delayed and periodic tasks,
+ * worker pool sized by crdt.scheduler.workers and apply pool sized by crdt.scheduler.appliers,
+ * number of cores by default. Tasks of single bucket component are submitted through {@link SerialExecutor},
+ * which runs them in order on the pool and does not hold a thread while idle.
+ * <p>
+ * Incoming replication is applied on separate pool: applying waits for crdt locks held by local writers,
+ * which in turn wait for bucket writers on worker pool.
+ * <p>
+ * Log compaction runs on small pool sized by crdt.scheduler.compactors: it is throttled by sleeping
+ * on node-wide rate limiter of crdt.compaction.rate, and must not hold workers which run bucket writers.
+ */
+public class CrdtScheduler extends AbstractLifecycleComponent {
+    private final static Logger logger = LogManager.getLogger();
+
+    private final HashedWheelTimer timer;
+    private final ExecutorService workers;
+    private final ExecutorService appliers;
+    private final ExecutorService compactors;
+    private final RateLimiter compactionRate;
+
+    @Inject
+    public CrdtScheduler(Config config) {
+        long tick = config.getDuration("crdt.scheduler.tick", TimeUnit.MILLISECONDS);
+        timer = new HashedWheelTimer(new DefaultThreadFactory("crdt-timer"), tick, TimeUnit.MILLISECONDS);
+        workers = Executors.newFixedThreadPool(threads(config, "crdt.scheduler.workers"), new DefaultThreadFactory("crdt-worker"));
+        appliers = Executors.newFixedThreadPool(threads(config, "crdt.scheduler.appliers"), new DefaultThreadFactory("crdt-apply"));
+        compactors = Executors.newFixedThreadPool(threads(config, "crdt.scheduler.compactors"), new DefaultThreadFactory("crdt-compaction"));
+        compactionRate = RateLimiter.create(config.getBytes("crdt.compaction.rate"));
+    }
+
+    private static int threads(Config config, String path) {
+        int threads = config.getInt(path);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        return threads;
+    }
+
+    public SerialExecutor serial() {
+        return new SerialExecutor(workers);
+    }
+
+    /**
+     * @return serial executor on apply pool, for replication messages received by bucket
+     */
+    public SerialExecutor applier() {
+        return new SerialExecutor(appliers);
+    }
+
+    /**
+     * @return serial executor on compaction pool, for log compaction and truncate of bucket
+     */
+    public SerialExecutor compaction() {
+        return new SerialExecutor(compactors);
+    }
+
+    /**
+     * @return limiter of bytes copied by compaction, shared by logs of all buckets
+     */
+    public RateLimiter compactionRate() {
+        return compactionRate;
+    }
+
+    /**
+     * Run task on executor after delay
+     */
+    public Timeout schedule(Executor executor, Runnable task, long delay, TimeUnit unit) {
+        return timer.newTimeout(timeout -> executor.execute(task), delay, unit);
+    }
+
+    /**
+     * Run task on executor with fixed delay between end of previous run and start of next one
+     */
+    public Periodic scheduleWithFixedDelay(Executor executor, Runnable task, long delay, TimeUnit unit) {
+        Periodic periodic = new Periodic(executor, task, delay, unit);
+        periodic.schedule();
+        return periodic;
+    }
+
+    @Override
+    protected void doStart() {}
+
+    @Override
+    protected void doStop() {}
+
+    @Override
+    protected void doClose() {
+        timer.stop();
+        workers.shutdownNow();
+        appliers.shutdownNow();
+        compactors.shutdownNow();
+    }
+
+    public class Periodic {
+        private final Executor executor;
+        private final Runnable task;
+        private final long delay;
+        private final TimeUnit unit;
+        private volatile boolean cancelled;
+        private volatile Timeout timeout;
+
+        private Periodic(Executor executor, Runnable task, long delay, TimeUnit unit) {
+            this.executor = executor;
+            this.task = task;
+            this.delay = delay;
+            this.unit = unit;
+        }
+
+        private void schedule() {
+            if (!cancelled) {
+                timeout = timer.newTimeout(timeout -> executor.execute(this::run), delay, unit);
+            }
+        }
+
+        private void run() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.error("unexpected error in periodic task", e);
+            } finally {
+                schedule();
+            }
+        }
+
+        public void cancel() {
+            cancelled = true;
+            Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * Executes tasks one by one in submission order on shared executor.
+     * To keep workers fair between buckets, at most {@link #MAX_TASKS} tasks are run at once.
+     */
+    public static class SerialExecutor implements Executor {
+        private final static int MAX_TASKS = 16;
+
+        private final Executor executor;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        private SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::run);
+                } catch (RejectedExecutionException e) {
+                    running.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        private void run() {
+            try {
+                Runnable task;
+                for (int i = 0; i < MAX_TASKS && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        logger.error("unexpected error in serial task", e);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    running.set(false);
+                    notifyAll();
+                }
+                schedule();
+            }
+        }
+
+        /**
+         * Wait until all submitted tasks are completed
+         *
+         * @return false if tasks are still running after timeout
+         */
+        public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (running.get() || !tasks.isEmpty()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.mitallast.queue.crdt.log.LogEntry;
 import org.mitallast.queue.crdt.protocol.AppendEntries;
 import org.mitallast.queue.crdt.protocol.AppendRejected;
 import org.mitallast.queue.crdt.protocol.AppendSuccessful;
+import org.mitallast.queue.crdt.protocol.InstallSnapshot;
 import org.mitallast.queue.crdt.routing.*;
 import org.mitallast.queue.crdt.routing.allocation.AllocationStrategy;
 import org.mitallast.queue.crdt.routing.event.RoutingTableChanged;
@@ -71,63 +72,123 @@ public class DefaultCrdtService implements CrdtService {
         transportController.registerMessageHandler(AppendEntries.class, this::append);
         transportController.registerMessageHandler(AppendSuccessful.class, this::successful);
         transportController.registerMessageHandler(AppendRejected.class, this::rejected);
+        transportController.registerMessageHandler(InstallSnapshot.class, this::install);
     }
 
+    /**
+     * Transport handlers only enqueue message to bucket executor, so large batch of one bucket
+     * does not block io thread, and buckets are applied in parallel on crdt workers.
+     */
     private void append(AppendEntries message) {
         Bucket bucket = bucket(message.bucket());
         if (bucket == null) {
             logger.warn("unexpected bucket {}, ignore", message.bucket());
         } else {
-            bucket.lock().lock();
-            try {
-                RoutingBucket routingBucket = routingTable().bucket(message.bucket());
-                RoutingReplica replica = routingBucket.replicas().getOrElse(message.replica(), null);
-                if (replica == null) {
-                    logger.warn("unexpected replica {}, ignore", message.replica());
-                } else {
-                    long localIndex = bucket.state().get(message.replica());
-                    if (localIndex == message.prevIndex()) {
-                        for (LogEntry logEntry : message.entries()) {
-                            bucket.registry().crdt(logEntry.id()).update(logEntry.event());
-                            localIndex = Math.max(localIndex, logEntry.index());
-                        }
-                        bucket.state().put(message.replica(), localIndex);
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("[replica={}:{}] append success to={}:{} prev={} new={}",
-                                bucket.index(), bucket.replica(),
-                                message.bucket(), message.replica(), message.prevIndex(), localIndex);
-                        }
-                        transportService.send(
-                            replica.member(),
-                            new AppendSuccessful(message.bucket(), bucket.replica(), localIndex)
-                        );
-                    } else {
-                        logger.warn("[replica={}:{}] append reject to={}:{} prev={} index={}",
+            bucket.executor().execute(() -> applyEntries(bucket, message));
+        }
+    }
+
+    private void applyEntries(Bucket bucket, AppendEntries message) {
+        bucket.lock().lock();
+        try {
+            if (!isActive(bucket)) {
+                logger.warn("bucket {} is closed, ignore", message.bucket());
+                return;
+            }
+            RoutingBucket routingBucket = routingTable().bucket(message.bucket());
+            RoutingReplica replica = routingBucket.replicas().getOrElse(message.replica(), null);
+            if (replica == null) {
+                logger.warn("unexpected replica {}, ignore", message.replica());
+            } else {
+                long localIndex = bucket.state().get(message.replica());
+                if (localIndex == message.prevIndex()) {
+                    for (LogEntry logEntry : message.entries()) {
+                        bucket.registry().crdt(logEntry.id()).update(logEntry.event());
+                        localIndex = Math.max(localIndex, logEntry.index());
+                    }
+                    bucket.state().put(message.replica(), localIndex);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("[replica={}:{}] append success to={}:{} prev={} new={}",
                             bucket.index(), bucket.replica(),
                             message.bucket(), message.replica(), message.prevIndex(), localIndex);
-                        transportService.send(
-                            replica.member(),
-                            new AppendRejected(message.bucket(), bucket.replica(), localIndex)
-                        );
                     }
+                    transportService.send(
+                        replica.member(),
+                        new AppendSuccessful(message.bucket(), bucket.replica(), message.seq(), localIndex)
+                    );
+                } else {
+                    logger.warn("[replica={}:{}] append reject to={}:{} prev={} index={}",
+                        bucket.index(), bucket.replica(),
+                        message.bucket(), message.replica(), message.prevIndex(), localIndex);
+                    transportService.send(
+                        replica.member(),
+                        new AppendRejected(message.bucket(), bucket.replica(), message.seq(), localIndex)
+                    );
                 }
-            } finally {
-                bucket.lock().unlock();
             }
+        } finally {
+            bucket.lock().unlock();
+        }
+    }
+
+    private void install(InstallSnapshot message) {
+        Bucket bucket = bucket(message.bucket());
+        if (bucket == null) {
+            logger.warn("unexpected bucket {}, ignore", message.bucket());
+        } else {
+            bucket.executor().execute(() -> installSnapshot(bucket, message));
+        }
+    }
+
+    private void installSnapshot(Bucket bucket, InstallSnapshot message) {
+        bucket.lock().lock();
+        try {
+            if (!isActive(bucket)) {
+                logger.warn("bucket {} is closed, ignore", message.bucket());
+                return;
+            }
+            RoutingBucket routingBucket = routingTable().bucket(message.bucket());
+            RoutingReplica replica = routingBucket.replicas().getOrElse(message.replica(), null);
+            if (replica == null) {
+                logger.warn("unexpected replica {}, ignore", message.replica());
+            } else {
+                bucket.registry().restore(message.snapshot());
+                long localIndex = bucket.state().get(message.replica());
+                if (localIndex < message.snapshot().index()) {
+                    localIndex = message.snapshot().index();
+                    bucket.state().put(message.replica(), localIndex);
+                }
+                logger.info("[replica={}:{}] installed snapshot from={}:{} index={}",
+                    bucket.index(), bucket.replica(),
+                    message.bucket(), message.replica(), localIndex);
+                transportService.send(
+                    replica.member(),
+                    new AppendSuccessful(message.bucket(), bucket.replica(), message.seq(), localIndex)
+                );
+            }
+        } finally {
+            bucket.lock().unlock();
         }
     }
 
+    /**
+     * Bucket could be deleted while message is waiting in executor
+     */
+    private boolean isActive(Bucket bucket) {
+        return bucket(bucket.index()) == bucket;
+    }
+
     private void successful(AppendSuccessful message) {
         Bucket bucket = bucket(message.bucket());
         if (bucket != null) {
-            bucket.replicator().successful(message);
+            bucket.executor().execute(() -> bucket.replicator().successful(message));
         }
     }
 
     private void rejected(AppendRejected message) {
         Bucket bucket = bucket(message.bucket());
         if (bucket != null) {
-            bucket.replicator().rejected(message);
+            bucket.executor().execute(() -> bucket.replicator().rejected(message));
         }
     }
 
@@ -223,9 +284,11 @@ public class DefaultCrdtService implements CrdtService {
 
     private void processReplica(RoutingBucket routingBucket, RoutingReplica replica) {
         Bucket bucket = bucket(routingBucket.index());
+        boolean created = false;
         if (bucket == null) {
             bucket = bucketFactory.create(routingBucket.index(), replica.id());
             buckets = buckets.put(routingBucket.index(), bucket);
+            created = true;
         }
         bucket.lock().lock();
         try {
@@ -246,12 +309,30 @@ public class DefaultCrdtService implements CrdtService {
                             case GSet:
                                 bucket.registry().createGSet(resource.id());
                                 break;
+                            case PNCounter:
+                                bucket.registry().createPNCounter(resource.id());
+                                break;
+                            case ORSet:
+                                bucket.registry().createORSet(resource.id());
+                                break;
+                            case LWWMap:
+                                bucket.registry().createLWWMap(resource.id());
+                                break;
+                            case HyperLogLog:
+                                bucket.registry().createHyperLogLog(resource.id());
+                                break;
+                            case CountMinSketch:
+                                bucket.registry().createCountMinSketch(resource.id());
+                                break;
                             default:
                                 logger.warn("unexpected type: {}", resource.type());
                         }
                     }
                 }
             }
+            if (created) {
+                bucket.restore();
+            }
         } finally {
             bucket.lock().unlock();
         }
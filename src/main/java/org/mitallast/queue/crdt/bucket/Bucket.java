@@ -1,11 +1,14 @@
 package org.mitallast.queue.crdt.bucket;
 
+import javaslang.control.Option;
 import org.mitallast.queue.crdt.log.ReplicatedLog;
 import org.mitallast.queue.crdt.registry.CrdtRegistry;
+import org.mitallast.queue.crdt.registry.RegistrySnapshot;
 import org.mitallast.queue.crdt.replication.Replicator;
 import org.mitallast.queue.crdt.replication.state.ReplicaState;
 
 import java.io.Closeable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
 public interface Bucket extends Closeable {
@@ -24,6 +27,23 @@ public interface Bucket extends Closeable {
 
     ReplicaState state();
 
+    /**
+     * Serial executor of bucket, replication messages of bucket are processed on it in order of receive
+     */
+    Executor executor();
+
+    /**
+     * Restore registry from last snapshot and local log, should be called after resources are allocated
+     */
+    void restore();
+
+    /**
+     * Write snapshot of registry and truncate log prefix covered by it
+     */
+    RegistrySnapshot snapshot();
+
+    Option<RegistrySnapshot> lastSnapshot();
+
     void delete();
 
     @Override
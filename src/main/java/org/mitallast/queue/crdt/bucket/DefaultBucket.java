@@ -1,19 +1,29 @@
 package org.mitallast.queue.crdt.bucket;
 
 import com.google.inject.assistedinject.Assisted;
+import javaslang.collection.HashMap;
+import javaslang.control.Option;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.mitallast.queue.common.file.FileService;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.StreamService;
+import org.mitallast.queue.crdt.CrdtScheduler;
+import org.mitallast.queue.crdt.log.LogEntry;
 import org.mitallast.queue.crdt.log.DefaultCompactionFilter;
 import org.mitallast.queue.crdt.log.ReplicatedLog;
 import org.mitallast.queue.crdt.log.ReplicatedLogFactory;
 import org.mitallast.queue.crdt.registry.CrdtRegistry;
 import org.mitallast.queue.crdt.registry.CrdtRegistryFactory;
+import org.mitallast.queue.crdt.registry.RegistrySnapshot;
 import org.mitallast.queue.crdt.replication.Replicator;
 import org.mitallast.queue.crdt.replication.ReplicatorFactory;
 import org.mitallast.queue.crdt.replication.state.ReplicaState;
 import org.mitallast.queue.crdt.replication.state.ReplicaStateFactory;
 
 import javax.inject.Inject;
+import java.io.File;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class DefaultBucket implements Bucket {
@@ -25,6 +35,13 @@ public class DefaultBucket implements Bucket {
     private final ReplicatedLog log;
     private final ReplicaState replicaState;
     private final Replicator replicator;
+    private final Executor executor;
+    private final FileService fileService;
+    private final StreamService streamService;
+    private final String snapshotService;
+
+    private volatile boolean restored = false;
+    private volatile Option<RegistrySnapshot> lastSnapshot = Option.none();
 
     @Inject
     public DefaultBucket(
@@ -33,12 +50,19 @@ public class DefaultBucket implements Bucket {
         CrdtRegistryFactory crdtRegistryFactory,
         ReplicatedLogFactory logFactory,
         ReplicaStateFactory stateFactory,
-        ReplicatorFactory replicatorFactory
+        ReplicatorFactory replicatorFactory,
+        FileService fileService,
+        StreamService streamService,
+        CrdtScheduler scheduler
     ) {
         this.index = index;
         this.replica = replica;
+        this.fileService = fileService;
+        this.streamService = streamService;
+        this.snapshotService = String.format("crdt/%d/snapshot/%d", index, replica);
         logger = LogManager.getLogger("replicator[" + index + "]");
         lock = new ReentrantLock();
+        executor = scheduler.applier();
         replicaState = stateFactory.create(index, replica);
         replicator = replicatorFactory.create(this);
         registry = crdtRegistryFactory.create(index, replica, replicator);
@@ -82,9 +106,74 @@ public class DefaultBucket implements Bucket {
         return replicaState;
     }
 
+    @Override
+    public Executor executor() {
+        return executor;
+    }
+
+    @Override
+    public synchronized void restore() {
+        if (restored) {
+            return;
+        }
+        Option<RegistrySnapshot> snapshot = fileService.read(snapshotService, "snapshot.bin", RegistrySnapshot::new);
+        snapshot.forEach(registry::restore);
+        // entries of other replicas applied after snapshot are not in local log, they are resent from snapshot indexes
+        replicaState.restore(snapshot.map(RegistrySnapshot::replicas).getOrElse(HashMap.empty()));
+        long start = snapshot.map(RegistrySnapshot::index).getOrElse(0L);
+        long replayed = 0;
+        for (LogEntry entry : log.cursor(start)) {
+            registry.crdtOpt(entry.id()).forEach(crdt -> crdt.update(entry.event()));
+            replayed++;
+        }
+        logger.info("restored from snapshot {}, replayed {} log entries", snapshot, replayed);
+        lastSnapshot = snapshot;
+        restored = true;
+    }
+
+    @Override
+    public RegistrySnapshot snapshot() {
+        RegistrySnapshot snapshot;
+        // entries of other replicas are applied under bucket lock, so replica indexes match registry state
+        lock.lock();
+        try {
+            if (!restored) {
+                throw new IllegalStateException("not restored");
+            }
+            // all entries up to index are already applied to registry
+            long index = log.index();
+            if (lastSnapshot.isDefined() && lastSnapshot.get().index() == index) {
+                return lastSnapshot.get();
+            }
+            snapshot = new RegistrySnapshot(index, replicaState.indexes(), registry.snapshot(index).entries());
+        } finally {
+            lock.unlock();
+        }
+        synchronized (this) {
+            if (lastSnapshot.isDefined() && lastSnapshot.get().index() >= snapshot.index()) {
+                return lastSnapshot.get();
+            }
+            File tmp = fileService.temporary(snapshotService, "snapshot.", ".tmp");
+            try (StreamOutput output = streamService.output(tmp)) {
+                output.writeStreamable(snapshot);
+            }
+            fileService.move(tmp, fileService.resource(snapshotService, "snapshot.bin"));
+            lastSnapshot = Option.some(snapshot);
+        }
+        logger.info("snapshot {}", snapshot);
+        log.truncate(snapshot.index());
+        return snapshot;
+    }
+
+    @Override
+    public Option<RegistrySnapshot> lastSnapshot() {
+        return lastSnapshot;
+    }
+
     @Override
     public void close() {
         logger.info("close");
+        registry.close();
         replicator.stop();
         log.close();
         replicaState.close();
@@ -95,5 +184,6 @@ public class DefaultBucket implements Bucket {
         logger.info("delete");
         log.delete();
         replicaState.delete();
+        fileService.delete(snapshotService);
     }
 }
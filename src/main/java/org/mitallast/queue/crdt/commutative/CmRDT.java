@@ -9,6 +9,31 @@ public interface CmRDT extends Crdt {
 
     interface DownstreamUpdate extends Streamable {}
 
+    /**
+     * Downstream update which replaces all updates with the same key and lower version of the same crdt,
+     * only the newest one is required to converge.
+     */
+    interface OverwriteUpdate extends DownstreamUpdate {
+        long key();
+
+        long version();
+
+        /**
+         * @return true if this update replaces other update with the same key, ties are resolved to this update
+         */
+        default boolean overwrites(OverwriteUpdate other) {
+            return version() >= other.version();
+        }
+    }
+
+    /**
+     * Downstream update which is a delta of crdt state, deltas of the same crdt are joined into one update.
+     * Join is commutative, associative and idempotent, so joined deltas could be applied in any order.
+     */
+    interface DeltaUpdate extends DownstreamUpdate {
+        DeltaUpdate join(DeltaUpdate other);
+    }
+
     void sourceUpdate(SourceUpdate update);
 
     void downstreamUpdate(DownstreamUpdate update);
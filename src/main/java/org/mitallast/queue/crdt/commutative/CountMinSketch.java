@@ -0,0 +1,448 @@
+package org.mitallast.queue.crdt.commutative;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import javaslang.Tuple;
+import javaslang.Tuple2;
+import javaslang.collection.HashMap;
+import javaslang.collection.HashSet;
+import javaslang.collection.LinkedHashMap;
+import javaslang.collection.Map;
+import javaslang.collection.Set;
+import javaslang.collection.Vector;
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Count-min sketch of key frequencies with top-k heavy hitters.
+ *
+ * Each replica increments only its own cells, so sketch is a vector of grow-only sketches:
+ * cells of replica are merged by max, estimate of key is min over rows of cells summed over replicas.
+ * Downstream update carries changed cells only, and keys which are in top-k of origin replica,
+ * top-k is recomputed from merged sketch for known candidate keys.
+ */
+public class CountMinSketch implements CmRDT {
+    private final static HashFunction hash = Hashing.murmur3_128();
+
+    public static class SourceAdd implements SourceUpdate {
+        private final String key;
+        private final long count;
+
+        public SourceAdd(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        public SourceAdd(StreamInput stream) {
+            this.key = stream.readText();
+            this.count = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeText(key);
+            stream.writeLong(count);
+        }
+    }
+
+    /**
+     * Cells of one replica ordered by index
+     */
+    public static class Cells {
+        private final int[] indexes;
+        private final long[] values;
+
+        public Cells(int[] indexes, long[] values) {
+            this.indexes = indexes;
+            this.values = values;
+        }
+
+        private Cells(StreamInput stream) {
+            int size = stream.readInt();
+            indexes = new int[size];
+            values = new long[size];
+            for (int i = 0; i < size; i++) {
+                indexes[i] = stream.readInt();
+                values[i] = stream.readLong();
+            }
+        }
+
+        private void writeTo(StreamOutput stream) {
+            stream.writeInt(indexes.length);
+            for (int i = 0; i < indexes.length; i++) {
+                stream.writeInt(indexes[i]);
+                stream.writeLong(values[i]);
+            }
+        }
+
+        private static Cells max(Cells a, Cells b) {
+            int[] indexes = new int[a.indexes.length + b.indexes.length];
+            long[] values = new long[indexes.length];
+            int i = 0, j = 0, size = 0;
+            while (i < a.indexes.length || j < b.indexes.length) {
+                if (j == b.indexes.length || (i < a.indexes.length && a.indexes[i] < b.indexes[j])) {
+                    indexes[size] = a.indexes[i];
+                    values[size++] = a.values[i++];
+                } else if (i == a.indexes.length || b.indexes[j] < a.indexes[i]) {
+                    indexes[size] = b.indexes[j];
+                    values[size++] = b.values[j++];
+                } else {
+                    indexes[size] = a.indexes[i];
+                    values[size++] = Math.max(a.values[i++], b.values[j++]);
+                }
+            }
+            return new Cells(Arrays.copyOf(indexes, size), Arrays.copyOf(values, size));
+        }
+    }
+
+    /**
+     * Joined delta or full state: changed cells per replica and candidate keys for top-k
+     */
+    public static class DownstreamMerge implements DeltaUpdate {
+        private final Map<Long, Cells> cells;
+        private final Set<String> candidates;
+
+        public DownstreamMerge(Map<Long, Cells> cells, Set<String> candidates) {
+            this.cells = cells;
+            this.candidates = candidates;
+        }
+
+        public DownstreamMerge(StreamInput stream) {
+            int size = stream.readInt();
+            Map<Long, Cells> cells = HashMap.empty();
+            for (int i = 0; i < size; i++) {
+                cells = cells.put(stream.readLong(), new Cells(stream));
+            }
+            this.cells = cells;
+            size = stream.readInt();
+            Set<String> candidates = HashSet.empty();
+            for (int i = 0; i < size; i++) {
+                candidates = candidates.add(stream.readText());
+            }
+            this.candidates = candidates;
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeInt(cells.size());
+            cells.forEach((replica, cells) -> {
+                stream.writeLong(replica);
+                cells.writeTo(stream);
+            });
+            stream.writeInt(candidates.size());
+            candidates.forEach(stream::writeText);
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            if (other instanceof DownstreamMerge) {
+                DownstreamMerge merge = (DownstreamMerge) other;
+                return new DownstreamMerge(cells.merge(merge.cells, Cells::max), candidates.addAll(merge.candidates));
+            } else {
+                throw new IllegalArgumentException("unexpected delta: " + other);
+            }
+        }
+    }
+
+    private final long id;
+    private final long replica;
+    private final Replicator replicator;
+    private final int width;
+    private final int depth;
+
+    // cells of this replica and other replicas, and sum of cells over replicas
+    private final long[] own;
+    private final TLongObjectMap<long[]> others = new TLongObjectHashMap<>();
+    private final long[] total;
+    private final TopK topK;
+
+    public CountMinSketch(long id, long replica, Replicator replicator, int width, int depth, int k) {
+        this.id = id;
+        this.replica = replica;
+        this.replicator = replicator;
+        this.width = width;
+        this.depth = depth;
+        this.own = new long[width * depth];
+        this.total = new long[width * depth];
+        this.topK = new TopK(k);
+    }
+
+    @Override
+    public void update(Streamable event) {
+        if (event instanceof SourceUpdate) {
+            sourceUpdate((SourceUpdate) event);
+        } else if (event instanceof DownstreamUpdate) {
+            downstreamUpdate((DownstreamUpdate) event);
+        }
+    }
+
+    @Override
+    public synchronized boolean shouldCompact(Streamable event) {
+        if (event instanceof DownstreamMerge) {
+            return ((DownstreamMerge) event).cells.forAll(entry -> {
+                long[] current = cells(entry._1);
+                Cells cells = entry._2;
+                for (int i = 0; i < cells.indexes.length; i++) {
+                    if (cells.values[i] >= current[cells.indexes[i]]) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Vector<Streamable> snapshot() {
+        Map<Long, Cells> cells = HashMap.empty();
+        cells = cells.put(replica, nonZero(own));
+        for (long other : others.keys()) {
+            cells = cells.put(other, nonZero(others.get(other)));
+        }
+        return Vector.of(new DownstreamMerge(cells, HashSet.ofAll(topK.keys())));
+    }
+
+    private static Cells nonZero(long[] values) {
+        int size = 0;
+        for (long value : values) {
+            if (value > 0) {
+                size++;
+            }
+        }
+        int[] indexes = new int[size];
+        long[] nonZero = new long[size];
+        for (int index = 0, i = 0; index < values.length; index++) {
+            if (values[index] > 0) {
+                indexes[i] = index;
+                nonZero[i++] = values[index];
+            }
+        }
+        return new Cells(indexes, nonZero);
+    }
+
+    @Override
+    public void sourceUpdate(SourceUpdate update) {
+        if (update instanceof SourceAdd) {
+            SourceAdd add = (SourceAdd) update;
+            add(add.key, add.count);
+        }
+    }
+
+    @Override
+    public synchronized void downstreamUpdate(DownstreamUpdate update) {
+        if (update instanceof DownstreamMerge) {
+            DownstreamMerge merge = (DownstreamMerge) update;
+            merge.cells.forEach((replica, cells) -> {
+                long[] current = cells(replica);
+                for (int i = 0; i < cells.indexes.length; i++) {
+                    int index = cells.indexes[i];
+                    if (current[index] < cells.values[i]) {
+                        total[index] += cells.values[i] - current[index];
+                        current[index] = cells.values[i];
+                    }
+                }
+            });
+            // estimates of all keys could be changed by merged cells
+            topK.refresh();
+            for (String candidate : merge.candidates) {
+                topK.offer(candidate, estimate(cells(candidate)));
+            }
+        }
+    }
+
+    private long[] cells(long replica) {
+        if (replica == this.replica) {
+            return own;
+        }
+        long[] cells = others.get(replica);
+        if (cells == null) {
+            cells = new long[width * depth];
+            others.put(replica, cells);
+        }
+        return cells;
+    }
+
+    /**
+     * @return index of cell in each row, rows are hashed by double hashing of 128 bit hash
+     */
+    private int[] cells(String key) {
+        HashCode code = hash.hashString(key, StandardCharsets.UTF_8);
+        byte[] bytes = code.asBytes();
+        long h1 = code.asLong();
+        long h2 = 0;
+        for (int i = 15; i >= 8; i--) {
+            h2 = (h2 << 8) | (bytes[i] & 0xFF);
+        }
+        int[] cells = new int[depth];
+        for (int row = 0; row < depth; row++) {
+            long combined = h1 + row * h2;
+            cells[row] = row * width + (int) ((combined & Long.MAX_VALUE) % width);
+        }
+        return cells;
+    }
+
+    private long estimate(int[] cells) {
+        long estimate = Long.MAX_VALUE;
+        for (int cell : cells) {
+            estimate = Math.min(estimate, total[cell]);
+        }
+        return estimate;
+    }
+
+    public void add(String key) {
+        add(key, 1);
+    }
+
+    public void add(String key, long count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count should be positive: " + count);
+        }
+        int[] cells = cells(key);
+        Arrays.sort(cells);
+        long[] values = new long[cells.length];
+        Set<String> candidates = HashSet.empty();
+        synchronized (this) {
+            for (int i = 0; i < cells.length; i++) {
+                own[cells[i]] += count;
+                total[cells[i]] += count;
+                values[i] = own[cells[i]];
+            }
+            if (topK.offer(key, estimate(cells))) {
+                candidates = candidates.add(key);
+            }
+        }
+        // appended outside of lock, cells only grow so reordered appends converge,
+        // and compaction or snapshot do not wait for appender blocked by full queue
+        replicator.append(id, new DownstreamMerge(HashMap.of(replica, new Cells(cells, values)), candidates));
+    }
+
+    public synchronized long estimate(String key) {
+        return estimate(cells(key));
+    }
+
+    /**
+     * @return heavy hitters ordered by estimated count descending
+     */
+    public synchronized Map<String, Long> top() {
+        return LinkedHashMap.ofEntries(topK.entries().sortBy(entry -> -entry._2));
+    }
+
+    /**
+     * Min-heap of k keys with the highest estimates, root is the smallest estimate
+     */
+    private class TopK {
+        private final int k;
+        private final String[] keys;
+        private final long[] counts;
+        private final java.util.HashMap<String, Integer> positions = new java.util.HashMap<>();
+        private int size;
+
+        private TopK(int k) {
+            this.k = k;
+            this.keys = new String[k];
+            this.counts = new long[k];
+        }
+
+        /**
+         * @return true if key is in top-k
+         */
+        private boolean offer(String key, long count) {
+            Integer position = positions.get(key);
+            if (position != null) {
+                if (counts[position] < count) {
+                    counts[position] = count;
+                    siftDown(position);
+                }
+                return true;
+            }
+            if (size < k) {
+                keys[size] = key;
+                counts[size] = count;
+                positions.put(key, size);
+                siftUp(size++);
+                return true;
+            }
+            if (k > 0 && counts[0] < count) {
+                positions.remove(keys[0]);
+                keys[0] = key;
+                counts[0] = count;
+                positions.put(key, 0);
+                siftDown(0);
+                return true;
+            }
+            return false;
+        }
+
+        private void refresh() {
+            for (int i = 0; i < size; i++) {
+                counts[i] = estimate(cells(keys[i]));
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private void siftUp(int position) {
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (counts[parent] <= counts[position]) {
+                    break;
+                }
+                swap(parent, position);
+                position = parent;
+            }
+        }
+
+        private void siftDown(int position) {
+            while (true) {
+                int smallest = position;
+                int left = position * 2 + 1;
+                int right = left + 1;
+                if (left < size && counts[left] < counts[smallest]) {
+                    smallest = left;
+                }
+                if (right < size && counts[right] < counts[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == position) {
+                    return;
+                }
+                swap(position, smallest);
+                position = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            String key = keys[a];
+            long count = counts[a];
+            keys[a] = keys[b];
+            counts[a] = counts[b];
+            keys[b] = key;
+            counts[b] = count;
+            positions.put(keys[a], a);
+            positions.put(keys[b], b);
+        }
+
+        private Vector<String> keys() {
+            return Vector.of(keys).take(size);
+        }
+
+        private Vector<Tuple2<String, Long>> entries() {
+            ArrayList<Tuple2<String, Long>> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                entries.add(Tuple.of(keys[i], counts[i]));
+            }
+            return Vector.ofAll(entries);
+        }
+    }
+}
@@ -5,13 +5,25 @@ import gnu.trove.impl.sync.TSynchronizedLongLongMap;
 import gnu.trove.map.TLongLongMap;
 import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.procedure.TLongProcedure;
+import javaslang.Tuple;
+import javaslang.Tuple2;
+import javaslang.collection.HashMap;
+import javaslang.collection.Map;
+import javaslang.collection.Vector;
 import org.mitallast.queue.common.stream.StreamInput;
 import org.mitallast.queue.common.stream.StreamOutput;
 import org.mitallast.queue.common.stream.Streamable;
 import org.mitallast.queue.crdt.replication.Replicator;
 
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
- * Using counter vector allows to implement garbage collection
+ * Using counter vector allows to implement garbage collection.
+ * <p>
+ * In striped mode local increments are accumulated in per-thread cells and flushed to replicator
+ * as one {@link DownstreamAssign} if cell exceeds flush threshold, or by periodic {@link #flush()}.
  */
 public class GCounter implements CmRDT {
 
@@ -32,7 +44,7 @@ public class GCounter implements CmRDT {
         }
     }
 
-    public static class DownstreamAssign implements DownstreamUpdate {
+    public static class DownstreamAssign implements OverwriteUpdate, DeltaUpdate {
         private final long replica;
         private final long value;
 
@@ -51,18 +63,100 @@ public class GCounter implements CmRDT {
             stream.writeLong(replica);
             stream.writeLong(value);
         }
+
+        @Override
+        public long key() {
+            return replica;
+        }
+
+        @Override
+        public long version() {
+            return value;
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return new DownstreamMerge(HashMap.of(replica, value)).join(other);
+        }
+    }
+
+    /**
+     * Joined delta or full state of counter vector
+     */
+    public static class DownstreamMerge implements DeltaUpdate {
+        private final Map<Long, Long> values;
+
+        public DownstreamMerge(Map<Long, Long> values) {
+            this.values = values;
+        }
+
+        public DownstreamMerge(StreamInput stream) {
+            int size = stream.readInt();
+            Map<Long, Long> values = HashMap.empty();
+            for (int i = 0; i < size; i++) {
+                values = values.put(stream.readLong(), stream.readLong());
+            }
+            this.values = values;
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeInt(values.size());
+            values.forEach((replica, value) -> {
+                stream.writeLong(replica);
+                stream.writeLong(value);
+            });
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            Map<Long, Long> joined = values;
+            if (other instanceof DownstreamAssign) {
+                DownstreamAssign assign = (DownstreamAssign) other;
+                joined = joined.put(assign.replica, Math.max(assign.value, joined.get(assign.replica).getOrElse(0L)));
+            } else if (other instanceof DownstreamMerge) {
+                joined = joined.merge(((DownstreamMerge) other).values, Math::max);
+            } else {
+                throw new IllegalArgumentException("unexpected delta: " + other);
+            }
+            return new DownstreamMerge(joined);
+        }
     }
 
+    // one cell per cache line, to avoid false sharing between threads
+    private final static int CELL_STRIDE = 8;
+
     private final long id;
     private final long replica;
     private final Replicator replicator;
     private final TLongLongMap counterMap;
+    private final AtomicLongArray cells;
+    private final int cellMask;
+    private final long flushThreshold;
+    // odd while flush moves cells to counter map
+    private final AtomicLong flushVersion = new AtomicLong();
 
     public GCounter(long id, long replica, Replicator replicator) {
+        this(id, replica, replicator, 0, 0);
+    }
+
+    /**
+     * @param stripes        number of cells for local increments, power of two, 0 disables striping
+     * @param flushThreshold cell value which triggers flush by incrementing thread
+     */
+    public GCounter(long id, long replica, Replicator replicator, int stripes, long flushThreshold) {
+        Preconditions.checkArgument(Integer.bitCount(stripes) <= 1, "stripes must be power of two");
         this.id = id;
         this.replica = replica;
         this.replicator = replicator;
         this.counterMap = new TSynchronizedLongLongMap(new TLongLongHashMap());
+        this.cells = stripes == 0 ? null : new AtomicLongArray(stripes * CELL_STRIDE);
+        this.cellMask = stripes - 1;
+        this.flushThreshold = flushThreshold;
+    }
+
+    public boolean isStriped() {
+        return cells != null;
     }
 
     @Override
@@ -76,8 +170,20 @@ public class GCounter implements CmRDT {
 
     @Override
     public boolean shouldCompact(Streamable event) {
-        return event instanceof DownstreamAssign &&
-            ((DownstreamAssign) event).value < counterMap.get(replica);
+        if (event instanceof DownstreamAssign) {
+            return ((DownstreamAssign) event).value < counterMap.get(replica);
+        }
+        if (event instanceof DownstreamMerge) {
+            return ((DownstreamMerge) event).values.forAll(entry -> entry._2 < counterMap.get(entry._1));
+        }
+        return false;
+    }
+
+    @Override
+    public Vector<Streamable> snapshot() {
+        ArrayList<Tuple2<Long, Long>> values = new ArrayList<>();
+        counterMap.forEachEntry((replica, value) -> values.add(Tuple.of(replica, value)));
+        return values.isEmpty() ? Vector.empty() : Vector.of(new DownstreamMerge(HashMap.ofEntries(values)));
     }
 
     @Override
@@ -95,6 +201,12 @@ public class GCounter implements CmRDT {
             if (current < downstream.value) {
                 counterMap.put(downstream.replica, downstream.value);
             }
+        } else if (update instanceof DownstreamMerge) {
+            ((DownstreamMerge) update).values.forEach((replica, value) -> {
+                if (counterMap.get(replica) < value) {
+                    counterMap.put(replica, value);
+                }
+            });
         }
     }
 
@@ -104,12 +216,74 @@ public class GCounter implements CmRDT {
 
     public long add(long value) {
         Preconditions.checkArgument(value >= 0, "must be positive");
+        if (cells != null) {
+            int cell = ((int) Thread.currentThread().getId() & cellMask) * CELL_STRIDE;
+            if (cells.addAndGet(cell, value) >= flushThreshold) {
+                return flush();
+            }
+            return counterMap.get(replica) + pending();
+        }
         long updated = counterMap.adjustOrPutValue(replica, value, value);
         replicator.append(id, new DownstreamAssign(replica, updated));
         return updated;
     }
 
+    /**
+     * Move local increments accumulated in cells to counter vector and replicate them as one update
+     *
+     * @return local replica value
+     */
+    public long flush() {
+        if (cells == null) {
+            return counterMap.get(replica);
+        }
+        long updated;
+        synchronized (flushVersion) {
+            flushVersion.incrementAndGet();
+            try {
+                long delta = 0;
+                for (int i = 0; i < cells.length(); i += CELL_STRIDE) {
+                    delta += cells.getAndSet(i, 0);
+                }
+                if (delta == 0) {
+                    return counterMap.get(replica);
+                }
+                updated = counterMap.adjustOrPutValue(replica, delta, delta);
+            } finally {
+                flushVersion.incrementAndGet();
+            }
+        }
+        // appends of concurrent flushes could be reordered, downstream keeps max value
+        replicator.append(id, new DownstreamAssign(replica, updated));
+        return updated;
+    }
+
+    private long pending() {
+        long pending = 0;
+        for (int i = 0; i < cells.length(); i += CELL_STRIDE) {
+            pending += cells.get(i);
+        }
+        return pending;
+    }
+
     public long value() {
+        if (cells == null) {
+            return replicated();
+        }
+        // retry if flush moved increments from cells to counter map while reading
+        while (true) {
+            long version = flushVersion.get();
+            if ((version & 1) == 0) {
+                long value = replicated() + pending();
+                if (flushVersion.get() == version) {
+                    return value;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    private long replicated() {
         SumProcedure sum = new SumProcedure();
         counterMap.forEachValue(sum);
         return sum.value;
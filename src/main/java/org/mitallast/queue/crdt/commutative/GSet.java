@@ -2,6 +2,7 @@ package org.mitallast.queue.crdt.commutative;
 
 import javaslang.collection.LinkedHashSet;
 import javaslang.collection.Set;
+import javaslang.collection.Vector;
 import org.mitallast.queue.common.stream.StreamInput;
 import org.mitallast.queue.common.stream.StreamOutput;
 import org.mitallast.queue.common.stream.Streamable;
@@ -27,7 +28,7 @@ public class GSet implements CmRDT {
         }
     }
 
-    public static class DownstreamAdd implements DownstreamUpdate {
+    public static class DownstreamAdd implements DeltaUpdate {
         private final Streamable value;
 
         public DownstreamAdd(Streamable value) {
@@ -44,6 +45,11 @@ public class GSet implements CmRDT {
             stream.writeStreamable(value);
         }
 
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return new DownstreamMerge(LinkedHashSet.of(value).addAll(values(other)));
+        }
+
         @Override
         public String toString() {
             return "DownstreamAdd{" +
@@ -52,6 +58,48 @@ public class GSet implements CmRDT {
         }
     }
 
+    /**
+     * Joined delta or full state of set
+     */
+    public static class DownstreamMerge implements DeltaUpdate {
+        private final Set<Streamable> values;
+
+        public DownstreamMerge(Set<Streamable> values) {
+            this.values = values;
+        }
+
+        public DownstreamMerge(StreamInput stream) {
+            this.values = LinkedHashSet.ofAll(stream.readVector());
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeTypedVector(values.toVector());
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return new DownstreamMerge(values.addAll(values(other)));
+        }
+
+        @Override
+        public String toString() {
+            return "DownstreamMerge{" +
+                "values=" + values +
+                '}';
+        }
+    }
+
+    private static Set<Streamable> values(DeltaUpdate update) {
+        if (update instanceof DownstreamAdd) {
+            return LinkedHashSet.of(((DownstreamAdd) update).value);
+        } else if (update instanceof DownstreamMerge) {
+            return ((DownstreamMerge) update).values;
+        } else {
+            throw new IllegalArgumentException("unexpected delta: " + update);
+        }
+    }
+
     private final long id;
     private final Replicator replicator;
 
@@ -71,11 +119,21 @@ public class GSet implements CmRDT {
         }
     }
 
+    /**
+     * Local add is logged once per value and no later entry supersedes it, so no entry is dominated.
+     * Log of set is bounded by bucket snapshot and truncate instead of compaction.
+     */
     @Override
     public boolean shouldCompact(Streamable event) {
         return false;
     }
 
+    @Override
+    public Vector<Streamable> snapshot() {
+        Set<Streamable> values = this.values;
+        return values.isEmpty() ? Vector.empty() : Vector.of(new DownstreamMerge(values));
+    }
+
     @Override
     public void sourceUpdate(SourceUpdate update) {
         if (update instanceof SourceAdd) {
@@ -91,14 +149,21 @@ public class GSet implements CmRDT {
             if (!values.contains(add.value)) {
                 values = values.add(add.value);
             }
+        } else if (update instanceof DownstreamMerge) {
+            values = values.addAll(((DownstreamMerge) update).values);
         }
     }
 
-    public synchronized void add(Streamable value) {
-        if (!values.contains(value)) {
+    public void add(Streamable value) {
+        synchronized (this) {
+            if (values.contains(value)) {
+                return;
+            }
             values = values.add(value);
-            replicator.append(id, new DownstreamAdd(value));
         }
+        // appended outside of lock, adds commute so reordered appends converge,
+        // and downstream updates do not wait for appender blocked by writer
+        replicator.append(id, new DownstreamAdd(value));
     }
 
     public Set<Streamable> values() {
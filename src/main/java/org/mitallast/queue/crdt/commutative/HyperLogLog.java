@@ -0,0 +1,290 @@
+package org.mitallast.queue.crdt.commutative;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import javaslang.collection.Vector;
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Cardinality estimator with fixed size state of 2^precision registers.
+ * Register keeps max rank of hashes routed to it, so merge is register-wise max
+ * and update of register is overwritten by update with greater rank.
+ * Only adds which increase register are replicated.
+ */
+public class HyperLogLog implements CmRDT {
+    private final static HashFunction hash = Hashing.murmur3_128();
+
+    public static class SourceAdd implements SourceUpdate {
+        private final long hash;
+
+        public SourceAdd(long hash) {
+            this.hash = hash;
+        }
+
+        public SourceAdd(StreamInput stream) {
+            this.hash = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeLong(hash);
+        }
+    }
+
+    public static class DownstreamAssign implements OverwriteUpdate, DeltaUpdate {
+        private final int index;
+        private final byte rank;
+
+        public DownstreamAssign(int index, byte rank) {
+            this.index = index;
+            this.rank = rank;
+        }
+
+        public DownstreamAssign(StreamInput stream) {
+            this.index = stream.readInt();
+            this.rank = stream.readByte();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeInt(index);
+            stream.write(rank);
+        }
+
+        @Override
+        public long key() {
+            return index;
+        }
+
+        @Override
+        public long version() {
+            return rank;
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return new DownstreamMerge(new int[]{index}, new byte[]{rank}).join(other);
+        }
+    }
+
+    /**
+     * Joined delta or full state, non-zero registers ordered by index
+     */
+    public static class DownstreamMerge implements DeltaUpdate {
+        private final int[] indexes;
+        private final byte[] ranks;
+
+        public DownstreamMerge(int[] indexes, byte[] ranks) {
+            this.indexes = indexes;
+            this.ranks = ranks;
+        }
+
+        public DownstreamMerge(StreamInput stream) {
+            int size = stream.readInt();
+            this.indexes = new int[size];
+            this.ranks = new byte[size];
+            for (int i = 0; i < size; i++) {
+                indexes[i] = stream.readInt();
+            }
+            stream.read(ranks);
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeInt(indexes.length);
+            for (int index : indexes) {
+                stream.writeInt(index);
+            }
+            stream.write(ranks);
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            if (other instanceof DownstreamAssign) {
+                DownstreamAssign assign = (DownstreamAssign) other;
+                return join(new int[]{assign.index}, new byte[]{assign.rank});
+            } else if (other instanceof DownstreamMerge) {
+                DownstreamMerge merge = (DownstreamMerge) other;
+                return join(merge.indexes, merge.ranks);
+            } else {
+                throw new IllegalArgumentException("unexpected delta: " + other);
+            }
+        }
+
+        private DownstreamMerge join(int[] otherIndexes, byte[] otherRanks) {
+            int[] indexes = new int[this.indexes.length + otherIndexes.length];
+            byte[] ranks = new byte[indexes.length];
+            int i = 0, j = 0, size = 0;
+            while (i < this.indexes.length || j < otherIndexes.length) {
+                if (j == otherIndexes.length || (i < this.indexes.length && this.indexes[i] < otherIndexes[j])) {
+                    indexes[size] = this.indexes[i];
+                    ranks[size++] = this.ranks[i++];
+                } else if (i == this.indexes.length || otherIndexes[j] < this.indexes[i]) {
+                    indexes[size] = otherIndexes[j];
+                    ranks[size++] = otherRanks[j++];
+                } else {
+                    indexes[size] = this.indexes[i];
+                    ranks[size++] = (byte) Math.max(this.ranks[i++], otherRanks[j++]);
+                }
+            }
+            if (size < indexes.length) {
+                return new DownstreamMerge(Arrays.copyOf(indexes, size), Arrays.copyOf(ranks, size));
+            }
+            return new DownstreamMerge(indexes, ranks);
+        }
+    }
+
+    private final long id;
+    private final Replicator replicator;
+    private final int precision;
+    private final byte[] registers;
+    private final double alpha;
+
+    // count of registers per rank is maintained on update, estimate does not scan registers
+    private final int[] histogram = new int[66];
+
+    public HyperLogLog(long id, Replicator replicator, int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("precision should be in range [4, 18]: " + precision);
+        }
+        this.id = id;
+        this.replicator = replicator;
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+        this.histogram[0] = registers.length;
+        switch (registers.length) {
+            case 16:
+                alpha = 0.673;
+                break;
+            case 32:
+                alpha = 0.697;
+                break;
+            case 64:
+                alpha = 0.709;
+                break;
+            default:
+                alpha = 0.7213 / (1 + 1.079 / registers.length);
+        }
+    }
+
+    @Override
+    public void update(Streamable event) {
+        if (event instanceof SourceUpdate) {
+            sourceUpdate((SourceUpdate) event);
+        } else if (event instanceof DownstreamUpdate) {
+            downstreamUpdate((DownstreamUpdate) event);
+        }
+    }
+
+    @Override
+    public synchronized boolean shouldCompact(Streamable event) {
+        if (event instanceof DownstreamAssign) {
+            DownstreamAssign assign = (DownstreamAssign) event;
+            return assign.rank < registers[assign.index];
+        }
+        if (event instanceof DownstreamMerge) {
+            DownstreamMerge merge = (DownstreamMerge) event;
+            for (int i = 0; i < merge.indexes.length; i++) {
+                if (merge.ranks[i] >= registers[merge.indexes[i]]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Vector<Streamable> snapshot() {
+        int size = registers.length - histogram[0];
+        if (size == 0) {
+            return Vector.empty();
+        }
+        int[] indexes = new int[size];
+        byte[] ranks = new byte[size];
+        for (int index = 0, i = 0; index < registers.length; index++) {
+            if (registers[index] > 0) {
+                indexes[i] = index;
+                ranks[i++] = registers[index];
+            }
+        }
+        return Vector.of(new DownstreamMerge(indexes, ranks));
+    }
+
+    @Override
+    public void sourceUpdate(SourceUpdate update) {
+        if (update instanceof SourceAdd) {
+            addHash(((SourceAdd) update).hash);
+        }
+    }
+
+    @Override
+    public synchronized void downstreamUpdate(DownstreamUpdate update) {
+        if (update instanceof DownstreamAssign) {
+            DownstreamAssign assign = (DownstreamAssign) update;
+            max(assign.index, assign.rank);
+        } else if (update instanceof DownstreamMerge) {
+            DownstreamMerge merge = (DownstreamMerge) update;
+            for (int i = 0; i < merge.indexes.length; i++) {
+                max(merge.indexes[i], merge.ranks[i]);
+            }
+        }
+    }
+
+    private boolean max(int index, byte rank) {
+        byte current = registers[index];
+        if (current >= rank) {
+            return false;
+        }
+        histogram[current]--;
+        histogram[rank]++;
+        registers[index] = rank;
+        return true;
+    }
+
+    public void add(String value) {
+        addHash(hash.hashString(value, StandardCharsets.UTF_8).asLong());
+    }
+
+    public void add(long value) {
+        addHash(hash.hashLong(value).asLong());
+    }
+
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        // registers only grow, racy read skips lock for hashes which do not change state
+        if (registers[index] >= rank) {
+            return;
+        }
+        boolean updated;
+        synchronized (this) {
+            updated = max(index, rank);
+        }
+        // appended outside of lock, registers only grow so reordered appends converge,
+        // and compaction or snapshot do not wait for appender blocked by full queue
+        if (updated) {
+            replicator.append(id, new DownstreamAssign(index, rank));
+        }
+    }
+
+    public synchronized long count() {
+        double m = registers.length;
+        double sum = 0;
+        for (int rank = histogram.length - 1; rank >= 0; rank--) {
+            sum += Math.scalb((double) histogram[rank], -rank);
+        }
+        double estimate = alpha * m * m / sum;
+        if (estimate <= 2.5 * m && histogram[0] > 0) {
+            // small range correction, linear counting
+            estimate = m * Math.log(m / histogram[0]);
+        }
+        return Math.round(estimate);
+    }
+}
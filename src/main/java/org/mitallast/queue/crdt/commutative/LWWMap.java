@@ -0,0 +1,343 @@
+package org.mitallast.queue.crdt.commutative;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import javaslang.collection.HashMap;
+import javaslang.collection.Map;
+import javaslang.collection.Seq;
+import javaslang.collection.Vector;
+import javaslang.control.Option;
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Map of last-writer-wins registers, one resource holds many keyed values.
+ * Remove is a register without value, it is kept to override concurrent assigns with lower timestamp.
+ */
+public class LWWMap implements CmRDT {
+    private final static int SNAPSHOT_BATCH = 1024;
+    private final static HashFunction hash = Hashing.murmur3_128();
+
+    public static class SourceAssign implements SourceUpdate {
+        private final String key;
+        private final Streamable value;
+        private final long timestamp;
+
+        public SourceAssign(String key, Streamable value, long timestamp) {
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        public SourceAssign(StreamInput stream) {
+            this.key = stream.readText();
+            this.value = stream.readStreamable();
+            this.timestamp = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeText(key);
+            stream.writeClass(value.getClass());
+            stream.writeStreamable(value);
+            stream.writeLong(timestamp);
+        }
+    }
+
+    public static class SourceRemove implements SourceUpdate {
+        private final String key;
+        private final long timestamp;
+
+        public SourceRemove(String key, long timestamp) {
+            this.key = key;
+            this.timestamp = timestamp;
+        }
+
+        public SourceRemove(StreamInput stream) {
+            this.key = stream.readText();
+            this.timestamp = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeText(key);
+            stream.writeLong(timestamp);
+        }
+    }
+
+    /**
+     * Value of key, empty if key is removed.
+     * Registers are ordered by timestamp, ties are broken by writer replica id and its write counter,
+     * so concurrent writes with equal timestamp resolve to the same register at all replicas.
+     */
+    public static class Register implements Streamable {
+        private final Option<Streamable> value;
+        private final long timestamp;
+        private final long replica;
+        private final long counter;
+
+        public Register(Option<Streamable> value, long timestamp, long replica, long counter) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.replica = replica;
+            this.counter = counter;
+        }
+
+        public Register(StreamInput stream) {
+            this.value = stream.readBoolean() ? Option.some(stream.readStreamable()) : Option.none();
+            this.timestamp = stream.readLong();
+            this.replica = stream.readLong();
+            this.counter = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeBoolean(value.isDefined());
+            if (value.isDefined()) {
+                stream.writeClass(value.get().getClass());
+                stream.writeStreamable(value.get());
+            }
+            stream.writeLong(timestamp);
+            stream.writeLong(replica);
+            stream.writeLong(counter);
+        }
+
+        public Option<Streamable> value() {
+            return value;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+
+        private boolean isNewer(Register other) {
+            if (timestamp != other.timestamp) {
+                return timestamp > other.timestamp;
+            }
+            if (replica != other.replica) {
+                return replica > other.replica;
+            }
+            return counter > other.counter;
+        }
+
+        private static Register newest(Register a, Register b) {
+            return b.isNewer(a) ? b : a;
+        }
+    }
+
+    /**
+     * Register of one key, overwritten by newer register of the same key.
+     * Overwrite key is 64 bit hash of map key, so collision within one coalescing batch is negligible.
+     */
+    public static class DownstreamAssign implements OverwriteUpdate, DeltaUpdate {
+        private final String key;
+        private final Register register;
+        private final long hashKey;
+
+        public DownstreamAssign(String key, Register register) {
+            this.key = key;
+            this.register = register;
+            this.hashKey = hash.hashString(key, StandardCharsets.UTF_8).asLong();
+        }
+
+        public DownstreamAssign(StreamInput stream) {
+            this(stream.readText(), new Register(stream));
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeText(key);
+            register.writeTo(stream);
+        }
+
+        @Override
+        public long key() {
+            return hashKey;
+        }
+
+        @Override
+        public long version() {
+            return register.timestamp;
+        }
+
+        @Override
+        public boolean overwrites(OverwriteUpdate other) {
+            // equal timestamps are ordered by replica and counter, as registers are
+            if (other instanceof DownstreamAssign) {
+                return !((DownstreamAssign) other).register.isNewer(register);
+            }
+            return version() >= other.version();
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return new DownstreamMerge(HashMap.of(key, register)).join(other);
+        }
+    }
+
+    /**
+     * Joined delta or part of full state, newest register per key
+     */
+    public static class DownstreamMerge implements DeltaUpdate {
+        private final Map<String, Register> registers;
+
+        public DownstreamMerge(Map<String, Register> registers) {
+            this.registers = registers;
+        }
+
+        public DownstreamMerge(StreamInput stream) {
+            int size = stream.readInt();
+            Map<String, Register> registers = HashMap.empty();
+            for (int i = 0; i < size; i++) {
+                registers = registers.put(stream.readText(), new Register(stream));
+            }
+            this.registers = registers;
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeInt(registers.size());
+            registers.forEach((key, register) -> {
+                stream.writeText(key);
+                register.writeTo(stream);
+            });
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            if (other instanceof DownstreamAssign) {
+                DownstreamAssign assign = (DownstreamAssign) other;
+                return new DownstreamMerge(registers.merge(HashMap.of(assign.key, assign.register), Register::newest));
+            } else if (other instanceof DownstreamMerge) {
+                return new DownstreamMerge(registers.merge(((DownstreamMerge) other).registers, Register::newest));
+            } else {
+                throw new IllegalArgumentException("unexpected delta: " + other);
+            }
+        }
+    }
+
+    private final long id;
+    private final long replica;
+    private final Replicator replicator;
+    private final AtomicLong counter = new AtomicLong();
+
+    // registers are replaced at once, so readers do not take lock
+    private final ConcurrentHashMap<String, Register> registers = new ConcurrentHashMap<>();
+
+    public LWWMap(long id, long replica, Replicator replicator) {
+        this.id = id;
+        this.replica = replica;
+        this.replicator = replicator;
+    }
+
+    @Override
+    public void update(Streamable event) {
+        if (event instanceof SourceUpdate) {
+            sourceUpdate((SourceUpdate) event);
+        } else if (event instanceof DownstreamUpdate) {
+            downstreamUpdate((DownstreamUpdate) event);
+        }
+    }
+
+    @Override
+    public boolean shouldCompact(Streamable event) {
+        if (event instanceof DownstreamAssign) {
+            DownstreamAssign assign = (DownstreamAssign) event;
+            return isOverridden(assign.key, assign.register);
+        }
+        if (event instanceof DownstreamMerge) {
+            return ((DownstreamMerge) event).registers.forAll(entry -> isOverridden(entry._1, entry._2));
+        }
+        return false;
+    }
+
+    @Override
+    public Vector<Streamable> snapshot() {
+        ArrayList<Streamable> snapshot = new ArrayList<>();
+        Map<String, Register> batch = HashMap.empty();
+        // registers are not removed from map
+        for (String key : registers.keySet()) {
+            batch = batch.put(key, registers.get(key));
+            if (batch.size() == SNAPSHOT_BATCH) {
+                snapshot.add(new DownstreamMerge(batch));
+                batch = HashMap.empty();
+            }
+        }
+        if (!batch.isEmpty()) {
+            snapshot.add(new DownstreamMerge(batch));
+        }
+        return Vector.ofAll(snapshot);
+    }
+
+    @Override
+    public void sourceUpdate(SourceUpdate update) {
+        if (update instanceof SourceAssign) {
+            SourceAssign assign = (SourceAssign) update;
+            assign(assign.key, assign.value, assign.timestamp);
+        } else if (update instanceof SourceRemove) {
+            SourceRemove remove = (SourceRemove) update;
+            remove(remove.key, remove.timestamp);
+        }
+    }
+
+    @Override
+    public void downstreamUpdate(DownstreamUpdate update) {
+        if (update instanceof DownstreamAssign) {
+            DownstreamAssign assign = (DownstreamAssign) update;
+            merge(assign.key, assign.register);
+        } else if (update instanceof DownstreamMerge) {
+            ((DownstreamMerge) update).registers.forEach(this::merge);
+        }
+    }
+
+    private void merge(String key, Register register) {
+        if (register.replica == replica) {
+            // own registers are restored from log or snapshot, next local write should be newer
+            counter.accumulateAndGet(register.counter, Math::max);
+        }
+        registers.merge(key, register, Register::newest);
+    }
+
+    public void assign(String key, Streamable value, long timestamp) {
+        update(key, new Register(Option.some(value), timestamp, replica, counter.incrementAndGet()));
+    }
+
+    public void remove(String key, long timestamp) {
+        update(key, new Register(Option.none(), timestamp, replica, counter.incrementAndGet()));
+    }
+
+    private void update(String key, Register register) {
+        // registers of key are ordered by timestamp, so appends of concurrent updates could be reordered
+        if (registers.merge(key, register, Register::newest) == register) {
+            replicator.append(id, new DownstreamAssign(key, register));
+        }
+    }
+
+    public Option<Streamable> get(String key) {
+        Register register = registers.get(key);
+        return register == null ? Option.none() : register.value;
+    }
+
+    public Map<String, Streamable> get(Seq<String> keys) {
+        Map<String, Streamable> values = HashMap.empty();
+        for (String key : keys) {
+            Option<Streamable> value = get(key);
+            if (value.isDefined()) {
+                values = values.put(key, value.get());
+            }
+        }
+        return values;
+    }
+
+    private boolean isOverridden(String key, Register register) {
+        Register current = registers.get(key);
+        return current != null && current.isNewer(register);
+    }
+}
@@ -1,5 +1,6 @@
 package org.mitallast.queue.crdt.commutative;
 
+import javaslang.collection.Vector;
 import javaslang.control.Option;
 import org.mitallast.queue.common.stream.StreamInput;
 import org.mitallast.queue.common.stream.StreamOutput;
@@ -31,7 +32,7 @@ public class LWWRegister implements CmRDT {
         }
     }
 
-    public static class DownstreamAssign implements DownstreamUpdate {
+    public static class DownstreamAssign implements OverwriteUpdate {
 
         private final Streamable value;
         private final long timestamp;
@@ -53,13 +54,22 @@ public class LWWRegister implements CmRDT {
             stream.writeLong(timestamp);
         }
 
+        @Override
+        public long key() {
+            return 0;
+        }
+
+        @Override
+        public long version() {
+            return timestamp;
+        }
     }
 
     private final long id;
     private final Replicator replicator;
 
-    private volatile Option<Streamable> value = Option.none();
-    private volatile long timestamp = 0;
+    // value with timestamp are replaced at once, so readers do not take lock held by blocked writer
+    private volatile DownstreamAssign last = null;
 
     public LWWRegister(long id, Replicator replicator) {
         this.id = id;
@@ -78,7 +88,13 @@ public class LWWRegister implements CmRDT {
     @Override
     public boolean shouldCompact(Streamable event) {
         return event instanceof DownstreamAssign &&
-            ((DownstreamAssign) event).timestamp < timestamp;
+            ((DownstreamAssign) event).timestamp < timestamp();
+    }
+
+    @Override
+    public Vector<Streamable> snapshot() {
+        DownstreamAssign last = this.last;
+        return last == null ? Vector.empty() : Vector.of(last);
     }
 
     @Override
@@ -94,23 +110,33 @@ public class LWWRegister implements CmRDT {
         if (update instanceof DownstreamAssign) {
             DownstreamAssign set = (DownstreamAssign) update;
             synchronized (this) {
-                if (set.timestamp > timestamp) {
-                    value = Option.some(set.value);
-                    timestamp = set.timestamp;
+                if (set.timestamp > timestamp()) {
+                    last = set;
                 }
             }
         }
     }
 
-    public synchronized void assign(Streamable value, long timestamp) {
-        if (this.timestamp < timestamp) {
-            this.value = Option.some(value);
-            this.timestamp = timestamp;
-            replicator.append(id, new DownstreamAssign(value, timestamp));
+    public void assign(Streamable value, long timestamp) {
+        DownstreamAssign assign;
+        synchronized (this) {
+            if (timestamp() >= timestamp) {
+                return;
+            }
+            assign = new DownstreamAssign(value, timestamp);
+            last = assign;
         }
+        // appended outside of lock, assigns are ordered by timestamp so reordered appends converge,
+        // and downstream updates do not wait for appender blocked by writer
+        replicator.append(id, assign);
     }
 
     public Option<Streamable> value() {
-        return value;
+        return Option.of(last).map(last -> last.value);
+    }
+
+    private long timestamp() {
+        DownstreamAssign last = this.last;
+        return last == null ? 0 : last.timestamp;
     }
 }
@@ -0,0 +1,636 @@
+package org.mitallast.queue.crdt.commutative;
+
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import javaslang.collection.HashMap;
+import javaslang.collection.LinkedHashSet;
+import javaslang.collection.Map;
+import javaslang.collection.Set;
+import javaslang.collection.Vector;
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Observed-remove set, add wins over concurrent remove.
+ *
+ * Each add is tagged with unique dot (replica, counter), counter is incremented by replica on each add.
+ * Element keeps latest dot per replica as flat array of (replica, counter) pairs, remove carries observed dots.
+ * Instead of tombstones set keeps causal context: per replica counter below which all dots are seen,
+ * and dots above it seen out of order. Seen dot which is not present in set is removed.
+ *
+ * Every downstream update carries counter of origin replica, and log of origin is delivered in order,
+ * so context counter of origin is advanced by each update, and out of order dots are collected once
+ * counter passes them. Entries of removed adds are not required by replicas which have not seen them,
+ * so they are compacted from log.
+ */
+public class ORSet implements CmRDT {
+
+    public static class SourceAdd implements SourceUpdate {
+        private final Streamable value;
+
+        public SourceAdd(Streamable value) {
+            this.value = value;
+        }
+
+        public SourceAdd(StreamInput stream) {
+            this.value = stream.readStreamable();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeClass(value.getClass());
+            stream.writeStreamable(value);
+        }
+    }
+
+    public static class SourceRemove implements SourceUpdate {
+        private final Streamable value;
+
+        public SourceRemove(Streamable value) {
+            this.value = value;
+        }
+
+        public SourceRemove(StreamInput stream) {
+            this.value = stream.readStreamable();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeClass(value.getClass());
+            stream.writeStreamable(value);
+        }
+    }
+
+    public static class DownstreamAdd implements DeltaUpdate {
+        private final Streamable value;
+        private final long replica;
+        private final long counter;
+
+        public DownstreamAdd(Streamable value, long replica, long counter) {
+            this.value = value;
+            this.replica = replica;
+            this.counter = counter;
+        }
+
+        public DownstreamAdd(StreamInput stream) {
+            this.value = stream.readStreamable();
+            this.replica = stream.readLong();
+            this.counter = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeClass(value.getClass());
+            stream.writeStreamable(value);
+            stream.writeLong(replica);
+            stream.writeLong(counter);
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return DownstreamMerge.of(this).join(other);
+        }
+
+        @Override
+        public String toString() {
+            return "DownstreamAdd{" +
+                "value=" + value +
+                ", replica=" + replica +
+                ", counter=" + counter +
+                '}';
+        }
+    }
+
+    public static class DownstreamRemove implements DeltaUpdate {
+        private final Streamable value;
+        private final long replica;
+        private final long counter;
+        private final long[] dots;
+
+        public DownstreamRemove(Streamable value, long replica, long counter, long[] dots) {
+            this.value = value;
+            this.replica = replica;
+            this.counter = counter;
+            this.dots = dots;
+        }
+
+        public DownstreamRemove(StreamInput stream) {
+            this.value = stream.readStreamable();
+            this.replica = stream.readLong();
+            this.counter = stream.readLong();
+            this.dots = readDots(stream);
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeClass(value.getClass());
+            stream.writeStreamable(value);
+            stream.writeLong(replica);
+            stream.writeLong(counter);
+            writeDots(stream, dots);
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return DownstreamMerge.of(this).join(other);
+        }
+
+        @Override
+        public String toString() {
+            return "DownstreamRemove{" +
+                "value=" + value +
+                ", replica=" + replica +
+                ", counter=" + counter +
+                ", dots=" + Arrays.toString(dots) +
+                '}';
+        }
+    }
+
+    /**
+     * Joined deltas of origin replica: latest added and removed dots per element, and counters of origins
+     */
+    public static class DownstreamMerge implements DeltaUpdate {
+        private final Map<Streamable, long[]> added;
+        private final Map<Streamable, long[]> removed;
+        private final Map<Long, Long> counters;
+
+        public DownstreamMerge(Map<Streamable, long[]> added, Map<Streamable, long[]> removed, Map<Long, Long> counters) {
+            this.added = added;
+            this.removed = removed;
+            this.counters = counters;
+        }
+
+        public DownstreamMerge(StreamInput stream) {
+            this.added = readElements(stream);
+            this.removed = readElements(stream);
+            int size = stream.readInt();
+            Map<Long, Long> counters = HashMap.empty();
+            for (int i = 0; i < size; i++) {
+                counters = counters.put(stream.readLong(), stream.readLong());
+            }
+            this.counters = counters;
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            writeElements(stream, added);
+            writeElements(stream, removed);
+            stream.writeInt(counters.size());
+            counters.forEach((replica, counter) -> {
+                stream.writeLong(replica);
+                stream.writeLong(counter);
+            });
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            DownstreamMerge merge = of(other);
+            return new DownstreamMerge(
+                added.merge(merge.added, ORSet::maxDots),
+                removed.merge(merge.removed, ORSet::maxDots),
+                counters.merge(merge.counters, Math::max)
+            );
+        }
+
+        private static DownstreamMerge of(DeltaUpdate update) {
+            if (update instanceof DownstreamMerge) {
+                return (DownstreamMerge) update;
+            } else if (update instanceof DownstreamAdd) {
+                DownstreamAdd add = (DownstreamAdd) update;
+                return new DownstreamMerge(
+                    HashMap.of(add.value, new long[]{add.replica, add.counter}),
+                    HashMap.empty(),
+                    HashMap.of(add.replica, add.counter)
+                );
+            } else if (update instanceof DownstreamRemove) {
+                DownstreamRemove remove = (DownstreamRemove) update;
+                return new DownstreamMerge(
+                    HashMap.empty(),
+                    HashMap.of(remove.value, remove.dots),
+                    HashMap.of(remove.replica, remove.counter)
+                );
+            } else {
+                throw new IllegalArgumentException("unexpected delta: " + update);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "DownstreamMerge{" +
+                "added=" + added.size() +
+                ", removed=" + removed.size() +
+                ", counters=" + counters +
+                '}';
+        }
+    }
+
+    /**
+     * Full state: present elements with their dots, and causal context of seen dots
+     */
+    public static class DownstreamState implements DownstreamUpdate {
+        private final Map<Streamable, long[]> values;
+        private final long[] counters;
+        private final long[] outOfOrder;
+
+        public DownstreamState(Map<Streamable, long[]> values, long[] counters, long[] outOfOrder) {
+            this.values = values;
+            this.counters = counters;
+            this.outOfOrder = outOfOrder;
+        }
+
+        public DownstreamState(StreamInput stream) {
+            this.values = readElements(stream);
+            this.counters = readDots(stream);
+            this.outOfOrder = readDots(stream);
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            writeElements(stream, values);
+            writeDots(stream, counters);
+            writeDots(stream, outOfOrder);
+        }
+
+        private boolean isSeen(long replica, long counter) {
+            if (counter <= dot(counters, replica)) {
+                return true;
+            }
+            for (int i = 0; i < outOfOrder.length; i += 2) {
+                if (outOfOrder[i] == replica && outOfOrder[i + 1] == counter) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "DownstreamState{" +
+                "values=" + values.size() +
+                ", counters=" + Arrays.toString(counters) +
+                ", outOfOrder=" + Arrays.toString(outOfOrder) +
+                '}';
+        }
+    }
+
+    private static final long[] EMPTY = new long[0];
+
+    private final long id;
+    private final long replica;
+    private final Replicator replicator;
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    private final LinkedHashMap<Streamable, long[]> elements = new LinkedHashMap<>();
+    private final TLongLongMap counters = new TLongLongHashMap();
+    private final TLongObjectMap<TLongSet> outOfOrder = new TLongObjectHashMap<>();
+
+    public ORSet(long id, long replica, Replicator replicator) {
+        this.id = id;
+        this.replica = replica;
+        this.replicator = replicator;
+    }
+
+    @Override
+    public void update(Streamable event) {
+        if (event instanceof SourceUpdate) {
+            sourceUpdate((SourceUpdate) event);
+        } else if (event instanceof DownstreamUpdate) {
+            downstreamUpdate((DownstreamUpdate) event);
+        }
+    }
+
+    /**
+     * Add is not required once its dot is removed or replaced by later add of the same replica.
+     * The latest add of this replica is kept, on restore it recovers counter of replica, so dots are not reused.
+     * Remove is kept, replicas which have seen removed dots from other logs require it.
+     */
+    @Override
+    public synchronized boolean shouldCompact(Streamable event) {
+        if (event instanceof DownstreamAdd) {
+            DownstreamAdd add = (DownstreamAdd) event;
+            return isObsolete(add.value, add.replica, add.counter);
+        }
+        if (event instanceof DownstreamMerge) {
+            DownstreamMerge merge = (DownstreamMerge) event;
+            return merge.removed.isEmpty() && merge.added.forAll(entry -> {
+                long[] dots = entry._2;
+                for (int i = 0; i < dots.length; i += 2) {
+                    if (!isObsolete(entry._1, dots[i], dots[i + 1])) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+        return false;
+    }
+
+    private boolean isObsolete(Streamable value, long replica, long counter) {
+        return counter < counters.get(replica) && dot(elements.getOrDefault(value, EMPTY), replica) != counter;
+    }
+
+    @Override
+    public synchronized Vector<Streamable> snapshot() {
+        if (elements.isEmpty() && counters.isEmpty()) {
+            return Vector.empty();
+        }
+        long[] counters = new long[this.counters.size() * 2];
+        int[] index = {0};
+        this.counters.forEachEntry((replica, counter) -> {
+            counters[index[0]++] = replica;
+            counters[index[0]++] = counter;
+            return true;
+        });
+        int size = 0;
+        for (TLongSet dots : outOfOrder.valueCollection()) {
+            size += dots.size();
+        }
+        long[] outOfOrder = new long[size * 2];
+        index[0] = 0;
+        this.outOfOrder.forEachEntry((replica, dots) -> {
+            dots.forEach(counter -> {
+                outOfOrder[index[0]++] = replica;
+                outOfOrder[index[0]++] = counter;
+                return true;
+            });
+            return true;
+        });
+        return Vector.of(new DownstreamState(HashMap.ofAll(elements), counters, outOfOrder));
+    }
+
+    @Override
+    public void sourceUpdate(SourceUpdate update) {
+        if (update instanceof SourceAdd) {
+            add(((SourceAdd) update).value);
+        } else if (update instanceof SourceRemove) {
+            remove(((SourceRemove) update).value);
+        }
+    }
+
+    @Override
+    public synchronized void downstreamUpdate(DownstreamUpdate update) {
+        if (update instanceof DownstreamAdd) {
+            DownstreamAdd add = (DownstreamAdd) update;
+            applyAdd(add.value, add.replica, add.counter);
+            advance(add.replica, add.counter);
+        } else if (update instanceof DownstreamRemove) {
+            DownstreamRemove remove = (DownstreamRemove) update;
+            applyRemove(remove.value, remove.dots);
+            advance(remove.replica, remove.counter);
+        } else if (update instanceof DownstreamMerge) {
+            DownstreamMerge merge = (DownstreamMerge) update;
+            merge.added.forEach((value, dots) -> {
+                for (int i = 0; i < dots.length; i += 2) {
+                    applyAdd(value, dots[i], dots[i + 1]);
+                }
+            });
+            merge.removed.forEach(this::applyRemove);
+            merge.counters.forEach(this::advance);
+        } else if (update instanceof DownstreamState) {
+            applyState((DownstreamState) update);
+        }
+    }
+
+    private void applyAdd(Streamable value, long replica, long counter) {
+        long[] dots = elements.getOrDefault(value, EMPTY);
+        long current = dot(dots, replica);
+        if (current >= counter) {
+            return;
+        }
+        if (isSeen(replica, counter)) {
+            // dot is removed, previous dot of the same replica is observed by it and removed too
+            if (current > 0) {
+                put(value, withoutDot(dots, replica));
+            }
+        } else {
+            put(value, withDot(dots, replica, counter));
+        }
+    }
+
+    private void applyRemove(Streamable value, long[] removed) {
+        long[] dots = elements.get(value);
+        for (int i = 0; i < removed.length; i += 2) {
+            long replica = removed[i];
+            long counter = removed[i + 1];
+            if (dots != null) {
+                long current = dot(dots, replica);
+                if (current > 0 && current <= counter) {
+                    dots = withoutDot(dots, replica);
+                }
+            }
+            seen(replica, counter);
+        }
+        if (dots != null) {
+            put(value, dots);
+        }
+    }
+
+    private void applyState(DownstreamState state) {
+        state.values.forEach((value, dots) -> {
+            for (int i = 0; i < dots.length; i += 2) {
+                applyAdd(value, dots[i], dots[i + 1]);
+            }
+        });
+        // dots seen by other replica and not present in its state are removed
+        elements.replaceAll((value, dots) -> {
+            long[] other = state.values.get(value).getOrElse(EMPTY);
+            for (int i = dots.length - 2; i >= 0; i -= 2) {
+                if (dot(other, dots[i]) < dots[i + 1] && state.isSeen(dots[i], dots[i + 1])) {
+                    dots = withoutDot(dots, dots[i]);
+                }
+            }
+            return dots;
+        });
+        elements.values().removeIf(dots -> dots.length == 0);
+        for (int i = 0; i < state.outOfOrder.length; i += 2) {
+            seen(state.outOfOrder[i], state.outOfOrder[i + 1]);
+        }
+        for (int i = 0; i < state.counters.length; i += 2) {
+            advance(state.counters[i], state.counters[i + 1]);
+        }
+    }
+
+    private void put(Streamable value, long[] dots) {
+        if (dots.length == 0) {
+            elements.remove(value);
+        } else {
+            elements.put(value, dots);
+        }
+    }
+
+    private boolean isSeen(long replica, long counter) {
+        if (counter <= counters.get(replica)) {
+            return true;
+        }
+        TLongSet dots = outOfOrder.get(replica);
+        return dots != null && dots.contains(counter);
+    }
+
+    private void seen(long replica, long counter) {
+        if (counter > counters.get(replica)) {
+            TLongSet dots = outOfOrder.get(replica);
+            if (dots == null) {
+                dots = new TLongHashSet();
+                outOfOrder.put(replica, dots);
+            }
+            dots.add(counter);
+        }
+    }
+
+    /**
+     * All dots of origin replica up to counter are seen, previous updates of its log are either applied
+     * or compacted as removed. Out of order dots below counter are collected.
+     */
+    private void advance(long replica, long counter) {
+        if (counter <= counters.get(replica)) {
+            return;
+        }
+        counters.put(replica, counter);
+        TLongSet dots = outOfOrder.get(replica);
+        if (dots != null) {
+            TLongIterator iterator = dots.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() <= counter) {
+                    iterator.remove();
+                }
+            }
+            if (dots.isEmpty()) {
+                outOfOrder.remove(replica);
+            }
+        }
+    }
+
+    /**
+     * Log of replica should be ordered by counter, so updates are appended under append lock.
+     * State lock is not held while append waits for full queue, compaction and snapshot take it.
+     */
+    public void add(Streamable value) {
+        appendLock.lock();
+        try {
+            long counter;
+            synchronized (this) {
+                counter = counters.get(replica) + 1;
+                counters.put(replica, counter);
+                put(value, withDot(elements.getOrDefault(value, EMPTY), replica, counter));
+            }
+            replicator.append(id, new DownstreamAdd(value, replica, counter));
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public boolean remove(Streamable value) {
+        appendLock.lock();
+        try {
+            DownstreamRemove remove;
+            synchronized (this) {
+                long[] dots = elements.remove(value);
+                if (dots == null) {
+                    return false;
+                }
+                remove = new DownstreamRemove(value, replica, counters.get(replica), dots);
+            }
+            replicator.append(id, remove);
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public synchronized boolean contains(Streamable value) {
+        return elements.containsKey(value);
+    }
+
+    public synchronized Set<Streamable> values() {
+        return LinkedHashSet.ofAll(elements.keySet());
+    }
+
+    private static long dot(long[] dots, long replica) {
+        for (int i = 0; i < dots.length; i += 2) {
+            if (dots[i] == replica) {
+                return dots[i + 1];
+            }
+        }
+        return 0;
+    }
+
+    private static long[] withDot(long[] dots, long replica, long counter) {
+        for (int i = 0; i < dots.length; i += 2) {
+            if (dots[i] == replica) {
+                long[] updated = dots.clone();
+                updated[i + 1] = counter;
+                return updated;
+            }
+        }
+        long[] updated = Arrays.copyOf(dots, dots.length + 2);
+        updated[dots.length] = replica;
+        updated[dots.length + 1] = counter;
+        return updated;
+    }
+
+    private static long[] withoutDot(long[] dots, long replica) {
+        for (int i = 0; i < dots.length; i += 2) {
+            if (dots[i] == replica) {
+                long[] updated = new long[dots.length - 2];
+                System.arraycopy(dots, 0, updated, 0, i);
+                System.arraycopy(dots, i + 2, updated, i, dots.length - i - 2);
+                return updated;
+            }
+        }
+        return dots;
+    }
+
+    private static long[] maxDots(long[] a, long[] b) {
+        long[] merged = a;
+        for (int i = 0; i < b.length; i += 2) {
+            if (dot(merged, b[i]) < b[i + 1]) {
+                merged = withDot(merged, b[i], b[i + 1]);
+            }
+        }
+        return merged;
+    }
+
+    private static long[] readDots(StreamInput stream) {
+        long[] dots = new long[stream.readInt() * 2];
+        for (int i = 0; i < dots.length; i++) {
+            dots[i] = stream.readLong();
+        }
+        return dots;
+    }
+
+    private static void writeDots(StreamOutput stream, long[] dots) {
+        stream.writeInt(dots.length / 2);
+        for (long dot : dots) {
+            stream.writeLong(dot);
+        }
+    }
+
+    private static Map<Streamable, long[]> readElements(StreamInput stream) {
+        int size = stream.readInt();
+        Map<Streamable, long[]> elements = HashMap.empty();
+        for (int i = 0; i < size; i++) {
+            elements = elements.put(stream.readStreamable(), readDots(stream));
+        }
+        return elements;
+    }
+
+    private static void writeElements(StreamOutput stream, Map<Streamable, long[]> elements) {
+        stream.writeInt(elements.size());
+        elements.forEach((value, dots) -> {
+            stream.writeClass(value.getClass());
+            stream.writeStreamable(value);
+            writeDots(stream, dots);
+        });
+    }
+}
@@ -0,0 +1,263 @@
+package org.mitallast.queue.crdt.commutative;
+
+import com.google.common.base.Preconditions;
+import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import javaslang.Tuple;
+import javaslang.Tuple2;
+import javaslang.collection.HashMap;
+import javaslang.collection.Map;
+import javaslang.collection.Vector;
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.ArrayList;
+
+/**
+ * Counter with increments and decrements, pair of counter vectors P and N, value is sum(P) - sum(N).
+ * Both vectors only grow, so downstream update of replica is overwritten by update with greater P + N.
+ */
+public class PNCounter implements CmRDT {
+
+    public static class SourceAssign implements SourceUpdate {
+        private final long value;
+
+        public SourceAssign(long value) {
+            this.value = value;
+        }
+
+        public SourceAssign(StreamInput stream) {
+            this.value = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeLong(value);
+        }
+    }
+
+    public static class DownstreamAssign implements OverwriteUpdate, DeltaUpdate {
+        private final long replica;
+        private final long increments;
+        private final long decrements;
+
+        public DownstreamAssign(long replica, long increments, long decrements) {
+            this.replica = replica;
+            this.increments = increments;
+            this.decrements = decrements;
+        }
+
+        public DownstreamAssign(StreamInput stream) {
+            this.replica = stream.readLong();
+            this.increments = stream.readLong();
+            this.decrements = stream.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeLong(replica);
+            stream.writeLong(increments);
+            stream.writeLong(decrements);
+        }
+
+        @Override
+        public long key() {
+            return replica;
+        }
+
+        /**
+         * Does not overflow, local update is rejected if sum of replica vectors overflows
+         */
+        @Override
+        public long version() {
+            return increments + decrements;
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return new DownstreamMerge(HashMap.of(replica, Tuple.of(increments, decrements))).join(other);
+        }
+    }
+
+    /**
+     * Joined delta or full state, increments and decrements per replica
+     */
+    public static class DownstreamMerge implements DeltaUpdate {
+        private final Map<Long, Tuple2<Long, Long>> values;
+
+        public DownstreamMerge(Map<Long, Tuple2<Long, Long>> values) {
+            this.values = values;
+        }
+
+        public DownstreamMerge(StreamInput stream) {
+            int size = stream.readInt();
+            Map<Long, Tuple2<Long, Long>> values = HashMap.empty();
+            for (int i = 0; i < size; i++) {
+                values = values.put(stream.readLong(), Tuple.of(stream.readLong(), stream.readLong()));
+            }
+            this.values = values;
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+            stream.writeInt(values.size());
+            values.forEach((replica, value) -> {
+                stream.writeLong(replica);
+                stream.writeLong(value._1);
+                stream.writeLong(value._2);
+            });
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            Map<Long, Tuple2<Long, Long>> joined = values;
+            if (other instanceof DownstreamAssign) {
+                DownstreamAssign assign = (DownstreamAssign) other;
+                joined = joined.merge(HashMap.of(assign.replica, Tuple.of(assign.increments, assign.decrements)), DownstreamMerge::max);
+            } else if (other instanceof DownstreamMerge) {
+                joined = joined.merge(((DownstreamMerge) other).values, DownstreamMerge::max);
+            } else {
+                throw new IllegalArgumentException("unexpected delta: " + other);
+            }
+            return new DownstreamMerge(joined);
+        }
+
+        private static Tuple2<Long, Long> max(Tuple2<Long, Long> a, Tuple2<Long, Long> b) {
+            return Tuple.of(Math.max(a._1, b._1), Math.max(a._2, b._2));
+        }
+    }
+
+    private final long id;
+    private final long replica;
+    private final Replicator replicator;
+    private final TLongLongMap increments;
+    private final TLongLongMap decrements;
+    private long value;
+
+    public PNCounter(long id, long replica, Replicator replicator) {
+        this.id = id;
+        this.replica = replica;
+        this.replicator = replicator;
+        this.increments = new TLongLongHashMap();
+        this.decrements = new TLongLongHashMap();
+    }
+
+    @Override
+    public void update(Streamable event) {
+        if (event instanceof SourceUpdate) {
+            sourceUpdate((SourceUpdate) event);
+        } else if (event instanceof DownstreamUpdate) {
+            downstreamUpdate((DownstreamUpdate) event);
+        }
+    }
+
+    @Override
+    public synchronized boolean shouldCompact(Streamable event) {
+        if (event instanceof DownstreamAssign) {
+            DownstreamAssign assign = (DownstreamAssign) event;
+            return isDominated(assign.replica, assign.increments, assign.decrements);
+        }
+        if (event instanceof DownstreamMerge) {
+            return ((DownstreamMerge) event).values.forAll(entry -> isDominated(entry._1, entry._2._1, entry._2._2));
+        }
+        return false;
+    }
+
+    /**
+     * @return true if current state of replica includes given values and is greater than them
+     */
+    private boolean isDominated(long replica, long increments, long decrements) {
+        long currentIncrements = this.increments.get(replica);
+        long currentDecrements = this.decrements.get(replica);
+        return increments <= currentIncrements && decrements <= currentDecrements
+            && (increments < currentIncrements || decrements < currentDecrements);
+    }
+
+    @Override
+    public synchronized Vector<Streamable> snapshot() {
+        ArrayList<Tuple2<Long, Tuple2<Long, Long>>> values = new ArrayList<>();
+        increments.forEachEntry((replica, value) -> values.add(Tuple.of(replica, Tuple.of(value, decrements.get(replica)))));
+        decrements.forEachEntry((replica, value) -> {
+            if (!increments.containsKey(replica)) {
+                values.add(Tuple.of(replica, Tuple.of(0L, value)));
+            }
+            return true;
+        });
+        return values.isEmpty() ? Vector.empty() : Vector.of(new DownstreamMerge(HashMap.ofEntries(values)));
+    }
+
+    @Override
+    public void sourceUpdate(SourceUpdate update) {
+        if (update instanceof SourceAssign) {
+            add(((SourceAssign) update).value);
+        }
+    }
+
+    @Override
+    public synchronized void downstreamUpdate(DownstreamUpdate update) {
+        if (update instanceof DownstreamAssign) {
+            DownstreamAssign downstream = (DownstreamAssign) update;
+            merge(downstream.replica, downstream.increments, downstream.decrements);
+        } else if (update instanceof DownstreamMerge) {
+            ((DownstreamMerge) update).values.forEach((replica, value) -> merge(replica, value._1, value._2));
+        }
+    }
+
+    private void merge(long replica, long increments, long decrements) {
+        long currentIncrements = this.increments.get(replica);
+        if (currentIncrements < increments) {
+            this.increments.put(replica, increments);
+            value += increments - currentIncrements;
+        }
+        long currentDecrements = this.decrements.get(replica);
+        if (currentDecrements < decrements) {
+            this.decrements.put(replica, decrements);
+            value -= decrements - currentDecrements;
+        }
+    }
+
+    public long increment() {
+        return add(1);
+    }
+
+    public long decrement() {
+        return add(-1);
+    }
+
+    /**
+     * @param value positive to increment, negative to decrement
+     * @return counter value after update
+     * @throws ArithmeticException if counter value or replica vectors overflow, counter is not updated
+     */
+    public long add(long value) {
+        Preconditions.checkArgument(value != Long.MIN_VALUE, "must be greater than Long.MIN_VALUE");
+        DownstreamAssign assign;
+        long updated;
+        synchronized (this) {
+            long replicaIncrements = increments.get(replica);
+            long replicaDecrements = decrements.get(replica);
+            if (value >= 0) {
+                replicaIncrements = Math.addExact(replicaIncrements, value);
+            } else {
+                replicaDecrements = Math.addExact(replicaDecrements, -value);
+            }
+            // version of downstream assign
+            Math.addExact(replicaIncrements, replicaDecrements);
+            updated = Math.addExact(this.value, value);
+
+            increments.put(replica, replicaIncrements);
+            decrements.put(replica, replicaDecrements);
+            this.value = updated;
+            assign = new DownstreamAssign(replica, replicaIncrements, replicaDecrements);
+        }
+        // appends of concurrent updates could be reordered, downstream keeps max of both vectors
+        replicator.append(id, assign);
+        return updated;
+    }
+
+    public synchronized long value() {
+        return value;
+    }
+}
@@ -0,0 +1,98 @@
+package org.mitallast.queue.crdt.log;
+
+import javaslang.collection.Vector;
+
+public class CompactionStats {
+    private final long bytesReclaimed;
+    private final long segmentsRewritten;
+    private final Vector<SegmentStats> segments;
+
+    public CompactionStats(long bytesReclaimed, long segmentsRewritten, Vector<SegmentStats> segments) {
+        this.bytesReclaimed = bytesReclaimed;
+        this.segmentsRewritten = segmentsRewritten;
+        this.segments = segments;
+    }
+
+    public long bytesReclaimed() {
+        return bytesReclaimed;
+    }
+
+    public long segmentsRewritten() {
+        return segmentsRewritten;
+    }
+
+    public Vector<SegmentStats> segments() {
+        return segments;
+    }
+
+    public long bytes() {
+        return segments.map(SegmentStats::bytes).sum().longValue();
+    }
+
+    public long liveBytes() {
+        return segments.map(SegmentStats::liveBytes).sum().longValue();
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionStats{" +
+            "bytesReclaimed=" + bytesReclaimed +
+            ", segmentsRewritten=" + segmentsRewritten +
+            ", segments=" + segments +
+            '}';
+    }
+
+    public static class SegmentStats {
+        private final long offset;
+        private final int entries;
+        private final int liveEntries;
+        private final long bytes;
+        private final long liveBytes;
+        private final double liveRatio;
+
+        public SegmentStats(long offset, int entries, int liveEntries, long bytes, long liveBytes) {
+            this.offset = offset;
+            this.entries = entries;
+            this.liveEntries = liveEntries;
+            this.bytes = bytes;
+            this.liveBytes = liveBytes;
+            this.liveRatio = bytes == 0 ? 1.0 : liveBytes / (double) bytes;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        public int entries() {
+            return entries;
+        }
+
+        public int liveEntries() {
+            return liveEntries;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        public long liveBytes() {
+            return liveBytes;
+        }
+
+        public double liveRatio() {
+            return liveRatio;
+        }
+
+        @Override
+        public String toString() {
+            return "SegmentStats{" +
+                "offset=" + offset +
+                ", entries=" + entries +
+                ", liveEntries=" + liveEntries +
+                ", bytes=" + bytes +
+                ", liveBytes=" + liveBytes +
+                ", liveRatio=" + liveRatio +
+                '}';
+        }
+    }
+}
@@ -1,57 +1,107 @@
 package org.mitallast.queue.crdt.log;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.typesafe.config.Config;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import javaslang.collection.AbstractIterator;
+import javaslang.Tuple2;
+import javaslang.collection.Iterator;
+import javaslang.collection.Seq;
 import javaslang.collection.Vector;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.mitallast.queue.common.file.FileException;
 import org.mitallast.queue.common.file.FileService;
+import org.mitallast.queue.common.file.LogFrame;
 import org.mitallast.queue.common.stream.StreamInput;
 import org.mitallast.queue.common.stream.StreamOutput;
 import org.mitallast.queue.common.stream.StreamService;
 import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.CrdtScheduler;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Segmented log stored in memory-mapped files.
+ * Each record is written as {@link LogFrame} with serialized {@link LogEntry} payload,
+ * heap holds only index of log entry index to file position per segment.
+ */
 public class FileReplicatedLog implements ReplicatedLog {
 
     private final static Logger logger = LogManager.getLogger();
+    private final static int FRAME_TYPE = 1;
+    private final static int COMPRESSED_MAGIC = 0xC0DEC001;
 
     private final int segmentSize;
+    private final int segmentMappedSize;
+    private final double compactionLiveRatio;
+    private final long compactionMergeSize;
+    private final RateLimiter compactionRate;
+    private final boolean compression;
+    private final int compressionBlockSize;
+    private final int compressionLevel;
 
     private final FileService fileService;
     private final StreamService streamService;
+    private final LogSyncService logSync;
     private final Predicate<LogEntry> compactionFilter;
     private final String serviceName;
 
-    private final ExecutorService compaction = Executors.newSingleThreadExecutor();
+    private final CrdtScheduler.SerialExecutor compaction;
+    private volatile boolean closed = false;
     private final ReentrantLock segmentsLock = new ReentrantLock();
     private volatile Vector<Segment> segments = Vector.empty();
     private volatile Segment lastSegment;
 
     private final AtomicLong index = new AtomicLong(0);
+    private final AtomicLong bytesReclaimed = new AtomicLong(0);
+    private final AtomicLong segmentsRewritten = new AtomicLong(0);
 
     @Inject
     public FileReplicatedLog(
         Config config,
         FileService fileService,
         StreamService streamService,
+        LogSyncService logSync,
+        CrdtScheduler scheduler,
         @Assisted Predicate<LogEntry> compactionFilter,
         @Assisted int index,
         @Assisted long replica
     ) {
         this.segmentSize = config.getInt("crdt.segment.size");
+        this.segmentMappedSize = (int) (long) config.getBytes("crdt.segment.mapped-size");
+        this.compactionLiveRatio = config.getDouble("crdt.compaction.live-ratio");
+        this.compactionMergeSize = config.getBytes("crdt.compaction.merge-size");
+        this.compression = config.getString("crdt.segment.compression").equals("deflate");
+        this.compressionBlockSize = (int) (long) config.getBytes("crdt.segment.compression-block-size");
+        this.compressionLevel = config.getInt("crdt.segment.compression-level");
 
         this.fileService = fileService;
         this.streamService = streamService;
+        this.logSync = logSync;
+        this.compaction = scheduler.compaction();
+        this.compactionRate = scheduler.compactionRate();
         this.compactionFilter = compactionFilter;
         this.serviceName = String.format("crdt/%d/log/%d", index, replica);
 
@@ -62,13 +112,27 @@ public class FileReplicatedLog implements ReplicatedLog {
             .sorted()
             .toArray();
 
-        for (int i = 0; i < offsets.length; i++) {
-            segments = segments.append(new Segment(i));
+        // sealed segments are restored from checkpoints, segments without checkpoint are scanned in parallel
+        Vector<Segment> loaded = Vector.ofAll(Arrays.stream(offsets)
+            .parallel()
+            .mapToObj(Segment::new)
+            .collect(Collectors.toList()));
+        for (Segment segment : loaded) {
+            if (segments.nonEmpty() && segment.offset < segments.last().lastIndex()) {
+                // entries already merged into previous segment, compaction was interrupted before delete
+                logger.warn("remove merged segment {}", segment.offset);
+                segment.delete();
+                continue;
+            }
+            segments = segments.append(segment);
         }
         if (segments.isEmpty()) {
             segments = segments.append(new Segment(this.index.get()));
         }
         lastSegment = segments.get(segments.size() - 1);
+        for (Segment segment : segments.init()) {
+            segment.seal();
+        }
     }
 
     @Override
@@ -78,58 +142,140 @@ public class FileReplicatedLog implements ReplicatedLog {
 
     @Override
     public LogEntry append(long id, Streamable event) {
+        ArrayList<Segment> written = new ArrayList<>(1);
+        LogEntry append = write(id, event, written);
+        written.forEach(logSync::written);
+        return append;
+    }
+
+    @Override
+    public Vector<LogEntry> append(Seq<Tuple2<Long, Streamable>> events) {
+        ArrayList<Segment> written = new ArrayList<>(2);
+        Vector<LogEntry> appended = Vector.empty();
+        for (Tuple2<Long, Streamable> event : events) {
+            appended = appended.append(write(event._1, event._2, written));
+        }
+        written.forEach(logSync::written);
+        return appended;
+    }
+
+    /**
+     * Write event without waiting for durability, segment is added to written if not added yet.
+     */
+    private LogEntry write(long id, Streamable event, ArrayList<Segment> written) {
         while (true) {
-            LogEntry append = lastSegment.append(id, event);
+            Segment segment = lastSegment;
+            LogEntry append = segment.append(id, event);
+            if (append == null) {
+                boolean startGC = false;
+                segmentsLock.lock();
+                try {
+                    if (lastSegment.isFull()) {
+                        segment = new Segment(index.get());
+                        lastSegment = segment;
+                        segments = segments.append(segment);
+                        logger.debug("created segment {}", segment.offset);
+                        append = segment.append(id, event);
+                        if (append != null) {
+                            startGC = true;
+                        }
+                    }
+                } finally {
+                    segmentsLock.unlock();
+                    if (startGC) {
+                        startGC();
+                    }
+                }
+            }
             if (append != null) {
+                if (!written.contains(segment)) {
+                    written.add(segment);
+                }
                 return append;
             }
-            boolean startGC = false;
+        }
+    }
+
+    @Override
+    public Vector<LogEntry> entriesFrom(long index) {
+        return cursor(index).toVector();
+    }
+
+    @Override
+    public Vector<LogEntry> entriesFrom(long index, int maxEntries, long maxBytes) {
+        Cursor cursor = new Cursor(segments, index);
+        ArrayList<LogEntry> entries = new ArrayList<>();
+        long bytes = 0;
+        while (entries.size() < maxEntries && cursor.hasNext()) {
+            int size = cursor.nextSize();
+            if (!entries.isEmpty() && bytes + size > maxBytes) {
+                break;
+            }
+            entries.add(cursor.next());
+            bytes += size;
+        }
+        return Vector.ofAll(entries);
+    }
+
+    @Override
+    public Iterator<LogEntry> cursor(long index) {
+        return new Cursor(segments, index);
+    }
+
+    @Override
+    public long startIndex() {
+        return segments.head().offset;
+    }
+
+    @Override
+    public void truncate(long index) {
+        compaction.execute(() -> {
+            if (closed) {
+                return;
+            }
+            Vector<Segment> truncated = Vector.empty();
             segmentsLock.lock();
             try {
-                if (lastSegment.isFull()) {
-                    lastSegment = new Segment(index.get());
-                    segments = segments.append(lastSegment);
-                    logger.debug("created segment {}", lastSegment.offset);
-                    append = lastSegment.append(id, event);
-                    if (append != null) {
-                        startGC = true;
-                        return append;
-                    }
+                while (segments.head() != lastSegment && segments.head().isFull() && segments.head().lastIndex() <= index) {
+                    truncated = truncated.append(segments.head());
+                    segments = segments.tail();
                 }
             } finally {
                 segmentsLock.unlock();
-                if (startGC) {
-                    startGC();
-                }
             }
-        }
+            for (Segment segment : truncated) {
+                logger.debug("truncate segment {}", segment.offset);
+                // keep segment mapped for open cursors
+                segment.mapped();
+                segment.delete();
+            }
+        });
     }
 
     @Override
-    public Vector<LogEntry> entriesFrom(long index) {
-        Vector<LogEntry> builder = Vector.empty();
-        for (Segment segment : segments.reverse()) {
-            synchronized (segment.entries) {
-                for (int i = segment.entries.size() - 1; i >= 0; i--) {
-                    LogEntry logEntry = segment.entries.get(i);
-                    if (logEntry.index() > index) {
-                        builder = builder.append(logEntry);
-                    } else {
-                        return builder.reverse();
-                    }
-                }
-            }
-        }
-        return builder.reverse();
+    public CompactionStats compactionStats() {
+        return new CompactionStats(
+            bytesReclaimed.get(),
+            segmentsRewritten.get(),
+            segments.map(Segment::stats)
+        );
     }
 
     @Override
     public void close() {
+        closed = true;
+        try {
+            // running compaction task checks closed flag between segments
+            if (!compaction.awaitIdle(1, TimeUnit.MINUTES)) {
+                logger.warn("compaction of {} is not stopped", serviceName);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         segmentsLock.lock();
         try {
-            compaction.shutdownNow();
             for (Segment segment : segments) {
-                synchronized (segment.entries) {
+                synchronized (segment) {
                     segment.close();
                 }
             }
@@ -146,9 +292,17 @@ public class FileReplicatedLog implements ReplicatedLog {
 
     private void startGC() {
         compaction.execute(() -> {
+            if (closed) {
+                return;
+            }
             logger.debug("start full GC");
+            // segments sealed after this point are compacted by next pass
+            Segment last = lastSegment;
             for (Segment segment : segments) {
-                if (segment == lastSegment) {
+                if (closed) {
+                    return;
+                }
+                if (segment == last) {
                     continue;
                 }
                 if (segment.isFull()) {
@@ -156,8 +310,7 @@ public class FileReplicatedLog implements ReplicatedLog {
                     segment.compact();
                     if (segment.isGarbage()) {
                         logger.debug("remove segment {}", segment.offset);
-                        segment.close();
-                        fileService.delete(segment.logFile);
+                        segment.delete();
                     }
                 }
             }
@@ -167,64 +320,813 @@ public class FileReplicatedLog implements ReplicatedLog {
             } finally {
                 segmentsLock.unlock();
             }
+            rewriteSegments(last);
             logger.debug("end full GC");
         });
     }
 
-    private class Segment {
-        private final ArrayList<LogEntry> entries = new ArrayList<>();
+    /**
+     * Groups adjacent sealed segments into runs with live bytes up to crdt.compaction.merge-size,
+     * and rewrites runs of several segments or single segments with low live ratio.
+     */
+    private void rewriteSegments(Segment last) {
+        Vector<Segment> run = Vector.empty();
+        long runBytes = 0;
+        for (Segment segment : segments) {
+            if (segment == last || !segment.isFull()) {
+                break;
+            }
+            long liveBytes = segment.liveBytes();
+            if (run.nonEmpty() && runBytes + liveBytes > compactionMergeSize) {
+                maybeRewrite(run);
+                run = Vector.empty();
+                runBytes = 0;
+            }
+            run = run.append(segment);
+            runBytes += liveBytes;
+        }
+        maybeRewrite(run);
+    }
+
+    private void maybeRewrite(Vector<Segment> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        if (run.size() == 1 && run.head().liveRatio() >= compactionLiveRatio && compression == run.head().isCompressed()) {
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        Segment first = run.head();
+        logger.debug("rewrite segments {}", run.map(segment -> segment.offset));
+
+        long bytes = 0;
+        File tmp = fileService.temporary(serviceName, "event.", ".tmp");
+        try (SegmentWriter writer = new SegmentWriter(tmp)) {
+            for (Segment segment : run) {
+                bytes += segment.logFile.length();
+                segment.copyLive(writer::write);
+            }
+        }
+        // keep replaced segments mapped for open cursors, as file of first segment is replaced
+        // and files of others are deleted
+        for (Segment segment : run) {
+            segment.mapped();
+        }
+        fileService.delete(first.checkpointFile);
+        fileService.move(tmp, first.logFile);
+
+        Segment rewritten = new Segment(first.offset);
+        rewritten.seal();
+
+        segmentsLock.lock();
+        try {
+            if (closed) {
+                rewritten.close();
+                return;
+            }
+            int from = segments.indexOf(first);
+            segments = segments.take(from)
+                .append(rewritten)
+                .appendAll(segments.drop(from + run.size()));
+        } finally {
+            segmentsLock.unlock();
+        }
+        for (Segment segment : run) {
+            if (segment == first) {
+                segment.close();
+            } else {
+                segment.delete();
+            }
+        }
+        bytesReclaimed.addAndGet(bytes - rewritten.logFile.length());
+        segmentsRewritten.addAndGet(run.size());
+    }
+
+    /**
+     * Lazily decodes entries with index greater than requested, without copying log tail.
+     * Segment is found by binary search over segment offsets, start position in segment
+     * by binary search over segment index.
+     */
+    private class Cursor extends AbstractIterator<LogEntry> {
+        private final Vector<Segment> segments;
+        private int segment;
+        private SegmentIndex entries;
+        private int slot;
+
+        private Cursor(Vector<Segment> segments, long index) {
+            this.segments = segments;
+            this.segment = Math.max(0, floorSegment(segments, index));
+            this.entries = segments.get(segment).entries;
+            this.slot = entries.search(index);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (slot >= entries.size) {
+                if (segment + 1 >= segments.size()) {
+                    return false;
+                }
+                segment++;
+                entries = segments.get(segment).entries;
+                slot = 0;
+            }
+            return true;
+        }
+
+        /**
+         * @return encoded size of next entry, hasNext should be checked before
+         */
+        private int nextSize() {
+            return segments.get(segment).frame(entries.positions[slot]).remaining();
+        }
+
+        @Override
+        protected LogEntry getNext() {
+            LogEntry logEntry = segments.get(segment).read(entries.positions[slot]);
+            slot++;
+            return logEntry;
+        }
+    }
+
+    private static boolean hasCompressedMagic(FileChannel channel) throws IOException {
+        if (channel.size() < 4) {
+            return false;
+        }
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        channel.read(magic, 0);
+        return magic.getInt(0) == COMPRESSED_MAGIC;
+    }
+
+    /**
+     * @return position of last segment with offset less or equal than index, or -1
+     */
+    private static int floorSegment(Vector<Segment> segments, long index) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).offset <= index) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Sorted log entry indices and their record positions in segment file.
+     * Arrays are written by single appender before size is published.
+     */
+    private static class SegmentIndex {
+        private final long[] indices;
+        private final int[] positions;
+        private volatile int size;
+
+        private SegmentIndex(int capacity) {
+            this(new long[capacity], new int[capacity], 0);
+        }
+
+        private SegmentIndex(long[] indices, int[] positions, int size) {
+            this.indices = indices;
+            this.positions = positions;
+            this.size = size;
+        }
+
+        /**
+         * @return position of first entry with index greater than requested
+         */
+        private int search(long index) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indices[mid] <= index) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Positions of compressed blocks: block start in uncompressed segment data and block header position in file.
+     */
+    private static class BlockIndex {
+        private final int[] starts;
+        private final int[] offsets;
+        private final int size;
+
+        private BlockIndex(int[] starts, int[] offsets, int size) {
+            this.starts = starts;
+            this.offsets = offsets;
+            this.size = size;
+        }
+
+        /**
+         * @return last block with start less or equal than position
+         */
+        private int search(int position) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= position) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+    }
+
+    private static class CachedBlock {
+        private final int block;
+        private final ByteBuffer data;
+
+        private CachedBlock(int block, ByteBuffer data) {
+            this.block = block;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Writes sealed segment file, file header and raw frames or, if crdt.segment.compression is deflate,
+     * magic header followed by blocks of int raw length, int compressed length and deflated frames.
+     */
+    private class SegmentWriter implements Closeable {
+        private final StreamOutput output;
+        private final ByteBuf block;
+        private final Deflater deflater;
+        private byte[] compressed;
+
+        private SegmentWriter(File file) {
+            this(file, compression);
+        }
+
+        private SegmentWriter(File file, boolean compression) {
+            this.output = streamService.output(file);
+            if (compression) {
+                this.block = Unpooled.buffer(compressionBlockSize);
+                this.deflater = new Deflater(compressionLevel);
+                this.compressed = new byte[compressionBlockSize];
+                output.writeInt(COMPRESSED_MAGIC);
+            } else {
+                this.block = null;
+                this.deflater = null;
+                LogFrame.writeFileHeader(output);
+            }
+        }
+
+        private void write(ByteBuffer frame) {
+            if (deflater == null) {
+                try {
+                    Unpooled.wrappedBuffer(frame).getBytes(0, output, frame.remaining());
+                } catch (IOException e) {
+                    throw new FileException(e);
+                }
+            } else {
+                block.writeBytes(frame);
+                if (block.readableBytes() >= compressionBlockSize) {
+                    flushBlock();
+                }
+            }
+        }
+
+        private void flushBlock() {
+            int rawLength = block.readableBytes();
+            deflater.reset();
+            deflater.setInput(block.array(), block.arrayOffset() + block.readerIndex(), rawLength);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, length << 1);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            output.writeInt(rawLength);
+            output.writeInt(length);
+            output.write(compressed, 0, length);
+            block.clear();
+        }
+
+        @Override
+        public void close() {
+            if (deflater != null) {
+                if (block.isReadable()) {
+                    flushBlock();
+                }
+                deflater.end();
+            }
+            output.close();
+        }
+    }
+
+    private class Segment implements Flushable {
         private final long offset;
         private final File logFile;
-        private final StreamOutput logOutput;
-        private final AtomicInteger added = new AtomicInteger(0);
+        private final File checkpointFile;
+
+        private volatile FileChannel channel;
+        private volatile MappedByteBuffer mapped;
+        private volatile SegmentIndex entries;
+        private volatile BlockIndex blocks;
+        private volatile CachedBlock cached;
+        private volatile boolean sealed;
+        private volatile int position;
+        private volatile long liveBytes;
+        private int added;
+        private ByteBuf buffer;
 
         private Segment(long offset) {
             this.offset = offset;
             this.logFile = fileService.resource(serviceName, "event." + offset + ".log");
-            this.logOutput = streamService.output(logFile, true);
+            this.checkpointFile = new File(fileService.service(serviceName), "event." + offset + ".idx");
+
+            if (!readCheckpoint()) {
+                migrate();
+                open();
+                if (mapped.capacity() >= 4 && mapped.getInt(0) == COMPRESSED_MAGIC) {
+                    scanBlocks();
+                } else {
+                    scan();
+                }
+            }
+            FileReplicatedLog.this.index.accumulateAndGet(Math.max(offset, lastIndex()), Math::max);
+            if (!sealed) {
+                if (added >= segmentSize) {
+                    seal();
+                } else {
+                    buffer = Unpooled.buffer(256);
+                }
+            }
+        }
+
+        /**
+         * Restore sealed segment index from checkpoint without reading segment file,
+         * file is opened and mapped on first access.
+         */
+        private boolean readCheckpoint() {
+            if (!checkpointFile.exists() || checkpointFile.length() == 0) {
+                return false;
+            }
+            try (StreamInput input = streamService.input(checkpointFile)) {
+                int length = input.readInt();
+                long fileLength = input.readLong();
+                long lastIndex = input.readLong();
+                int records = input.readInt();
+                long liveBytes = input.readLong();
+                int size = input.readInt();
+                if (fileLength != logFile.length()) {
+                    logger.warn("segment {} checkpoint length {} does not match file length {}", offset, fileLength, logFile.length());
+                    return false;
+                }
+                long[] indices = new long[size];
+                int[] positions = new int[size];
+                for (int i = 0; i < size; i++) {
+                    indices[i] = input.readLong();
+                    positions[i] = input.readInt();
+                }
+                if (size > 0 && indices[size - 1] > lastIndex) {
+                    return false;
+                }
+                int blockCount = input.readInt();
+                if (blockCount > 0) {
+                    int[] starts = new int[blockCount];
+                    int[] offsets = new int[blockCount];
+                    for (int i = 0; i < blockCount; i++) {
+                        starts[i] = input.readInt();
+                        offsets[i] = input.readInt();
+                    }
+                    this.blocks = new BlockIndex(starts, offsets, blockCount);
+                }
+                this.entries = new SegmentIndex(indices, positions, size);
+                this.position = length;
+                this.added = records;
+                this.liveBytes = liveBytes;
+                this.sealed = true;
+                return true;
+            } catch (Exception e) {
+                logger.warn("segment {} checkpoint is broken", offset, e);
+                return false;
+            }
+        }
+
+        private void writeCheckpoint() {
+            SegmentIndex segmentIndex = this.entries;
+            BlockIndex blocks = this.blocks;
+            File tmp = fileService.temporary(serviceName, "event.", ".tmp");
+            try (StreamOutput output = streamService.output(tmp)) {
+                output.writeInt(position);
+                output.writeLong(logFile.length());
+                output.writeLong(lastIndex());
+                output.writeInt(added);
+                output.writeLong(liveBytes);
+                output.writeInt(segmentIndex.size);
+                for (int i = 0; i < segmentIndex.size; i++) {
+                    output.writeLong(segmentIndex.indices[i]);
+                    output.writeInt(segmentIndex.positions[i]);
+                }
+                if (blocks == null) {
+                    output.writeInt(0);
+                } else {
+                    output.writeInt(blocks.size);
+                    for (int i = 0; i < blocks.size; i++) {
+                        output.writeInt(blocks.starts[i]);
+                        output.writeInt(blocks.offsets[i]);
+                    }
+                }
+            }
+            fileService.move(tmp, checkpointFile);
+        }
+
+        /**
+         * Rewrite segment of unframed entries, written before framing, as framed segment.
+         * Segment which could not be read completely is not modified and log is not opened.
+         */
+        private void migrate() {
+            ByteBuffer header = ByteBuffer.allocate(LogFrame.FILE_HEADER_SIZE);
+            try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+                channel.read(header, 0);
+            } catch (IOException e) {
+                throw new FileException(e);
+            }
+            int limit = header.position();
+            if (LogFrame.isEmpty(header, limit) || LogFrame.hasFileHeader(header, limit) || header.getInt(0) == COMPRESSED_MAGIC) {
+                return;
+            }
+            logger.info("segment {} migrate unframed entries", offset);
+            File tmp = fileService.temporary(serviceName, "event.", ".tmp");
+            ByteBuf buffer = Unpooled.buffer(256);
+            try (StreamInput input = streamService.input(logFile); SegmentWriter writer = new SegmentWriter(tmp, false)) {
+                while (input.available() > 0) {
+                    LogEntry logEntry = input.readStreamable(LogEntry::new);
+                    buffer.clear();
+                    int start = LogFrame.begin(buffer);
+                    try (StreamOutput output = streamService.output(buffer)) {
+                        output.writeStreamable(logEntry);
+                    }
+                    LogFrame.end(buffer, start, FRAME_TYPE);
+                    writer.write(buffer.nioBuffer());
+                }
+            } catch (Exception e) {
+                fileService.delete(tmp);
+                throw new FileException("segment " + offset + " has unknown format", e);
+            }
+            fileService.move(tmp, logFile);
+        }
+
+        private void scan() {
+            long[] indices = new long[segmentSize];
+            int[] positions = new int[segmentSize];
+            int size = 0;
+            int limit = mapped.capacity();
+            if (!LogFrame.hasFileHeader(mapped, limit)) {
+                if (!LogFrame.isEmpty(mapped, limit)) {
+                    // never truncate data which is not recognized as framed
+                    throw new FileException("segment " + offset + " has unknown format");
+                }
+                LogFrame.writeFileHeader(mapped);
+            }
+            int position = LogFrame.FILE_HEADER_SIZE;
+            while (true) {
+                int frame = LogFrame.validate(mapped, position, limit, FRAME_TYPE);
+                if (frame == 0) {
+                    break;
+                }
+                if (size == indices.length) {
+                    indices = Arrays.copyOf(indices, size << 1);
+                    positions = Arrays.copyOf(positions, size << 1);
+                }
+                indices[size] = mapped.getLong(position + LogFrame.HEADER_SIZE);
+                positions[size] = position;
+                size++;
+                position += frame;
+            }
+            if (position + 4 <= limit && mapped.getInt(position) != 0) {
+                // torn or corrupted tail, drop it to not read stale frames after next appends
+                logger.warn("segment {} truncate broken tail at {}", offset, position);
+                try {
+                    channel.truncate(position);
+                    mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(position, segmentMappedSize));
+                } catch (IOException e) {
+                    throw new FileException(e);
+                }
+            }
+            this.entries = new SegmentIndex(indices, positions, size);
+            this.position = position;
+            this.liveBytes = position;
+            this.added = size;
+        }
 
-            if (logFile.length() > 0) {
-                try (StreamInput input = streamService.input(logFile)) {
-                    while (input.available() > 0) {
-                        entries.add(input.readStreamable(LogEntry::new));
+        /**
+         * Rebuild index of compressed segment by inflating all blocks
+         */
+        private void scanBlocks() {
+            long[] indices = new long[segmentSize];
+            int[] positions = new int[segmentSize];
+            int[] starts = new int[16];
+            int[] offsets = new int[16];
+            int size = 0;
+            int blockCount = 0;
+            int position = 0;
+            int fileOffset = 4;
+            while (fileOffset + 8 <= mapped.capacity()) {
+                if (blockCount == starts.length) {
+                    starts = Arrays.copyOf(starts, blockCount << 1);
+                    offsets = Arrays.copyOf(offsets, blockCount << 1);
+                }
+                starts[blockCount] = position;
+                offsets[blockCount] = fileOffset;
+                blockCount++;
+                ByteBuffer block = inflate(fileOffset);
+                int blockPosition = 0;
+                while (true) {
+                    int frame = LogFrame.validate(block, blockPosition, block.limit(), FRAME_TYPE);
+                    if (frame == 0) {
+                        break;
                     }
-                    if (!entries.isEmpty()) {
-                        index.set(entries.get(entries.size() - 1).index() + 1);
+                    if (size == indices.length) {
+                        indices = Arrays.copyOf(indices, size << 1);
+                        positions = Arrays.copyOf(positions, size << 1);
                     }
-                    added.set(entries.size());
+                    indices[size] = block.getLong(blockPosition + LogFrame.HEADER_SIZE);
+                    positions[size] = position + blockPosition;
+                    size++;
+                    blockPosition += frame;
+                }
+                position += block.limit();
+                fileOffset += 8 + mapped.getInt(fileOffset + 4);
+            }
+            this.blocks = new BlockIndex(starts, offsets, blockCount);
+            this.entries = new SegmentIndex(indices, positions, size);
+            this.position = position;
+            this.liveBytes = position;
+            this.added = size;
+            this.sealed = true;
+            writeCheckpoint();
+        }
+
+        private ByteBuffer inflate(int fileOffset) {
+            ByteBuffer file = mapped().duplicate();
+            int rawLength = file.getInt(fileOffset);
+            byte[] input = new byte[file.getInt(fileOffset + 4)];
+            file.position(fileOffset + 8);
+            file.get(input);
+            byte[] raw = new byte[rawLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(input);
+                int inflated = 0;
+                while (inflated < rawLength && !inflater.finished()) {
+                    int read = inflater.inflate(raw, inflated, rawLength - inflated);
+                    if (read == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    inflated += read;
+                }
+                if (inflated != rawLength) {
+                    throw new FileException("segment " + offset + " block at " + fileOffset + " is broken");
+                }
+            } catch (DataFormatException e) {
+                throw new FileException(e);
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(raw);
+        }
+
+        private ByteBuffer block(int block) {
+            CachedBlock cached = this.cached;
+            if (cached != null && cached.block == block) {
+                return cached.data;
+            }
+            ByteBuffer data = inflate(blocks.offsets[block]);
+            this.cached = new CachedBlock(block, data);
+            return data;
+        }
+
+        /**
+         * @return buffer with single frame at position of uncompressed segment data
+         */
+        private ByteBuffer frame(int position) {
+            BlockIndex blocks = this.blocks;
+            ByteBuffer data;
+            int start;
+            if (blocks == null) {
+                data = mapped();
+                start = position;
+            } else {
+                int block = blocks.search(position);
+                data = block(block);
+                start = position - blocks.starts[block];
+            }
+            ByteBuffer frame = data.duplicate();
+            frame.limit(start + LogFrame.size(data, start));
+            frame.position(start);
+            return frame.slice();
+        }
+
+        private LogEntry decode(ByteBuffer frame) {
+            ByteBuffer payload = frame.duplicate();
+            payload.position(LogFrame.HEADER_SIZE);
+            try (StreamInput input = streamService.input(Unpooled.wrappedBuffer(payload))) {
+                return input.readStreamable(LogEntry::new);
+            }
+        }
+
+        private boolean isCompressed() {
+            return blocks != null;
+        }
+
+        private synchronized void open() {
+            if (channel != null) {
+                return;
+            }
+            try {
+                // file is created by constructor, deleted segment is not recreated by lazy open
+                FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long size = sealed || hasCompressedMagic(channel) ? channel.size() : Math.max(channel.size(), segmentMappedSize);
+                this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                this.channel = channel;
+            } catch (IOException e) {
+                throw new FileException(e);
+            }
+        }
+
+        private MappedByteBuffer mapped() {
+            if (channel == null) {
+                open();
+            }
+            return mapped;
+        }
+
+        private synchronized LogEntry append(long id, Streamable event) {
+            if (isFull()) {
+                return null;
+            }
+            LogEntry logEntry = new LogEntry(index.incrementAndGet(), id, event);
+
+            buffer.clear();
+            int start = LogFrame.begin(buffer);
+            try (StreamOutput output = streamService.output(buffer)) {
+                output.writeStreamable(logEntry);
+            }
+            LogFrame.end(buffer, start, FRAME_TYPE);
+            ensureCapacity(position + buffer.readableBytes());
+            ByteBuffer target = mapped.duplicate();
+            target.position(position);
+            target.put(buffer.nioBuffer());
+
+            SegmentIndex segmentIndex = this.entries;
+            segmentIndex.indices[segmentIndex.size] = logEntry.index();
+            segmentIndex.positions[segmentIndex.size] = position;
+            segmentIndex.size++;
+            position += buffer.readableBytes();
+            liveBytes += buffer.readableBytes();
+
+            added++;
+            if (added >= segmentSize) {
+                seal();
+            }
+            return logEntry;
+        }
+
+        private void ensureCapacity(int required) {
+            int capacity = mapped.capacity();
+            if (required > capacity) {
+                while (capacity < required) {
+                    capacity = capacity << 1;
+                }
+                try {
+                    mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                } catch (IOException e) {
+                    throw new FileException(e);
                 }
             }
         }
 
-        private LogEntry append(long id, Streamable event) {
-            synchronized (entries) {
-                if (isFull()) {
-                    return null;
+        private LogEntry read(int position) {
+            return decode(frame(position));
+        }
+
+        /**
+         * Copy raw frames of live entries, limited by node-wide crdt.compaction.rate
+         */
+        private void copyLive(Consumer<ByteBuffer> output) {
+            SegmentIndex segmentIndex = this.entries;
+            for (int i = 0; i < segmentIndex.size; i++) {
+                ByteBuffer frame = frame(segmentIndex.positions[i]);
+                compactionRate.acquire(frame.remaining());
+                output.accept(frame);
+            }
+        }
+
+        private long lastIndex() {
+            SegmentIndex segmentIndex = this.entries;
+            return segmentIndex.size == 0 ? 0 : segmentIndex.indices[segmentIndex.size - 1];
+        }
+
+        private long liveBytes() {
+            return liveBytes;
+        }
+
+        private double liveRatio() {
+            return position == 0 ? 1.0 : liveBytes / (double) position;
+        }
+
+        private CompactionStats.SegmentStats stats() {
+            return new CompactionStats.SegmentStats(offset, added, entries.size, position, liveBytes);
+        }
+
+        /**
+         * Release write buffer, trim mapped file padding and write checkpoint,
+         * segment is read only after this.
+         */
+        private synchronized void seal() {
+            if (sealed) {
+                return;
+            }
+            sealed = true;
+            buffer = null;
+            truncate();
+            writeCheckpoint();
+        }
+
+        private void truncate() {
+            if (isCompressed()) {
+                return;
+            }
+            try {
+                if (channel != null && channel.isOpen() && channel.size() > position) {
+                    channel.truncate(position);
                 }
-                LogEntry logEntry = new LogEntry(index.incrementAndGet(), id, event);
-                logOutput.writeStreamable(logEntry);
-                entries.add(logEntry);
-                added.incrementAndGet();
-                return logEntry;
+            } catch (IOException e) {
+                throw new FileException(e);
             }
         }
 
         private boolean isFull() {
-            return added.get() == segmentSize;
+            return sealed;
         }
 
         private boolean isGarbage() {
-            return isFull() && entries.isEmpty();
+            return isFull() && entries.size == 0;
         }
 
         private void compact() {
-            synchronized (entries) {
-                entries.removeIf(compactionFilter);
+            SegmentIndex segmentIndex = this.entries;
+            int size = segmentIndex.size;
+            long[] indices = new long[size];
+            int[] positions = new int[size];
+            int live = 0;
+            long liveBytes = 0;
+            for (int i = 0; i < size; i++) {
+                ByteBuffer frame = frame(segmentIndex.positions[i]);
+                if (!compactionFilter.test(decode(frame))) {
+                    indices[live] = segmentIndex.indices[i];
+                    positions[live] = segmentIndex.positions[i];
+                    liveBytes += frame.remaining();
+                    live++;
+                }
+            }
+            if (live < size) {
+                this.entries = new SegmentIndex(indices, positions, live);
+                this.liveBytes = liveBytes;
+                writeCheckpoint();
+            }
+        }
+
+        @Override
+        public void flush() {
+            FileChannel channel = this.channel;
+            if (channel != null && channel.isOpen()) {
+                mapped.force();
             }
         }
 
         private void close() {
-            logOutput.close();
+            try {
+                if (channel != null && channel.isOpen()) {
+                    logSync.closed(this);
+                    truncate();
+                    channel.close();
+                }
+            } catch (IOException e) {
+                throw new FileException(e);
+            }
+        }
+
+        private void delete() {
+            close();
+            fileService.delete(logFile);
+            fileService.delete(checkpointFile);
         }
     }
 }
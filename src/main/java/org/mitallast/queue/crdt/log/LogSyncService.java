@@ -0,0 +1,177 @@
+package org.mitallast.queue.crdt.log;
+
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import javaslang.concurrent.Promise;
+import javaslang.control.Try;
+import org.mitallast.queue.common.component.AbstractLifecycleComponent;
+import org.mitallast.queue.common.file.FileException;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Node-wide durability policy for crdt bucket logs, configured by crdt.log.durability:
+ * none - rely on page cache, interval - flush dirty segments every crdt.log.sync-interval,
+ * group-commit - block writer until segment is flushed, concurrent writers share one flush.
+ */
+public class LogSyncService extends AbstractLifecycleComponent {
+
+    public enum Durability {
+        NONE, INTERVAL, GROUP_COMMIT
+    }
+
+    private final Durability durability;
+    private final Set<Flushable> dirty = ConcurrentHashMap.newKeySet();
+    private final LinkedBlockingQueue<SyncRequest> queue = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed = false;
+
+    @Inject
+    public LogSyncService(Config config) {
+        durability = Durability.valueOf(config.getString("crdt.log.durability").toUpperCase().replace('-', '_'));
+        long interval = config.getDuration("crdt.log.sync-interval", TimeUnit.MILLISECONDS);
+        executor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("crdt-log-sync"));
+        switch (durability) {
+            case INTERVAL:
+                executor.scheduleWithFixedDelay(this::flushDirty, interval, interval, TimeUnit.MILLISECONDS);
+                break;
+            case GROUP_COMMIT:
+                executor.execute(this::groupCommit);
+                break;
+        }
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * Called by writer after record is written to segment.
+     * In group-commit mode returns only after segment is flushed, throws IllegalStateException if service is closed.
+     */
+    public void written(Flushable segment) {
+        switch (durability) {
+            case INTERVAL:
+                dirty.add(segment);
+                break;
+            case GROUP_COMMIT:
+                if (closed) {
+                    throw new IllegalStateException("closed");
+                }
+                SyncRequest request = new SyncRequest(segment);
+                queue.add(request);
+                // request added concurrently with close may be missed by final drain of group commit thread
+                if (closed && queue.remove(request)) {
+                    request.promise.failure(new IllegalStateException("closed"));
+                }
+                Try<Flushable> result = request.promise.future().await().getValue().get();
+                if (result.isFailure()) {
+                    throw new FileException("error sync log", result.getCause());
+                }
+                break;
+        }
+    }
+
+    /**
+     * Called by segment before close, flushes pending writes if durability is enabled.
+     */
+    public void closed(Flushable segment) {
+        dirty.remove(segment);
+        if (durability != Durability.NONE) {
+            try {
+                segment.flush();
+            } catch (IOException e) {
+                throw new FileException(e);
+            }
+        }
+    }
+
+    private void flushDirty() {
+        for (Flushable segment : dirty) {
+            dirty.remove(segment);
+            try {
+                segment.flush();
+            } catch (Exception e) {
+                logger.warn("error flush segment", e);
+            }
+        }
+    }
+
+    private void groupCommit() {
+        ArrayList<SyncRequest> batch = new ArrayList<>();
+        Set<Flushable> segments = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            for (SyncRequest request : batch) {
+                segments.add(request.segment);
+            }
+            Exception error = null;
+            for (Flushable segment : segments) {
+                try {
+                    segment.flush();
+                } catch (Exception e) {
+                    logger.warn("error flush segment", e);
+                    error = e;
+                }
+            }
+            for (SyncRequest request : batch) {
+                if (error == null) {
+                    request.promise.success(request.segment);
+                } else {
+                    request.promise.failure(error);
+                }
+            }
+            batch.clear();
+            segments.clear();
+        }
+        failQueued();
+    }
+
+    private void failQueued() {
+        SyncRequest request;
+        while ((request = queue.poll()) != null) {
+            request.promise.failure(new IllegalStateException("closed"));
+        }
+    }
+
+    @Override
+    protected void doStart() {}
+
+    @Override
+    protected void doStop() {}
+
+    @Override
+    protected void doClose() {
+        closed = true;
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // group commit thread may be not started or terminated with requests in queue
+        failQueued();
+        flushDirty();
+    }
+
+    private static class SyncRequest {
+        private final Flushable segment;
+        private final Promise<Flushable> promise = Promise.make();
+
+        private SyncRequest(Flushable segment) {
+            this.segment = segment;
+        }
+    }
+}
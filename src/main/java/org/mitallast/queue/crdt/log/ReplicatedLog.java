@@ -1,5 +1,8 @@
 package org.mitallast.queue.crdt.log;
 
+import javaslang.Tuple2;
+import javaslang.collection.Iterator;
+import javaslang.collection.Seq;
 import javaslang.collection.Vector;
 import org.mitallast.queue.common.stream.Streamable;
 
@@ -11,8 +14,32 @@ public interface ReplicatedLog extends Closeable {
 
     LogEntry append(long id, Streamable event);
 
+    /**
+     * Append batch of events, durability is awaited once for whole batch
+     */
+    Vector<LogEntry> append(Seq<Tuple2<Long, Streamable>> events);
+
     Vector<LogEntry> entriesFrom(long index);
 
+    /**
+     * @return entries after index, limited by count and encoded size, at least one entry if available
+     */
+    Vector<LogEntry> entriesFrom(long index, int maxEntries, long maxBytes);
+
+    /**
+     * @return index of entry before first retained entry, entries up to it are truncated
+     */
+    long startIndex();
+
+    /**
+     * Asynchronously remove sealed segments which contain only entries up to index
+     */
+    void truncate(long index);
+
+    Iterator<LogEntry> cursor(long index);
+
+    CompactionStats compactionStats();
+
     void delete();
 
     @Override
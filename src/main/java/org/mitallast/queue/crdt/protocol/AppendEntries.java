@@ -9,12 +9,14 @@ import org.mitallast.queue.crdt.log.LogEntry;
 public class AppendEntries implements Streamable {
     private final int bucket;
     private final long replica;
+    private final long seq;
     private final long prevIndex;
     private final Vector<LogEntry> entries;
 
-    public AppendEntries(int bucket, long replica, long prevIndex, Vector<LogEntry> entries) {
+    public AppendEntries(int bucket, long replica, long seq, long prevIndex, Vector<LogEntry> entries) {
         this.bucket = bucket;
         this.replica = replica;
+        this.seq = seq;
         this.prevIndex = prevIndex;
         this.entries = entries;
     }
@@ -22,6 +24,7 @@ public class AppendEntries implements Streamable {
     public AppendEntries(StreamInput stream) {
         this.bucket = stream.readInt();
         this.replica = stream.readLong();
+        this.seq = stream.readLong();
         this.prevIndex = stream.readLong();
         this.entries = stream.readVector(LogEntry::new);
     }
@@ -30,6 +33,7 @@ public class AppendEntries implements Streamable {
     public void writeTo(StreamOutput stream) {
         stream.writeInt(bucket);
         stream.writeLong(replica);
+        stream.writeLong(seq);
         stream.writeLong(prevIndex);
         stream.writeVector(entries);
     }
@@ -42,6 +46,10 @@ public class AppendEntries implements Streamable {
         return replica;
     }
 
+    public long seq() {
+        return seq;
+    }
+
     public long prevIndex() {
         return prevIndex;
     }
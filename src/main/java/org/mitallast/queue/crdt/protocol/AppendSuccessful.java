@@ -7,17 +7,20 @@ import org.mitallast.queue.common.stream.Streamable;
 public class AppendSuccessful implements Streamable {
     private final int bucket;
     private final long replica;
+    private final long seq;
     private final long index;
 
-    public AppendSuccessful(int bucket, long replica, long index) {
+    public AppendSuccessful(int bucket, long replica, long seq, long index) {
         this.bucket = bucket;
         this.replica = replica;
+        this.seq = seq;
         this.index = index;
     }
 
     public AppendSuccessful(StreamInput stream) {
         bucket = stream.readInt();
         replica = stream.readLong();
+        seq = stream.readLong();
         index = stream.readLong();
     }
 
@@ -25,6 +28,7 @@ public class AppendSuccessful implements Streamable {
     public void writeTo(StreamOutput stream) {
         stream.writeInt(bucket);
         stream.writeLong(replica);
+        stream.writeLong(seq);
         stream.writeLong(index);
     }
 
@@ -36,6 +40,10 @@ public class AppendSuccessful implements Streamable {
         return replica;
     }
 
+    public long seq() {
+        return seq;
+    }
+
     public long index() {
         return index;
     }
@@ -45,6 +53,7 @@ public class AppendSuccessful implements Streamable {
         return "AppendSuccessful{" +
             "bucket=" + bucket +
             ", replica=" + replica +
+            ", seq=" + seq +
             ", index=" + index +
             '}';
     }
@@ -0,0 +1,61 @@
+package org.mitallast.queue.crdt.protocol;
+
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.registry.RegistrySnapshot;
+
+public class InstallSnapshot implements Streamable {
+    private final int bucket;
+    private final long replica;
+    private final long seq;
+    private final RegistrySnapshot snapshot;
+
+    public InstallSnapshot(int bucket, long replica, long seq, RegistrySnapshot snapshot) {
+        this.bucket = bucket;
+        this.replica = replica;
+        this.seq = seq;
+        this.snapshot = snapshot;
+    }
+
+    public InstallSnapshot(StreamInput stream) {
+        this.bucket = stream.readInt();
+        this.replica = stream.readLong();
+        this.seq = stream.readLong();
+        this.snapshot = stream.readStreamable(RegistrySnapshot::new);
+    }
+
+    @Override
+    public void writeTo(StreamOutput stream) {
+        stream.writeInt(bucket);
+        stream.writeLong(replica);
+        stream.writeLong(seq);
+        stream.writeStreamable(snapshot);
+    }
+
+    public int bucket() {
+        return bucket;
+    }
+
+    public long replica() {
+        return replica;
+    }
+
+    public long seq() {
+        return seq;
+    }
+
+    public RegistrySnapshot snapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "InstallSnapshot{" +
+            "bucket=" + bucket +
+            ", replica=" + replica +
+            ", seq=" + seq +
+            ", snapshot=" + snapshot +
+            '}';
+    }
+}
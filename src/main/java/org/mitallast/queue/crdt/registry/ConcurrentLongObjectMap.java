@@ -0,0 +1,234 @@
+package org.mitallast.queue.crdt.registry;
+
+import gnu.trove.procedure.TLongObjectProcedure;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent open addressing map with primitive long keys and linear probing.
+ *
+ * Reads do not take locks: slot value is published by volatile write after its key,
+ * so reader which observes value observes key too. Writes of a key are serialized by stripe lock
+ * of the key, and empty slot is claimed by CAS, so writers of different stripes do not collide.
+ * Removed value is replaced by tombstone, which is reused by the same key or dropped on resize.
+ * Resize takes all stripe locks and publishes new table, readers of old table see consistent state.
+ */
+public class ConcurrentLongObjectMap<V> {
+    private final static int MIN_CAPACITY = 16;
+    private final static Object RESERVED = new Object();
+    private final static Object TOMBSTONE = new Object();
+
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile Table table;
+
+    public ConcurrentLongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize expected count of keys, table is resized when it is half full
+     */
+    public ConcurrentLongObjectMap(int expectedSize) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = Integer.highestOneBit(Math.max(1, processors * 2 - 1)) << 1;
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.stripeMask = stripes - 1;
+        this.table = new Table(capacity(expectedSize));
+    }
+
+    private static int capacity(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1);
+    }
+
+    private static int hash(long key) {
+        // murmur3 finalizer, sequential ids are spread over table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        Table table = this.table;
+        int mask = table.mask;
+        for (int i = hash(key) & mask, probe = 0; probe <= mask; i = (i + 1) & mask, probe++) {
+            Object value = table.values.get(i);
+            if (value == null) {
+                return null;
+            }
+            if (value != RESERVED && table.keys[i] == key) {
+                return value == TOMBSTONE ? null : (V) value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return previous value, or null if value is inserted
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        ReentrantLock stripe = stripes[hash & stripeMask];
+        while (true) {
+            stripe.lock();
+            try {
+                Table table = this.table;
+                // slot is reserved before probe, so concurrent writers of other stripes do not fill table
+                if (table.used.incrementAndGet() <= table.threshold) {
+                    int mask = table.mask;
+                    for (int i = hash & mask; ; i = (i + 1) & mask) {
+                        Object current = table.values.get(i);
+                        if (current == null) {
+                            if (!table.values.compareAndSet(i, null, RESERVED)) {
+                                // slot is claimed by writer of other stripe, check it again
+                                i = (i - 1) & mask;
+                                continue;
+                            }
+                            table.keys[i] = key;
+                            table.values.set(i, value);
+                            size.incrementAndGet();
+                            return null;
+                        }
+                        if (current != RESERVED && table.keys[i] == key) {
+                            table.used.decrementAndGet();
+                            if (current == TOMBSTONE) {
+                                table.values.set(i, value);
+                                size.incrementAndGet();
+                                return null;
+                            }
+                            return (V) current;
+                        }
+                    }
+                }
+                table.used.decrementAndGet();
+            } finally {
+                stripe.unlock();
+            }
+            // stripe lock is released before resize, all stripes are locked in order
+            resize();
+        }
+    }
+
+    /**
+     * @return removed value, or null if key is absent
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int hash = hash(key);
+        ReentrantLock stripe = stripes[hash & stripeMask];
+        stripe.lock();
+        try {
+            Table table = this.table;
+            int mask = table.mask;
+            for (int i = hash & mask, probe = 0; probe <= mask; i = (i + 1) & mask, probe++) {
+                Object current = table.values.get(i);
+                if (current == null) {
+                    return null;
+                }
+                if (current != RESERVED && table.keys[i] == key) {
+                    if (current == TOMBSTONE) {
+                        return null;
+                    }
+                    table.values.set(i, TOMBSTONE);
+                    size.decrementAndGet();
+                    return (V) current;
+                }
+            }
+            return null;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Weakly consistent iteration, entries written concurrently may be not visited
+     */
+    @SuppressWarnings("unchecked")
+    public boolean forEachEntry(TLongObjectProcedure<? super V> procedure) {
+        Table table = this.table;
+        for (int i = 0; i <= table.mask; i++) {
+            Object value = table.values.get(i);
+            if (value != null && value != RESERVED && value != TOMBSTONE) {
+                if (!procedure.execute(table.keys[i], (V) value)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void resize() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            Table table = this.table;
+            if (table.used.get() < table.threshold) {
+                // resized by other writer
+                return;
+            }
+            Table resized = new Table(capacity((size.get() + 1) * 2));
+            int mask = resized.mask;
+            for (int i = 0; i <= table.mask; i++) {
+                Object value = table.values.get(i);
+                if (value != null && value != TOMBSTONE) {
+                    long key = table.keys[i];
+                    int j = hash(key) & mask;
+                    while (resized.values.get(j) != null) {
+                        j = (j + 1) & mask;
+                    }
+                    resized.keys[j] = key;
+                    resized.values.set(j, value);
+                    resized.used.incrementAndGet();
+                }
+            }
+            this.table = resized;
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    private static class Table {
+        private final int mask;
+        private final int threshold;
+        private final long[] keys;
+        private final AtomicReferenceArray<Object> values;
+        // slots which are not null, including tombstones
+        private final AtomicInteger used = new AtomicInteger();
+
+        private Table(int capacity) {
+            this.mask = capacity - 1;
+            this.threshold = capacity / 2;
+            this.keys = new long[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+}
@@ -13,6 +13,16 @@ public interface CrdtRegistry {
 
     boolean createGSet(long id);
 
+    boolean createPNCounter(long id);
+
+    boolean createORSet(long id);
+
+    boolean createLWWMap(long id);
+
+    boolean createHyperLogLog(long id);
+
+    boolean createCountMinSketch(long id);
+
     boolean remove(long id);
 
     Crdt crdt(long id);
@@ -22,4 +32,13 @@ public interface CrdtRegistry {
     <T extends Crdt> T crdt(long id, Class<T> type);
 
     <T extends Crdt> Option<T> crdtOpt(long id, Class<T> type);
+
+    RegistrySnapshot snapshot(long index);
+
+    void restore(RegistrySnapshot snapshot);
+
+    /**
+     * Stop background tasks and flush buffered local updates to replicator
+     */
+    void close();
 }
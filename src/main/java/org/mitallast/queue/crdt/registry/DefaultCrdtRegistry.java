@@ -2,28 +2,54 @@ package org.mitallast.queue.crdt.registry;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import gnu.trove.map.TLongObjectMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
+import com.typesafe.config.Config;
+import javaslang.collection.Vector;
 import javaslang.control.Option;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mitallast.queue.common.stream.Streamable;
 import org.mitallast.queue.crdt.Crdt;
+import org.mitallast.queue.crdt.CrdtScheduler;
+import org.mitallast.queue.crdt.commutative.CountMinSketch;
 import org.mitallast.queue.crdt.commutative.GCounter;
 import org.mitallast.queue.crdt.commutative.GSet;
+import org.mitallast.queue.crdt.commutative.HyperLogLog;
+import org.mitallast.queue.crdt.commutative.LWWMap;
 import org.mitallast.queue.crdt.commutative.LWWRegister;
+import org.mitallast.queue.crdt.commutative.ORSet;
+import org.mitallast.queue.crdt.commutative.PNCounter;
+import org.mitallast.queue.crdt.log.LogEntry;
 import org.mitallast.queue.crdt.replication.Replicator;
 
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class DefaultCrdtRegistry implements CrdtRegistry {
+    private final static Logger logger = LogManager.getLogger();
 
     private final int index;
     private final long replica;
     private final Replicator replicator;
+    private final CrdtScheduler scheduler;
     private final ReentrantLock lock = new ReentrantLock();
+    private final int stripes;
+    private final long flushThreshold;
+    private final long flushInterval;
+    private final int hllPrecision;
+    private final int cmsWidth;
+    private final int cmsDepth;
+    private final int cmsTopK;
 
-    private TLongObjectMap<Crdt> crdtMap = new TLongObjectHashMap<>();
+    // lookup of every read and replicated entry does not take lock
+    private final ConcurrentLongObjectMap<Crdt> crdtMap = new ConcurrentLongObjectMap<>();
+    private volatile Vector<GCounter> striped = Vector.empty();
+    private CrdtScheduler.Periodic flusher;
 
     @Inject
     public DefaultCrdtRegistry(
+        Config config,
+        CrdtScheduler scheduler,
         @Assisted int index,
         @Assisted long replica,
         @Assisted Replicator replicator
@@ -31,6 +57,19 @@ public class DefaultCrdtRegistry implements CrdtRegistry {
         this.index = index;
         this.replica = replica;
         this.replicator = replicator;
+        this.scheduler = scheduler;
+        if (config.getBoolean("crdt.g-counter.striped")) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            this.stripes = Integer.highestOneBit(Math.max(1, processors * 2 - 1)) << 1;
+        } else {
+            this.stripes = 0;
+        }
+        this.flushThreshold = config.getLong("crdt.g-counter.flush-threshold");
+        this.flushInterval = config.getDuration("crdt.g-counter.flush-interval", TimeUnit.MILLISECONDS);
+        this.hllPrecision = config.getInt("crdt.hll.precision");
+        this.cmsWidth = config.getInt("crdt.count-min.width");
+        this.cmsDepth = config.getInt("crdt.count-min.depth");
+        this.cmsTopK = config.getInt("crdt.count-min.top-k");
     }
 
     @Override
@@ -40,58 +79,79 @@ public class DefaultCrdtRegistry implements CrdtRegistry {
 
     @Override
     public boolean createLWWRegister(long id) {
-        lock.lock();
-        try {
-            if (crdtMap.containsKey(id)) {
-                return false;
-            }
-            crdtMap.put(id, new LWWRegister(id, replicator));
-            return true;
-        } finally {
-            lock.unlock();
-        }
+        return crdtMap.putIfAbsent(id, new LWWRegister(id, replicator)) == null;
     }
 
     @Override
     public boolean createGCounter(long id) {
-        lock.lock();
-        try {
-            if (crdtMap.containsKey(id)) {
-                return false;
+        GCounter counter = new GCounter(id, replica, replicator, stripes, flushThreshold);
+        if (crdtMap.putIfAbsent(id, counter) != null) {
+            return false;
+        }
+        if (counter.isStriped()) {
+            lock.lock();
+            try {
+                striped = striped.append(counter);
+                if (flusher == null) {
+                    // flush could block on full writer queue, so it runs on apply pool, not on writer pool
+                    flusher = scheduler.scheduleWithFixedDelay(scheduler.applier(), this::flush, flushInterval, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                lock.unlock();
             }
-            crdtMap.put(id, new GCounter(id, replica, replicator));
-            return true;
-        } finally {
-            lock.unlock();
         }
+        return true;
     }
 
     @Override
     public boolean createGSet(long id) {
-        lock.lock();
-        try {
-            if (crdtMap.containsKey(id)) {
-                return false;
-            }
-            crdtMap.put(id, new GSet(id, replicator));
-            return true;
-        } finally {
-            lock.unlock();
-        }
+        return crdtMap.putIfAbsent(id, new GSet(id, replicator)) == null;
+    }
+
+    @Override
+    public boolean createPNCounter(long id) {
+        return crdtMap.putIfAbsent(id, new PNCounter(id, replica, replicator)) == null;
+    }
+
+    @Override
+    public boolean createORSet(long id) {
+        return crdtMap.putIfAbsent(id, new ORSet(id, replica, replicator)) == null;
+    }
+
+    @Override
+    public boolean createLWWMap(long id) {
+        return crdtMap.putIfAbsent(id, new LWWMap(id, replica, replicator)) == null;
+    }
+
+    @Override
+    public boolean createHyperLogLog(long id) {
+        return crdtMap.putIfAbsent(id, new HyperLogLog(id, replicator, hllPrecision)) == null;
+    }
+
+    @Override
+    public boolean createCountMinSketch(long id) {
+        return crdtMap.putIfAbsent(id, new CountMinSketch(id, replica, replicator, cmsWidth, cmsDepth, cmsTopK)) == null;
     }
 
     @Override
     public boolean remove(long id) {
-        lock.lock();
-        try {
-            if (crdtMap.containsKey(id)) {
-                return false;
+        Crdt crdt = crdtMap.remove(id);
+        if (crdt == null) {
+            return false;
+        }
+        if (crdt instanceof GCounter && ((GCounter) crdt).isStriped()) {
+            lock.lock();
+            try {
+                striped = striped.remove((GCounter) crdt);
+                if (striped.isEmpty() && flusher != null) {
+                    flusher.cancel();
+                    flusher = null;
+                }
+            } finally {
+                lock.unlock();
             }
-            crdtMap.remove(id);
-            return true;
-        } finally {
-            lock.unlock();
         }
+        return true;
     }
 
     @Override
@@ -132,4 +192,47 @@ public class DefaultCrdtRegistry implements CrdtRegistry {
             throw new IllegalArgumentException("CRDT " + id + " does not " + type.getSimpleName() + ", actual " + crdt.getClass().getSimpleName());
         }
     }
+
+    private void flush() {
+        for (GCounter counter : striped) {
+            try {
+                counter.flush();
+            } catch (IllegalStateException e) {
+                logger.debug("[bucket={}] skip flush: {}", index, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (flusher != null) {
+                flusher.cancel();
+                flusher = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        flush();
+    }
+
+    @Override
+    public RegistrySnapshot snapshot(long index) {
+        ArrayList<LogEntry> entries = new ArrayList<>();
+        crdtMap.forEachEntry((id, crdt) -> {
+            for (Streamable event : crdt.snapshot()) {
+                entries.add(new LogEntry(index, id, event));
+            }
+            return true;
+        });
+        return new RegistrySnapshot(index, Vector.ofAll(entries));
+    }
+
+    @Override
+    public void restore(RegistrySnapshot snapshot) {
+        for (LogEntry entry : snapshot.entries()) {
+            crdtOpt(entry.id()).forEach(crdt -> crdt.update(entry.event()));
+        }
+    }
 }
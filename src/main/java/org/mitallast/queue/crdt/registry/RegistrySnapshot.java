@@ -0,0 +1,76 @@
+package org.mitallast.queue.crdt.registry;
+
+import javaslang.collection.HashMap;
+import javaslang.collection.Map;
+import javaslang.collection.Vector;
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.log.LogEntry;
+
+/**
+ * Full registry state, includes all local log entries up to index
+ * and log entries of other replicas up to their applied indexes.
+ * Each entry holds downstream update of crdt, entry index is snapshot index.
+ */
+public class RegistrySnapshot implements Streamable {
+    private final long index;
+    private final Map<Long, Long> replicas;
+    private final Vector<LogEntry> entries;
+
+    public RegistrySnapshot(long index, Vector<LogEntry> entries) {
+        this(index, HashMap.empty(), entries);
+    }
+
+    public RegistrySnapshot(long index, Map<Long, Long> replicas, Vector<LogEntry> entries) {
+        this.index = index;
+        this.replicas = replicas;
+        this.entries = entries;
+    }
+
+    public RegistrySnapshot(StreamInput stream) {
+        this.index = stream.readLong();
+        int size = stream.readInt();
+        Map<Long, Long> replicas = HashMap.empty();
+        for (int i = 0; i < size; i++) {
+            replicas = replicas.put(stream.readLong(), stream.readLong());
+        }
+        this.replicas = replicas;
+        this.entries = stream.readVector(LogEntry::new);
+    }
+
+    @Override
+    public void writeTo(StreamOutput stream) {
+        stream.writeLong(index);
+        stream.writeInt(replicas.size());
+        replicas.forEach((replica, logIndex) -> {
+            stream.writeLong(replica);
+            stream.writeLong(logIndex);
+        });
+        stream.writeVector(entries);
+    }
+
+    public long index() {
+        return index;
+    }
+
+    /**
+     * @return applied log index of each other replica, whose entries are included into snapshot
+     */
+    public Map<Long, Long> replicas() {
+        return replicas;
+    }
+
+    public Vector<LogEntry> entries() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return "RegistrySnapshot{" +
+            "index=" + index +
+            ", replicas=" + replicas +
+            ", entries=" + entries.size() +
+            '}';
+    }
+}
@@ -0,0 +1,109 @@
+package org.mitallast.queue.crdt.replication;
+
+import javaslang.Tuple;
+import javaslang.Tuple2;
+import javaslang.collection.Seq;
+import javaslang.collection.Vector;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.commutative.CmRDT.DeltaUpdate;
+import org.mitallast.queue.crdt.commutative.CmRDT.OverwriteUpdate;
+import org.mitallast.queue.crdt.log.LogEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Combines updates of the same crdt in a batch into one update, which takes position
+ * of the last combined update. Other events are kept in original order.
+ * <p>
+ * If overwrite is enabled, the newest {@link OverwriteUpdate} is kept per crdt id and update key.
+ * If delta is enabled, all {@link DeltaUpdate} of crdt are joined into one delta.
+ */
+public final class Coalescing {
+
+    private Coalescing() {
+    }
+
+    /**
+     * Coalesce events before append to log
+     */
+    public static Vector<Tuple2<Long, Streamable>> events(Seq<Tuple2<Long, Streamable>> events, boolean overwrite, boolean delta) {
+        return coalesce(events, overwrite, delta, Tuple2::_1, Tuple2::_2, (item, event) -> Tuple.of(item._1, event));
+    }
+
+    /**
+     * Coalesce log entries before send, index of the last entry is kept
+     */
+    public static Vector<LogEntry> entries(Seq<LogEntry> entries, boolean overwrite, boolean delta) {
+        return coalesce(entries, overwrite, delta, LogEntry::id, LogEntry::event,
+            (entry, event) -> new LogEntry(entry.index(), entry.id(), event));
+    }
+
+    private static <T> Vector<T> coalesce(
+        Seq<T> items,
+        boolean overwrite,
+        boolean delta,
+        ToLongFunction<T> id,
+        Function<T, Streamable> event,
+        BiFunction<T, Streamable, T> replace
+    ) {
+        if (items.size() <= 1) {
+            return items.toVector();
+        }
+        HashMap<Object, Integer> last = new HashMap<>();
+        HashMap<Object, Streamable> combined = new HashMap<>();
+        int grouped = 0;
+        int position = 0;
+        for (T item : items) {
+            Streamable update = event.apply(item);
+            Object group = group(id.applyAsLong(item), update, overwrite, delta);
+            if (group != null) {
+                grouped++;
+                last.put(group, position);
+                combined.merge(group, update, group instanceof Long ? Coalescing::join : Coalescing::newest);
+            }
+            position++;
+        }
+        if (last.size() == grouped) {
+            return items.toVector();
+        }
+        ArrayList<T> coalesced = new ArrayList<>(items.size() - grouped + last.size());
+        position = 0;
+        for (T item : items) {
+            Streamable update = event.apply(item);
+            Object group = group(id.applyAsLong(item), update, overwrite, delta);
+            if (group == null) {
+                coalesced.add(item);
+            } else if (last.get(group) == position) {
+                Streamable result = combined.get(group);
+                coalesced.add(result == update ? item : replace.apply(item, result));
+            }
+            position++;
+        }
+        return Vector.ofAll(coalesced);
+    }
+
+    /**
+     * @return crdt id for deltas, crdt id with update key for overwrites, null if update is not combined
+     */
+    private static Object group(long id, Streamable update, boolean overwrite, boolean delta) {
+        if (delta && update instanceof DeltaUpdate) {
+            return id;
+        }
+        if (overwrite && update instanceof OverwriteUpdate) {
+            return Tuple.of(id, ((OverwriteUpdate) update).key());
+        }
+        return null;
+    }
+
+    private static Streamable join(Streamable prev, Streamable next) {
+        return ((DeltaUpdate) prev).join((DeltaUpdate) next);
+    }
+
+    private static Streamable newest(Streamable prev, Streamable next) {
+        return ((OverwriteUpdate) next).overwrites((OverwriteUpdate) prev) ? next : prev;
+    }
+}
@@ -1,18 +1,25 @@
 package org.mitallast.queue.crdt.replication;
 
+import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.typesafe.config.Config;
-import gnu.trove.impl.sync.TSynchronizedLongLongMap;
-import gnu.trove.map.TLongLongMap;
-import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import javaslang.Tuple;
+import javaslang.Tuple2;
 import javaslang.collection.Seq;
 import javaslang.collection.Vector;
+import javaslang.concurrent.Future;
+import javaslang.concurrent.Promise;
+import javaslang.control.Option;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.mitallast.queue.common.component.AbstractLifecycleComponent;
 import org.mitallast.queue.common.events.EventBus;
+import org.mitallast.queue.common.metrics.Histogram;
 import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.CrdtScheduler;
 import org.mitallast.queue.crdt.bucket.Bucket;
 import org.mitallast.queue.crdt.event.ClosedLogSynced;
 import org.mitallast.queue.crdt.log.LogEntry;
@@ -20,15 +27,20 @@ import org.mitallast.queue.crdt.log.ReplicatedLog;
 import org.mitallast.queue.crdt.protocol.AppendEntries;
 import org.mitallast.queue.crdt.protocol.AppendRejected;
 import org.mitallast.queue.crdt.protocol.AppendSuccessful;
+import org.mitallast.queue.crdt.protocol.InstallSnapshot;
+import org.mitallast.queue.crdt.registry.RegistrySnapshot;
 import org.mitallast.queue.crdt.routing.RoutingBucket;
 import org.mitallast.queue.crdt.routing.RoutingReplica;
 import org.mitallast.queue.crdt.routing.RoutingTable;
 import org.mitallast.queue.crdt.routing.fsm.RoutingTableFSM;
 import org.mitallast.queue.transport.TransportService;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class DefaultReplicator extends AbstractLifecycleComponent implements Replicator {
@@ -40,13 +52,46 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
     private final Bucket bucket;
 
     private final ReentrantLock lock = new ReentrantLock();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private final TLongLongMap replicationIndex = new TSynchronizedLongLongMap(new TLongLongHashMap(32, 0.5f, 0, 0));
-    private final TLongLongMap replicationTimeout = new TSynchronizedLongLongMap(new TLongLongHashMap(32, 0.5f, 0, 0));
+    private final CrdtScheduler scheduler;
+    private final CrdtScheduler.SerialExecutor writer;
+    private final CrdtScheduler.SerialExecutor background;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+    // not bounded, append never blocks caller; queue-size bounds accepted writes by backpressure state
+    private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+    private final int queueSize;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final int batchSize;
+    private final boolean coalesce;
+    private final boolean delta;
+    private final int window;
+    private final int maxEntries;
+    private final long minBytes;
+    private final long maxBytes;
+    private final long targetLatency;
+    private final long lagThrottle;
+    private final long lagLimit;
+    private final ArrayList<LagWaiter> waiters = new ArrayList<>();
+    private final TLongObjectMap<ReplicaWindow> windows = new TLongObjectHashMap<>();
+    private Vector<CrdtScheduler.Periodic> periodic = Vector.empty();
+
+    private final LongAdder eventsAppended = new LongAdder();
+    private final LongAdder entriesAppended = new LongAdder();
+    private final LongAdder requestsSent = new LongAdder();
+    private final LongAdder entriesSent = new LongAdder();
+    private final LongAdder snapshotsSent = new LongAdder();
+    private final LongAdder successfulCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final Histogram writeBatch = new Histogram();
+    private final Histogram sendBatch = new Histogram();
 
     private final long timeout;
+    private final long snapshotInterval;
 
     private volatile boolean open = true;
+    private volatile boolean writing = true;
+    private volatile ReplicatorState state = ReplicatorState.AVAILABLE;
 
     @Inject
     public DefaultReplicator(
@@ -54,14 +99,31 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
         RoutingTableFSM fsm,
         EventBus eventBus,
         TransportService transportService,
+        CrdtScheduler scheduler,
         @Assisted Bucket bucket
     ) {
         this.fsm = fsm;
         this.eventBus = eventBus;
         this.transportService = transportService;
+        this.scheduler = scheduler;
         this.bucket = bucket;
 
         timeout = config.getDuration("crdt.timeout", TimeUnit.MILLISECONDS);
+        snapshotInterval = config.getDuration("crdt.snapshot.interval", TimeUnit.MILLISECONDS);
+        batchSize = config.getInt("crdt.replication.batch-size");
+        coalesce = config.getBoolean("crdt.replication.coalesce");
+        delta = config.getBoolean("crdt.replication.delta");
+        window = config.getInt("crdt.replication.window");
+        maxEntries = config.getInt("crdt.replication.max-entries");
+        minBytes = config.getBytes("crdt.replication.min-bytes");
+        maxBytes = config.getBytes("crdt.replication.max-bytes");
+        targetLatency = config.getDuration("crdt.replication.target-latency", TimeUnit.MILLISECONDS);
+        lagThrottle = config.getLong("crdt.replication.lag.throttle");
+        lagLimit = config.getLong("crdt.replication.lag.limit");
+        Preconditions.checkArgument(lagThrottle < lagLimit, "crdt.replication.lag.throttle must be less than lag.limit");
+        queueSize = config.getInt("crdt.replication.queue-size");
+        writer = scheduler.serial();
+        background = scheduler.serial();
     }
 
     private void initialize() {
@@ -70,32 +132,143 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
         Seq<RoutingReplica> replicas = routingBucket.replicas().remove(bucket.replica()).values();
 
         for (RoutingReplica replica : replicas) {
-            replicationTimeout.put(replica.id(), System.currentTimeMillis() + timeout);
-            AppendEntries appendEntries = new AppendEntries(bucket.index(), bucket.replica(), 0, Vector.empty());
+            long seq = window(replica.id()).send(System.currentTimeMillis(), false);
+            AppendEntries appendEntries = new AppendEntries(bucket.index(), bucket.replica(), seq, 0, Vector.empty());
             transportService.send(replica.member(), appendEntries);
         }
-        scheduler.scheduleWithFixedDelay(() -> {
-            lock.lock();
-            try {
-                maybeSendEntries();
-            } finally {
-                lock.unlock();
-            }
-        }, timeout, timeout, TimeUnit.MILLISECONDS);
+        // periodic tasks do not run on writer, snapshot waits for crdt locks held by blocked appenders
+        periodic = Vector.of(
+            scheduler.scheduleWithFixedDelay(background, () -> {
+                lock.lock();
+                try {
+                    maybeSendEntries();
+                    maybeSync();
+                    updateState();
+                } finally {
+                    lock.unlock();
+                }
+            }, timeout, TimeUnit.MILLISECONDS),
+            scheduler.scheduleWithFixedDelay(background, this::snapshot, snapshotInterval, TimeUnit.MILLISECONDS)
+        );
+    }
+
+    private void scheduleSnapshot() {
+        if (snapshotScheduled.compareAndSet(false, true)) {
+            background.execute(() -> {
+                snapshotScheduled.set(false);
+                snapshot();
+                lock.lock();
+                try {
+                    maybeSendEntries();
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+    }
+
+    private void snapshot() {
+        try {
+            bucket.snapshot();
+        } catch (IllegalStateException e) {
+            logger.debug("[replica={}:{}] skip snapshot: {}", bucket.index(), bucket.replica(), e.getMessage());
+        } catch (Exception e) {
+            logger.error("[replica={}:{}] error snapshot", bucket.index(), bucket.replica(), e);
+        }
     }
 
+    /**
+     * Enqueue event to bucket writer, never blocks caller: it is called from netty threads and crdt appenders.
+     * While crdt.replication.queue-size events are pending, state is {@link ReplicatorState#UNAVAILABLE}
+     * and writes should not be applied by callers.
+     * Returned future is completed after batch with event is appended to log
+     * and durable as configured by crdt.log.durability, or failed with error of append.
+     */
     @Override
-    public void append(long id, Streamable event) {
-        lock.lock();
+    public Future<Void> append(long id, Streamable event) {
+        Write write = new Write(id, event);
+        pending.incrementAndGet();
+        if (!open || !writing) {
+            pending.decrementAndGet();
+            return Future.failed(new IllegalStateException("closed"));
+        }
+        queue.offer(write);
+        if (writing) {
+            scheduleWrite();
+        } else {
+            // writer is stopped while event was enqueued
+            failQueued();
+        }
+        return write.promise.future();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.execute(this::write);
+        }
+    }
+
+    /**
+     * Writer task: drains queued events, appends them to log as one batch
+     * and wakes up replication once per batch. Rescheduled while queue is not empty,
+     * so buckets share worker threads instead of blocking one thread per bucket.
+     * Futures of batch are completed after log append returns, it waits for durability of batch.
+     */
+    private void write() {
+        writeScheduled.set(false);
+        ArrayList<Write> batch = new ArrayList<>(batchSize);
+        queue.drainTo(batch, batchSize);
+        if (batch.isEmpty()) {
+            return;
+        }
+        Exception error = null;
         try {
-            if (!open) {
-                throw new IllegalStateException("closed");
+            Vector<Tuple2<Long, Streamable>> events = Vector.ofAll(batch).map(write -> Tuple.of(write.id, write.event));
+            if (coalesce || delta) {
+                // writer batch is coalescing window, only the newest overwrite of each key
+                // or joined delta of each crdt is appended to log
+                events = Coalescing.events(events, coalesce, delta);
             }
-            bucket.log().append(id, event);
+            bucket.log().append(events);
+            eventsAppended.add(batch.size());
+            entriesAppended.add(events.size());
+            writeBatch.record(batch.size());
+        } catch (Exception e) {
+            logger.error("[replica={}:{}] error append {} entries", bucket.index(), bucket.replica(), batch.size(), e);
+            error = e;
+        }
+        pending.addAndGet(-batch.size());
+        for (Write write : batch) {
+            if (error == null) {
+                write.promise.success(null);
+            } else {
+                write.promise.failure(error);
+            }
+        }
+
+        lock.lock();
+        try {
             maybeSendEntries();
+            maybeSync();
+            updateState();
         } finally {
             lock.unlock();
         }
+        if (!queue.isEmpty()) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Fail events which are not taken by writer, called after writer is stopped
+     */
+    private void failQueued() {
+        ArrayList<Write> failed = new ArrayList<>();
+        queue.drainTo(failed);
+        pending.addAndGet(-failed.size());
+        for (Write write : failed) {
+            write.promise.failure(new IllegalStateException("closed"));
+        }
     }
 
     @Override
@@ -103,16 +276,15 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
         lock.lock();
         try {
             if (logger.isDebugEnabled()) {
-                logger.debug("[replica={}:{}] append successful from={}:{} last={}",
+                logger.debug("[replica={}:{}] append successful from={}:{} seq={} last={}",
                     bucket.index(), bucket.replica(),
-                    message.bucket(), message.replica(), message.index());
-            }
-            if (replicationIndex.get(message.replica()) < message.index()) {
-                replicationIndex.put(message.replica(), message.index());
+                    message.bucket(), message.replica(), message.seq(), message.index());
             }
-            replicationTimeout.put(message.replica(), 0);
+            successfulCount.increment();
+            window(message.replica()).successful(message.seq(), message.index(), System.currentTimeMillis());
             maybeSendEntries(message.replica());
             maybeSync();
+            updateState();
         } finally {
             lock.unlock();
         }
@@ -122,15 +294,24 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
     public void rejected(AppendRejected message) {
         lock.lock();
         try {
-            logger.warn("[replica={}:{}] append rejected from={}:{} last={}",
-                bucket.index(), bucket.replica(),
-                message.bucket(), message.replica(), message.index());
-            if (replicationIndex.get(message.replica()) < message.index()) {
-                replicationIndex.put(message.replica(), message.index());
+            ReplicaWindow replicaWindow = window(message.replica());
+            if (message.seq() <= replicaWindow.reset) {
+                // request was sent before window reset, response to resent request is expected
+                if (logger.isDebugEnabled()) {
+                    logger.debug("[replica={}:{}] ignore stale append rejected from={}:{} seq={} last={}",
+                        bucket.index(), bucket.replica(),
+                        message.bucket(), message.replica(), message.seq(), message.index());
+                }
+                return;
             }
-            replicationTimeout.put(message.replica(), 0);
+            rejectedCount.increment();
+            logger.warn("[replica={}:{}] append rejected from={}:{} seq={} last={}",
+                bucket.index(), bucket.replica(),
+                message.bucket(), message.replica(), message.seq(), message.index());
+            replicaWindow.rejected(message.index());
             maybeSendEntries(message.replica());
             maybeSync();
+            updateState();
         } finally {
             lock.unlock();
         }
@@ -141,6 +322,7 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
         lock.lock();
         try {
             open = true;
+            updateState();
         } finally {
             lock.unlock();
         }
@@ -152,11 +334,125 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
         try {
             open = false;
             maybeSync();
+            updateState();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    /**
+     * Lag of replicas is recalculated by writer and replication responses, writer queue occupancy is checked
+     * on every call: writes are throttled while queue is half full, lag bounds are much larger than queue.
+     */
+    public ReplicatorState state() {
+        int pending = this.pending.get();
+        if (pending >= queueSize) {
+            return ReplicatorState.UNAVAILABLE;
+        }
+        ReplicatorState state = this.state;
+        if (pending >= queueSize / 2 && state == ReplicatorState.AVAILABLE) {
+            return ReplicatorState.THROTTLED;
+        }
+        return state;
+    }
+
+    @Override
+    public Future<Long> awaitLag() {
+        lock.lock();
+        try {
+            if (!writing) {
+                return Future.failed(new IllegalStateException("closed"));
+            }
+            long slowest = slowest();
+            LagWaiter waiter = new LagWaiter(bucket.log().index() + pending.get());
+            if (waiter.isReady(slowest)) {
+                return Future.successful(slowest);
+            }
+            waiters.add(waiter);
+            return waiter.promise.future();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ReplicatorMetrics metrics() {
+        lock.lock();
+        try {
+            long index = bucket.log().index();
+            RoutingTable routingTable = fsm.get();
+            RoutingBucket routingBucket = routingTable.buckets().get(bucket.index());
+            Vector<ReplicatorMetrics.ReplicaMetrics> replicas = routingBucket.replicas().remove(bucket.replica())
+                .values()
+                .map(replica -> window(replica.id()).metrics(replica.id(), index))
+                .toVector();
+            return new ReplicatorMetrics(
+                bucket.index(),
+                bucket.replica(),
+                state,
+                index,
+                pending.get(),
+                eventsAppended.sum(),
+                entriesAppended.sum(),
+                requestsSent.sum(),
+                entriesSent.sum(),
+                snapshotsSent.sum(),
+                successfulCount.sum(),
+                rejectedCount.sum(),
+                timeouts.sum(),
+                writeBatch.snapshot(),
+                sendBatch.snapshot(),
+                replicas
+            );
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * @return the lowest index acknowledged by replicas of bucket, or last log index if there is no replica
+     */
+    private long slowest() {
+        RoutingTable routingTable = fsm.get();
+        RoutingBucket routingBucket = routingTable.buckets().get(bucket.index());
+        long slowest = bucket.log().index();
+        for (RoutingReplica replica : routingBucket.replicas().remove(bucket.replica()).values()) {
+            slowest = Math.min(slowest, window(replica.id()).acknowledged);
+        }
+        return slowest;
+    }
+
+    /**
+     * Recalculate backpressure state by lag of the slowest replica, queued events are counted as lag too.
+     * Should be called under lock after log index or acknowledged index changes.
+     */
+    private void updateState() {
+        long slowest = slowest();
+        long lag = bucket.log().index() + pending.get() - slowest;
+        ReplicatorState next;
+        if (!open || !writing || lag > lagLimit) {
+            next = ReplicatorState.UNAVAILABLE;
+        } else if (lag > lagThrottle) {
+            next = ReplicatorState.THROTTLED;
+        } else {
+            next = ReplicatorState.AVAILABLE;
+        }
+        if (state != next) {
+            logger.info("[replica={}:{}] state {} lag={}", bucket.index(), bucket.replica(), next, lag);
+            state = next;
+        }
+        if (!waiters.isEmpty()) {
+            waiters.removeIf(waiter -> {
+                if (waiter.isReady(slowest)) {
+                    waiter.promise.success(slowest);
+                    return true;
+                }
+                return false;
+            });
+        }
+    }
+
     private void maybeSendEntries() {
         RoutingTable routingTable = fsm.get();
         RoutingBucket routingBucket = routingTable.buckets().get(this.bucket.index());
@@ -174,49 +470,88 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
         if (replica.id() == bucket.replica()) { // do not send to self
             return;
         }
-        long timeout = replicationTimeout.get(replica.id());
-        if (timeout == 0) {
-            if (logger.isTraceEnabled()) {
-                logger.trace("[replica={}:{}] no request in progress at {}:{}",
-                    bucket.index(), bucket.replica(),
-                    bucket.index(), replica.id());
-            }
-            sendEntries(replica);
-        } else if (timeout < System.currentTimeMillis()) {
-            logger.warn("[replica={}:{}] request timeout at {}:{}",
+        ReplicaWindow replicaWindow = window(replica.id());
+        if (replicaWindow.isExpired(System.currentTimeMillis())) {
+            logger.warn("[replica={}:{}] request timeout at {}:{}, resend from {}",
                 bucket.index(), bucket.replica(),
-                bucket.index(), replica.id());
-            sendEntries(replica);
-        } else {
-            if (logger.isTraceEnabled()) {
-                logger.trace("[replica={}:{}] request in progress to {}:{}",
-                    bucket.index(), bucket.replica(),
-                    bucket.index(), replica.id());
-            }
+                bucket.index(), replica.id(), replicaWindow.acknowledged);
+            timeouts.increment();
+            replicaWindow.reset();
         }
+        sendEntries(replica, replicaWindow);
     }
 
-    private void sendEntries(RoutingReplica replica) {
-        long prev = replicationIndex.get(replica.id());
+    /**
+     * Fill replication window of replica, each request continues from the last index of previous one.
+     */
+    private void sendEntries(RoutingReplica replica, ReplicaWindow replicaWindow) {
         ReplicatedLog log = bucket.log();
-        Vector<LogEntry> append = log.entriesFrom(prev).take(10000);
-        if (append.nonEmpty()) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("[replica={}:{}] send append to={}:{} prev={} entries: {}",
+        while (replicaWindow.size() < window) {
+            long prev = replicaWindow.sent;
+            if (prev < log.startIndex()) {
+                // log prefix is truncated, replica should be bootstrapped from snapshot
+                Option<RegistrySnapshot> snapshot = bucket.lastSnapshot();
+                if (snapshot.isDefined() && snapshot.get().index() >= log.startIndex()) {
+                    logger.info("[replica={}:{}] send snapshot to={}:{} prev={} snapshot={}",
+                        bucket.index(), bucket.replica(),
+                        bucket.index(), replica.id(), prev, snapshot.get());
+                    long seq = replicaWindow.send(System.currentTimeMillis(), false);
+                    replicaWindow.sent = snapshot.get().index();
+                    snapshotsSent.increment();
+                    transportService.send(replica.member(), new InstallSnapshot(bucket.index(), bucket.replica(), seq, snapshot.get()));
+                    continue;
+                }
+                // entries after prev are truncated, wait for snapshot instead of sending entries with gap
+                logger.warn("[replica={}:{}] wait snapshot to={}:{} prev={} start={}",
                     bucket.index(), bucket.replica(),
-                    bucket.index(), replica.id(), prev, append);
+                    bucket.index(), replica.id(), prev, log.startIndex());
+                scheduleSnapshot();
+                return;
             }
-            replicationTimeout.put(replica.id(), System.currentTimeMillis() + timeout);
-            transportService.send(replica.member(), new AppendEntries(bucket.index(), bucket.replica(), prev, append));
-        } else {
-            if (logger.isTraceEnabled()) {
-                logger.trace("no new entries");
+            long limit = replicaWindow.batchBytes;
+            Vector<LogEntry> append = log.entriesFrom(prev, maxEntries, limit);
+            if (append.isEmpty()) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace("no new entries");
+                }
+                return;
+            }
+            // batch is cut by limits, so round trip time of it is relevant for batch size
+            boolean full = append.last().index() < log.index();
+            if (coalesce || delta) {
+                // index of last entry is kept, so replica index still advances to the end of batch
+                append = Coalescing.entries(append, coalesce, delta);
+            }
+            long seq = replicaWindow.send(System.currentTimeMillis(), full);
+            replicaWindow.sent = append.last().index();
+            requestsSent.increment();
+            entriesSent.add(append.size());
+            sendBatch.record(append.size());
+            if (logger.isDebugEnabled()) {
+                logger.debug("[replica={}:{}] send append to={}:{} seq={} prev={} limit={} entries: {}",
+                    bucket.index(), bucket.replica(),
+                    bucket.index(), replica.id(), seq, prev, limit, append);
             }
+            transportService.send(replica.member(), new AppendEntries(bucket.index(), bucket.replica(), seq, prev, append));
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("[replica={}:{}] replication window to {}:{} is full",
+                bucket.index(), bucket.replica(),
+                bucket.index(), replica.id());
         }
     }
 
+    private ReplicaWindow window(long replica) {
+        ReplicaWindow replicaWindow = windows.get(replica);
+        if (replicaWindow == null) {
+            replicaWindow = new ReplicaWindow();
+            windows.put(replica, replicaWindow);
+        }
+        return replicaWindow;
+    }
+
     private void maybeSync() {
-        if (!open) {
+        if (!open && pending.get() == 0) {
             long last = bucket.log().index();
 
             RoutingTable routingTable = fsm.get();
@@ -226,7 +561,7 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
                 return;
             }
             for (RoutingReplica replica : replicas) {
-                if (replicationIndex.get(replica.id()) != last) {
+                if (window(replica.id()).acknowledged != last) {
                     return; // not synced
                 }
             }
@@ -239,14 +574,160 @@ public class DefaultReplicator extends AbstractLifecycleComponent implements Rep
         lock.lock();
         try {
             initialize();
+            updateState();
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    protected void doStop() {}
+    protected void doStop() {
+        writing = false;
+        periodic.forEach(CrdtScheduler.Periodic::cancel);
+        lock.lock();
+        try {
+            updateState();
+            waiters.forEach(waiter -> waiter.promise.failure(new IllegalStateException("closed")));
+            waiters.clear();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (!writer.awaitIdle(timeout, TimeUnit.MILLISECONDS)) {
+                logger.warn("[replica={}:{}] writer not stopped, {} entries pending", bucket.index(), bucket.replica(), pending.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failQueued();
+    }
 
     @Override
     protected void doClose() {}
+
+    /**
+     * In-flight requests to single replica. Entries up to acknowledged index are confirmed by replica,
+     * entries up to sent index are in flight. Requests are numbered by sequence, responses to requests
+     * sent before last reset are stale.
+     *
+     * Batch size in bytes is adapted by round trip time of full batches: it grows while acknowledges
+     * are faster than crdt.replication.target-latency and shrinks otherwise.
+     */
+    private class ReplicaWindow {
+        private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+        private final Histogram latency = new Histogram();
+        private long acknowledged;
+        private long sent;
+        private long seq;
+        private long reset;
+        private long batchBytes = minBytes;
+
+        private int size() {
+            return inFlight.size();
+        }
+
+        private boolean isExpired(long now) {
+            return !inFlight.isEmpty() && inFlight.peek().sent + timeout < now;
+        }
+
+        private long send(long now, boolean full) {
+            seq++;
+            inFlight.add(new InFlight(seq, now, full));
+            return seq;
+        }
+
+        private void successful(long seq, long index, long now) {
+            while (!inFlight.isEmpty() && inFlight.peek().seq <= seq) {
+                InFlight request = inFlight.poll();
+                if (request.seq == seq) {
+                    latency.record(now - request.sent);
+                    if (request.full) {
+                        adapt(now - request.sent);
+                    }
+                }
+            }
+            if (acknowledged < index) {
+                acknowledged = index;
+            }
+            if (sent < acknowledged) {
+                sent = acknowledged;
+            }
+        }
+
+        private void adapt(long latency) {
+            if (latency <= targetLatency) {
+                batchBytes = Math.min(maxBytes, batchBytes * 2);
+            } else {
+                batchBytes = Math.max(minBytes, batchBytes / 2);
+            }
+        }
+
+        private void rejected(long index) {
+            if (acknowledged < index) {
+                acknowledged = index;
+            }
+            reset();
+        }
+
+        private ReplicatorMetrics.ReplicaMetrics metrics(long replica, long index) {
+            return new ReplicatorMetrics.ReplicaMetrics(
+                replica,
+                acknowledged,
+                sent,
+                Math.max(0, index - acknowledged),
+                inFlight.size(),
+                batchBytes,
+                latency.snapshot()
+            );
+        }
+
+        /**
+         * Drop all in-flight requests and continue from acknowledged index
+         */
+        private void reset() {
+            inFlight.clear();
+            reset = seq;
+            sent = acknowledged;
+        }
+    }
+
+    private class LagWaiter {
+        private final long index;
+        private final Promise<Long> promise = Promise.make();
+
+        private LagWaiter(long index) {
+            this.index = index;
+        }
+
+        /**
+         * Ready if writes up to index are within lag throttle, or all replicas acknowledged current log,
+         * as coalesced events do not advance log index up to expected one
+         */
+        private boolean isReady(long slowest) {
+            return index - slowest <= lagThrottle || (slowest >= bucket.log().index() && pending.get() == 0);
+        }
+    }
+
+    private static class Write {
+        private final long id;
+        private final Streamable event;
+        private final Promise<Void> promise = Promise.make();
+
+        private Write(long id, Streamable event) {
+            this.id = id;
+            this.event = event;
+        }
+    }
+
+    private static class InFlight {
+        private final long seq;
+        private final long sent;
+        private final boolean full;
+
+        private InFlight(long seq, long sent, boolean full) {
+            this.seq = seq;
+            this.sent = sent;
+            this.full = full;
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package org.mitallast.queue.crdt.replication;
 
+import javaslang.concurrent.Future;
 import org.mitallast.queue.common.component.LifecycleComponent;
 import org.mitallast.queue.common.stream.Streamable;
 import org.mitallast.queue.crdt.protocol.AppendRejected;
@@ -7,7 +8,24 @@ import org.mitallast.queue.crdt.protocol.AppendSuccessful;
 
 public interface Replicator extends LifecycleComponent {
 
-    void append(long id, Streamable event);
+    /**
+     * @return future completed after event is appended to bucket log and durable as configured
+     * by crdt.log.durability; failed if replicator is stopped or log append is failed
+     */
+    Future<Void> append(long id, Streamable event);
+
+    /**
+     * @return backpressure state, writes should not be applied while it is not {@link ReplicatorState#AVAILABLE}
+     */
+    ReplicatorState state();
+
+    /**
+     * @return future completed with last acknowledged index of the slowest replica, once writes appended before
+     * the call are within crdt.replication.lag.throttle of it; failed if replicator is stopped
+     */
+    Future<Long> awaitLag();
+
+    ReplicatorMetrics metrics();
 
     void successful(AppendSuccessful message);
 
@@ -0,0 +1,250 @@
+package org.mitallast.queue.crdt.replication;
+
+import javaslang.collection.Vector;
+import org.mitallast.queue.common.metrics.Histogram;
+
+/**
+ * Point in time metrics of bucket replicator. Counters are totals since replicator start,
+ * gauges of replica are taken from its replication window.
+ */
+public class ReplicatorMetrics {
+    private final int bucket;
+    private final long replica;
+    private final ReplicatorState state;
+    private final long index;
+    private final long pending;
+    private final long eventsAppended;
+    private final long entriesAppended;
+    private final long requestsSent;
+    private final long entriesSent;
+    private final long snapshotsSent;
+    private final long successful;
+    private final long rejected;
+    private final long timeouts;
+    private final Histogram.Snapshot writeBatch;
+    private final Histogram.Snapshot sendBatch;
+    private final Vector<ReplicaMetrics> replicas;
+
+    public ReplicatorMetrics(
+        int bucket,
+        long replica,
+        ReplicatorState state,
+        long index,
+        long pending,
+        long eventsAppended,
+        long entriesAppended,
+        long requestsSent,
+        long entriesSent,
+        long snapshotsSent,
+        long successful,
+        long rejected,
+        long timeouts,
+        Histogram.Snapshot writeBatch,
+        Histogram.Snapshot sendBatch,
+        Vector<ReplicaMetrics> replicas
+    ) {
+        this.bucket = bucket;
+        this.replica = replica;
+        this.state = state;
+        this.index = index;
+        this.pending = pending;
+        this.eventsAppended = eventsAppended;
+        this.entriesAppended = entriesAppended;
+        this.requestsSent = requestsSent;
+        this.entriesSent = entriesSent;
+        this.snapshotsSent = snapshotsSent;
+        this.successful = successful;
+        this.rejected = rejected;
+        this.timeouts = timeouts;
+        this.writeBatch = writeBatch;
+        this.sendBatch = sendBatch;
+        this.replicas = replicas;
+    }
+
+    public int bucket() {
+        return bucket;
+    }
+
+    public long replica() {
+        return replica;
+    }
+
+    public ReplicatorState state() {
+        return state;
+    }
+
+    /**
+     * @return last index of local log
+     */
+    public long index() {
+        return index;
+    }
+
+    /**
+     * @return events queued to writer
+     */
+    public long pending() {
+        return pending;
+    }
+
+    public long eventsAppended() {
+        return eventsAppended;
+    }
+
+    /**
+     * @return log entries written by writer, less than events appended if updates are coalesced
+     */
+    public long entriesAppended() {
+        return entriesAppended;
+    }
+
+    public long requestsSent() {
+        return requestsSent;
+    }
+
+    public long entriesSent() {
+        return entriesSent;
+    }
+
+    public long snapshotsSent() {
+        return snapshotsSent;
+    }
+
+    public long successful() {
+        return successful;
+    }
+
+    public long rejected() {
+        return rejected;
+    }
+
+    public long timeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return events per writer batch
+     */
+    public Histogram.Snapshot writeBatch() {
+        return writeBatch;
+    }
+
+    /**
+     * @return entries per append request
+     */
+    public Histogram.Snapshot sendBatch() {
+        return sendBatch;
+    }
+
+    public Vector<ReplicaMetrics> replicas() {
+        return replicas;
+    }
+
+    /**
+     * @return lag of the slowest replica in entries
+     */
+    public long maxLag() {
+        return replicas.map(ReplicaMetrics::lag).max().getOrElse(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatorMetrics{" +
+            "bucket=" + bucket +
+            ", replica=" + replica +
+            ", state=" + state +
+            ", index=" + index +
+            ", pending=" + pending +
+            ", eventsAppended=" + eventsAppended +
+            ", entriesAppended=" + entriesAppended +
+            ", requestsSent=" + requestsSent +
+            ", entriesSent=" + entriesSent +
+            ", snapshotsSent=" + snapshotsSent +
+            ", successful=" + successful +
+            ", rejected=" + rejected +
+            ", timeouts=" + timeouts +
+            ", writeBatch=" + writeBatch +
+            ", sendBatch=" + sendBatch +
+            ", replicas=" + replicas +
+            '}';
+    }
+
+    public static class ReplicaMetrics {
+        private final long replica;
+        private final long acknowledged;
+        private final long sent;
+        private final long lag;
+        private final int inFlight;
+        private final long batchBytes;
+        private final Histogram.Snapshot latency;
+
+        public ReplicaMetrics(long replica, long acknowledged, long sent, long lag, int inFlight, long batchBytes, Histogram.Snapshot latency) {
+            this.replica = replica;
+            this.acknowledged = acknowledged;
+            this.sent = sent;
+            this.lag = lag;
+            this.inFlight = inFlight;
+            this.batchBytes = batchBytes;
+            this.latency = latency;
+        }
+
+        public long replica() {
+            return replica;
+        }
+
+        /**
+         * @return last index acknowledged by replica
+         */
+        public long acknowledged() {
+            return acknowledged;
+        }
+
+        /**
+         * @return last index sent to replica
+         */
+        public long sent() {
+            return sent;
+        }
+
+        /**
+         * @return entries of local log not acknowledged by replica
+         */
+        public long lag() {
+            return lag;
+        }
+
+        /**
+         * @return requests sent and not acknowledged yet
+         */
+        public int inFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return current adaptive byte limit of append request
+         */
+        public long batchBytes() {
+            return batchBytes;
+        }
+
+        /**
+         * @return round trip time of append requests in milliseconds
+         */
+        public Histogram.Snapshot latency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return "ReplicaMetrics{" +
+                "replica=" + replica +
+                ", acknowledged=" + acknowledged +
+                ", sent=" + sent +
+                ", lag=" + lag +
+                ", inFlight=" + inFlight +
+                ", batchBytes=" + batchBytes +
+                ", latency=" + latency +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.mitallast.queue.crdt.replication;
+
+/**
+ * Backpressure signal of bucket replicator, based on lag of the slowest replica behind local log
+ * and on events queued to bucket writer.
+ */
+public enum ReplicatorState {
+    /**
+     * Writes are accepted
+     */
+    AVAILABLE,
+    /**
+     * Lag exceeds crdt.replication.lag.throttle or writer queue is half full, writes should be retried later
+     */
+    THROTTLED,
+    /**
+     * Lag exceeds crdt.replication.lag.limit, writer queue holds crdt.replication.queue-size events
+     * or replicator is closed, writes are not accepted
+     */
+    UNAVAILABLE
+}
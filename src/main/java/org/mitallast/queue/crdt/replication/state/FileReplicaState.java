@@ -2,105 +2,243 @@ package org.mitallast.queue.crdt.replication.state;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import gnu.trove.impl.sync.TSynchronizedLongLongMap;
-import gnu.trove.iterator.TLongLongIterator;
+import gnu.trove.map.TLongIntMap;
 import gnu.trove.map.TLongLongMap;
+import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongLongHashMap;
+import javaslang.collection.HashMap;
+import javaslang.collection.Map;
+import org.mitallast.queue.common.file.FileException;
 import org.mitallast.queue.common.file.FileService;
 import org.mitallast.queue.common.stream.StreamInput;
-import org.mitallast.queue.common.stream.StreamOutput;
 import org.mitallast.queue.common.stream.StreamService;
+import org.mitallast.queue.crdt.log.LogSyncService;
 
 import java.io.File;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class FileReplicaState implements ReplicaState {
+/**
+ * Replica indexes in fixed slots of memory mapped file, updated in place.
+ * Each slot has two records: long replica, long index, long sequence, long checksum.
+ * Records are written alternately with increasing sequence, so torn write of one record
+ * leaves previous one valid, and on load valid record with the highest sequence wins.
+ * Flush policy is crdt.log.durability, same as bucket log.
+ */
+public class FileReplicaState implements ReplicaState, Flushable {
+    private final static int RECORD_SIZE = 32;
+    private final static int SLOT_SIZE = RECORD_SIZE * 2;
+    private final static int INITIAL_SLOTS = 8;
+
     private final FileService fileService;
     private final StreamService streamService;
-    private final TLongLongMap indexMap;
-    private final AtomicInteger size;
-    private final ReentrantLock writeLock;
+    private final LogSyncService logSync;
     private final String serviceName;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TLongIntMap slots = new TLongIntHashMap(INITIAL_SLOTS, 0.5f, 0, -1);
+    private final FileChannel channel;
 
-    private volatile File file;
-    private volatile StreamOutput output;
+    private long[] indexes;
+    private long[] sequences;
+    private volatile MappedByteBuffer mapped;
 
     @Inject
     public FileReplicaState(
         FileService fileService,
         StreamService streamService,
+        LogSyncService logSync,
         @Assisted int index,
         @Assisted long replicaId
     ) {
         this.fileService = fileService;
         this.streamService = streamService;
-        this.indexMap = new TSynchronizedLongLongMap(new TLongLongHashMap(7, 0.5f, 0, 0));
-        this.size = new AtomicInteger();
-        this.writeLock = new ReentrantLock();
+        this.logSync = logSync;
         this.serviceName = String.format("crdt/%d/replica/%d", index, replicaId);
 
-        this.file = fileService.resource(serviceName, "state.log");
-        this.output = streamService.output(file, true);
+        File file = fileService.resource(serviceName, "state.bin");
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int capacity = Math.max(INITIAL_SLOTS, (int) (channel.size() / SLOT_SIZE));
+            indexes = new long[capacity];
+            sequences = new long[capacity];
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_SIZE);
+        } catch (IOException e) {
+            throw new FileException(e);
+        }
+        for (int slot = 0; slot < indexes.length; slot++) {
+            load(slot);
+        }
+        migrate();
+    }
 
-        if (file.length() > 0) {
-            try (StreamInput stream = streamService.input(file)) {
-                while (stream.available() > 0) {
-                    indexMap.put(stream.readLong(), stream.readLong());
-                    size.incrementAndGet();
+    private void load(int slot) {
+        long sequence = 0;
+        for (int record = 0; record < 2; record++) {
+            int position = slot * SLOT_SIZE + record * RECORD_SIZE;
+            long replica = mapped.getLong(position);
+            long index = mapped.getLong(position + 8);
+            long seq = mapped.getLong(position + 16);
+            long checksum = mapped.getLong(position + 24);
+            if (seq > sequence && checksum == checksum(replica, index, seq)) {
+                sequence = seq;
+                indexes[slot] = index;
+                slots.put(replica, slot);
+            }
+        }
+        sequences[slot] = sequence;
+    }
+
+    /**
+     * Import append-only state.log written by previous versions
+     */
+    private void migrate() {
+        File legacy = new File(fileService.service(serviceName), "state.log");
+        if (!legacy.exists()) {
+            return;
+        }
+        if (legacy.length() > 0) {
+            TLongLongMap legacyMap = new TLongLongHashMap();
+            try (StreamInput stream = streamService.input(legacy)) {
+                while (stream.available() >= 16) {
+                    legacyMap.put(stream.readLong(), stream.readLong());
                 }
             }
+            legacyMap.forEachEntry((replica, index) -> {
+                if (get(replica) < index) {
+                    put(replica, index);
+                }
+                return true;
+            });
+            flush();
         }
+        fileService.delete(legacy);
     }
 
     @Override
     public void put(long replica, long logIndex) {
-        writeLock.lock();
+        lock.lock();
         try {
-            assert indexMap.get(replica) <= logIndex;
-            indexMap.put(replica, logIndex);
-            output.writeLong(replica);
-            output.writeLong(logIndex);
-            int size = this.size.incrementAndGet();
-            if (size > indexMap.size() + 1000000) {
-                output.close();
-
-                File tmp = fileService.temporary(serviceName, "state", "log");
-                try (StreamOutput stream = streamService.output(tmp)) {
-                    TLongLongIterator iterator = indexMap.iterator();
-                    while (iterator.hasNext()) {
-                        iterator.advance();
-                        stream.writeLong(iterator.key());
-                        stream.writeLong(iterator.value());
-                    }
-                }
+            int slot = slots.get(replica);
+            if (slot < 0) {
+                slot = allocate(replica);
+            }
+            assert indexes[slot] <= logIndex;
+            write(slot, replica, logIndex);
+        } finally {
+            lock.unlock();
+        }
+        logSync.written(this);
+    }
 
-                fileService.move(tmp, file);
+    @Override
+    public Map<Long, Long> indexes() {
+        lock.lock();
+        try {
+            Map<Long, Long> indexes = HashMap.empty();
+            for (long replica : slots.keys()) {
+                indexes = indexes.put(replica, this.indexes[slots.get(replica)]);
+            }
+            return indexes;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                this.file = fileService.resource(serviceName, "state.log");
-                this.output = streamService.output(file, true);
+    @Override
+    public void restore(Map<Long, Long> indexes) {
+        lock.lock();
+        try {
+            for (long replica : slots.keys()) {
+                if (!indexes.containsKey(replica)) {
+                    write(slots.get(replica), replica, 0);
+                }
             }
+            indexes.forEach((replica, logIndex) -> {
+                int slot = slots.get(replica);
+                if (slot < 0) {
+                    slot = allocate(replica);
+                }
+                write(slot, replica, logIndex);
+            });
         } finally {
-            writeLock.unlock();
+            lock.unlock();
         }
+        logSync.written(this);
+    }
+
+    private void write(int slot, long replica, long logIndex) {
+        long seq = ++sequences[slot];
+        int position = slot * SLOT_SIZE + (int) (seq & 1) * RECORD_SIZE;
+        MappedByteBuffer mapped = this.mapped;
+        mapped.putLong(position, replica);
+        mapped.putLong(position + 8, logIndex);
+        mapped.putLong(position + 16, seq);
+        mapped.putLong(position + 24, checksum(replica, logIndex, seq));
+        indexes[slot] = logIndex;
+    }
+
+    private int allocate(long replica) {
+        int slot = 0;
+        while (slot < sequences.length && sequences[slot] > 0) {
+            slot++;
+        }
+        if (slot == sequences.length) {
+            int capacity = sequences.length * 2;
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * SLOT_SIZE);
+            } catch (IOException e) {
+                throw new FileException(e);
+            }
+            indexes = Arrays.copyOf(indexes, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+        }
+        slots.put(replica, slot);
+        return slot;
+    }
+
+    private static long checksum(long replica, long index, long seq) {
+        long hash = 0x9E3779B97F4A7C15L;
+        hash = (hash ^ replica) * 0x100000001B3L;
+        hash = (hash ^ index) * 0x100000001B3L;
+        hash = (hash ^ seq) * 0x100000001B3L;
+        return hash;
     }
 
     @Override
     public long get(long replica) {
-        return indexMap.get(replica);
+        lock.lock();
+        try {
+            int slot = slots.get(replica);
+            return slot < 0 ? 0 : indexes[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (channel.isOpen()) {
+            mapped.force();
+        }
     }
 
     @Override
     public void close() {
-        writeLock.lock();
+        lock.lock();
         try {
-            file = null;
-            if (output != null) {
-                output.close();
-                output = null;
+            if (channel.isOpen()) {
+                logSync.closed(this);
+                channel.close();
             }
+        } catch (IOException e) {
+            throw new FileException(e);
         } finally {
-            writeLock.unlock();
+            lock.unlock();
         }
     }
 
@@ -1,5 +1,7 @@
 package org.mitallast.queue.crdt.replication.state;
 
+import javaslang.collection.Map;
+
 import java.io.Closeable;
 
 public interface ReplicaState extends Closeable {
@@ -8,6 +10,17 @@ public interface ReplicaState extends Closeable {
 
     long get(long replica);
 
+    /**
+     * @return applied log index of each known replica
+     */
+    Map<Long, Long> indexes();
+
+    /**
+     * Replace applied log indexes, index of replica which is absent is reset to 0.
+     * Unlike {@link #put(long, long)}, index could be moved backward.
+     */
+    void restore(Map<Long, Long> indexes);
+
     void delete();
 
     @Override
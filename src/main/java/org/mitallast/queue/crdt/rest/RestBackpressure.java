@@ -0,0 +1,51 @@
+package org.mitallast.queue.crdt.rest;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import javaslang.concurrent.Future;
+import javaslang.control.Either;
+import javaslang.control.Option;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
+import org.mitallast.queue.rest.RestRequest;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Maps replicator backpressure state of bucket to http status of crdt writes:
+ * 429 while replication lag is throttled, 503 while replicator is unavailable.
+ * Writes with wait_for_lag respond after replication lag of the write is within throttle.
+ */
+final class RestBackpressure {
+
+    private RestBackpressure() {
+    }
+
+    /**
+     * @return replicator state if bucket does not accept writes
+     */
+    static Option<ReplicatorState> check(Bucket bucket) {
+        ReplicatorState state = bucket.replicator().state();
+        if (state == ReplicatorState.AVAILABLE) {
+            return Option.none();
+        }
+        return Option.some(state);
+    }
+
+    /**
+     * @return future of result, completed after replication lag of accepted write is within throttle if requested
+     */
+    static <T> Future<Either<ReplicatorState, T>> awaitLag(Bucket bucket, boolean waitForLag, Either<ReplicatorState, T> result) {
+        if (!waitForLag || result.isLeft()) {
+            return Future.successful(result);
+        }
+        return bucket.replicator().awaitLag().map(index -> result);
+    }
+
+    static BiConsumer<RestRequest, ReplicatorState> status() {
+        return (request, state) -> request.response()
+            .status(state == ReplicatorState.THROTTLED
+                ? HttpResponseStatus.TOO_MANY_REQUESTS
+                : HttpResponseStatus.SERVICE_UNAVAILABLE)
+            .text(state.name());
+    }
+}
@@ -0,0 +1,114 @@
+package org.mitallast.queue.crdt.rest;
+
+import com.google.inject.Inject;
+import io.netty.handler.codec.http.HttpMethod;
+import javaslang.collection.Map;
+import javaslang.concurrent.Future;
+import javaslang.control.Either;
+import javaslang.control.Option;
+import org.mitallast.queue.crdt.CrdtService;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.commutative.CountMinSketch;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
+import org.mitallast.queue.crdt.routing.ResourceType;
+import org.mitallast.queue.rest.RestController;
+
+public class RestCountMinSketch {
+    private final CrdtService crdtService;
+
+    @Inject
+    public RestCountMinSketch(
+        RestController controller,
+        CrdtService crdtService
+    ) {
+        this.crdtService = crdtService;
+
+        controller.handle(this::create)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().futureEither(
+                controller.response().created(),
+                controller.response().badRequest()
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/count-min");
+
+        controller.handle(this::estimate)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("key"))
+            .apply(controller.response().optional(
+                controller.response().text()
+            ))
+            .handle(HttpMethod.GET, "_crdt/{id}/count-min/estimate");
+
+        controller.handle(this::top)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().optionalJson())
+            .handle(HttpMethod.GET, "_crdt/{id}/count-min/top");
+
+        controller.handle(this::increment)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("key"))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/count-min/increment");
+
+        controller.handle(this::add)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("key"))
+            .apply(controller.param().toLong("count"))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/count-min/add");
+    }
+
+    public Future<Boolean> create(long id) {
+        return crdtService.addResource(id, ResourceType.CountMinSketch);
+    }
+
+    public Option<Long> estimate(long id, String key) {
+        return sketch(id).map(sketch -> sketch.estimate(key));
+    }
+
+    public Option<Map<String, Long>> top(long id) {
+        return sketch(id).map(CountMinSketch::top);
+    }
+
+    public Either<ReplicatorState, Boolean> increment(long id, String key) {
+        return add(id, key, 1);
+    }
+
+    public Either<ReplicatorState, Boolean> add(long id, String key, long count) {
+        if (count <= 0) {
+            return Either.right(false);
+        }
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Either.right(false);
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
+        }
+        Option<CountMinSketch> sketchOpt = bucket.registry().crdtOpt(id, CountMinSketch.class);
+        sketchOpt.forEach(sketch -> sketch.add(key, count));
+        return Either.right(sketchOpt.isDefined());
+    }
+
+    private Option<CountMinSketch> sketch(long id) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Option.none();
+        } else {
+            return bucket.registry().crdtOpt(id, CountMinSketch.class);
+        }
+    }
+}
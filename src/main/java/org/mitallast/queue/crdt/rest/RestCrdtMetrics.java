@@ -0,0 +1,68 @@
+package org.mitallast.queue.crdt.rest;
+
+import io.netty.handler.codec.http.HttpMethod;
+import javaslang.collection.HashMap;
+import javaslang.collection.Map;
+import javaslang.collection.Vector;
+import javaslang.control.Option;
+import org.mitallast.queue.crdt.CrdtService;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.log.CompactionStats;
+import org.mitallast.queue.crdt.log.ReplicatedLog;
+import org.mitallast.queue.crdt.routing.RoutingBucket;
+import org.mitallast.queue.crdt.routing.RoutingReplica;
+import org.mitallast.queue.rest.RestController;
+
+import javax.inject.Inject;
+
+public class RestCrdtMetrics {
+    private final CrdtService crdtService;
+
+    @Inject
+    public RestCrdtMetrics(RestController controller, CrdtService crdtService) {
+        this.crdtService = crdtService;
+
+        controller.handle(this::metrics)
+            .apply(controller.response().json())
+            .handle(HttpMethod.GET, "_crdt/metrics");
+
+        controller.handle(this::bucket)
+            .apply(controller.param().toInt("bucket"))
+            .apply(controller.response().optionalJson())
+            .handle(HttpMethod.GET, "_crdt/metrics/{bucket}");
+    }
+
+    public Vector<Map<String, Object>> metrics() {
+        return crdtService.routingTable().buckets()
+            .flatMap(routingBucket -> bucket(routingBucket.index()))
+            .toVector();
+    }
+
+    public Option<Map<String, Object>> bucket(int index) {
+        Bucket bucket = crdtService.bucket(index);
+        if (bucket == null) {
+            return Option.none();
+        }
+        ReplicatedLog log = bucket.log();
+        CompactionStats stats = log.compactionStats();
+        RoutingBucket routingBucket = crdtService.routingTable().buckets().get(index);
+        Map<Long, Long> applied = routingBucket.replicas().values()
+            .filter(replica -> replica.id() != bucket.replica())
+            .toMap(RoutingReplica::id, replica -> bucket.state().get(replica.id()));
+        return Option.some(HashMap.of(
+            "bucket", bucket.index(),
+            "replica", bucket.replica(),
+            "log", HashMap.of(
+                "startIndex", log.startIndex(),
+                "index", log.index(),
+                "segments", stats.segments().size(),
+                "bytes", stats.bytes(),
+                "liveBytes", stats.liveBytes(),
+                "bytesReclaimed", stats.bytesReclaimed(),
+                "segmentsRewritten", stats.segmentsRewritten()
+            ),
+            "applied", applied,
+            "replicator", bucket.replicator().metrics()
+        ));
+    }
+}
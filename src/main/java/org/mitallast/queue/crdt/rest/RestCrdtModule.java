@@ -6,8 +6,14 @@ public class RestCrdtModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(RestCrdtRouting.class).asEagerSingleton();
+        bind(RestCrdtMetrics.class).asEagerSingleton();
         bind(RestLWWRegister.class).asEagerSingleton();
         bind(RestGCounter.class).asEagerSingleton();
         bind(RestGSet.class).asEagerSingleton();
+        bind(RestPNCounter.class).asEagerSingleton();
+        bind(RestORSet.class).asEagerSingleton();
+        bind(RestLWWMap.class).asEagerSingleton();
+        bind(RestHyperLogLog.class).asEagerSingleton();
+        bind(RestCountMinSketch.class).asEagerSingleton();
     }
 }
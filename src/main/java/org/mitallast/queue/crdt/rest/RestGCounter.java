@@ -3,10 +3,12 @@ package org.mitallast.queue.crdt.rest;
 import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpMethod;
 import javaslang.concurrent.Future;
+import javaslang.control.Either;
 import javaslang.control.Option;
 import org.mitallast.queue.crdt.CrdtService;
 import org.mitallast.queue.crdt.bucket.Bucket;
 import org.mitallast.queue.crdt.commutative.GCounter;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
 import org.mitallast.queue.crdt.routing.ResourceType;
 import org.mitallast.queue.rest.RestController;
 
@@ -37,16 +39,22 @@ public class RestGCounter {
 
         controller.handle(this::increment)
             .apply(controller.param().toLong("id"))
-            .apply(controller.response().optional(
-                controller.response().text()
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().optional(
+                    controller.response().text()
+                )
             ))
             .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/lww-register/increment");
 
         controller.handle(this::add)
             .apply(controller.param().toLong("id"))
             .apply(controller.param().toLong("value"))
-            .apply(controller.response().optional(
-                controller.response().text()
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().optional(
+                    controller.response().text()
+                )
             ))
             .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/lww-register/add");
     }
@@ -64,21 +72,27 @@ public class RestGCounter {
         }
     }
 
-    public Option<Long> increment(long id) {
+    public Either<ReplicatorState, Option<Long>> increment(long id) {
         Bucket bucket = crdtService.bucket(id);
         if (bucket == null) {
-            return Option.none();
-        } else {
-            return bucket.registry().crdtOpt(id, GCounter.class).map(GCounter::increment);
+            return Either.right(Option.none());
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
         }
+        return Either.right(bucket.registry().crdtOpt(id, GCounter.class).map(GCounter::increment));
     }
 
-    public Option<Long> add(long id, long value) {
+    public Either<ReplicatorState, Option<Long>> add(long id, long value) {
         Bucket bucket = crdtService.bucket(id);
         if (bucket == null) {
-            return Option.none();
-        } else {
-            return bucket.registry().crdtOpt(id, GCounter.class).map(c -> c.add(value));
+            return Either.right(Option.none());
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
         }
+        return Either.right(bucket.registry().crdtOpt(id, GCounter.class).map(c -> c.add(value)));
     }
 }
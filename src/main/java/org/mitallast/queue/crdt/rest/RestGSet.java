@@ -4,12 +4,14 @@ import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpMethod;
 import javaslang.collection.Set;
 import javaslang.concurrent.Future;
+import javaslang.control.Either;
 import javaslang.control.Option;
 import org.mitallast.queue.common.json.JsonStreamable;
 import org.mitallast.queue.common.stream.Streamable;
 import org.mitallast.queue.crdt.CrdtService;
 import org.mitallast.queue.crdt.bucket.Bucket;
 import org.mitallast.queue.crdt.commutative.GSet;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
 import org.mitallast.queue.crdt.routing.ResourceType;
 import org.mitallast.queue.rest.RestController;
 
@@ -39,9 +41,12 @@ public class RestGSet {
         controller.handle(this::add)
             .apply(controller.param().toLong("id"))
             .apply(controller.param().json(JsonStreamable.class))
-            .apply(controller.response().either(
-                controller.response().ok(),
-                controller.response().badRequest()
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
             ))
             .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/lww-register/add");
     }
@@ -59,15 +64,19 @@ public class RestGSet {
         }
     }
 
-    public boolean add(long id, JsonStreamable value) {
+    public Either<ReplicatorState, Boolean> add(long id, JsonStreamable value) {
         Bucket bucket = crdtService.bucket(id);
         if (bucket == null) {
-            return false;
+            return Either.right(false);
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
         }
         Option<GSet> lwwRegisterOpt = bucket.registry().crdtOpt(id, GSet.class);
         if (lwwRegisterOpt.isDefined()) {
             lwwRegisterOpt.get().add(value);
         }
-        return true;
+        return Either.right(true);
     }
 }
@@ -0,0 +1,79 @@
+package org.mitallast.queue.crdt.rest;
+
+import com.google.inject.Inject;
+import io.netty.handler.codec.http.HttpMethod;
+import javaslang.concurrent.Future;
+import javaslang.control.Either;
+import javaslang.control.Option;
+import org.mitallast.queue.crdt.CrdtService;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.commutative.HyperLogLog;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
+import org.mitallast.queue.crdt.routing.ResourceType;
+import org.mitallast.queue.rest.RestController;
+
+public class RestHyperLogLog {
+    private final CrdtService crdtService;
+
+    @Inject
+    public RestHyperLogLog(
+        RestController controller,
+        CrdtService crdtService
+    ) {
+        this.crdtService = crdtService;
+
+        controller.handle(this::create)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().futureEither(
+                controller.response().created(),
+                controller.response().badRequest()
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/hll");
+
+        controller.handle(this::count)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().optional(
+                controller.response().text()
+            ))
+            .handle(HttpMethod.GET, "_crdt/{id}/hll/count");
+
+        controller.handle(this::add)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("value"))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/hll/add");
+    }
+
+    public Future<Boolean> create(long id) {
+        return crdtService.addResource(id, ResourceType.HyperLogLog);
+    }
+
+    public Option<Long> count(long id) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Option.none();
+        } else {
+            return bucket.registry().crdtOpt(id, HyperLogLog.class).map(HyperLogLog::count);
+        }
+    }
+
+    public Either<ReplicatorState, Boolean> add(long id, String value) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Either.right(false);
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
+        }
+        Option<HyperLogLog> hllOpt = bucket.registry().crdtOpt(id, HyperLogLog.class);
+        hllOpt.forEach(hll -> hll.add(value));
+        return Either.right(hllOpt.isDefined());
+    }
+}
@@ -0,0 +1,124 @@
+package org.mitallast.queue.crdt.rest;
+
+import com.google.inject.Inject;
+import io.netty.handler.codec.http.HttpMethod;
+import javaslang.collection.Map;
+import javaslang.collection.Vector;
+import javaslang.concurrent.Future;
+import javaslang.control.Either;
+import javaslang.control.Option;
+import org.mitallast.queue.common.json.JsonStreamable;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.CrdtService;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.commutative.LWWMap;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
+import org.mitallast.queue.crdt.routing.ResourceType;
+import org.mitallast.queue.rest.RestController;
+
+import java.util.function.Consumer;
+
+public class RestLWWMap {
+    private final CrdtService crdtService;
+
+    @Inject
+    public RestLWWMap(
+        RestController controller,
+        CrdtService crdtService
+    ) {
+        this.crdtService = crdtService;
+
+        controller.handle(this::create)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().futureEither(
+                controller.response().created(),
+                controller.response().badRequest()
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/lww-map");
+
+        controller.handle(this::multiGet)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("keys"))
+            .apply(controller.response().optionalJson())
+            .handle(HttpMethod.GET, "_crdt/{id}/lww-map/_mget");
+
+        controller.handle(this::get)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("key"))
+            .apply(controller.response().optionalJson())
+            .handle(HttpMethod.GET, "_crdt/{id}/lww-map/{key}");
+
+        controller.handle(this::assign)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("key"))
+            .apply(controller.param().json(JsonStreamable.class))
+            .apply(controller.param().toBoolean("wait_for_lag", false))
+            .apply(controller.response().future(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            )))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/lww-map/{key}");
+
+        controller.handle(this::remove)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().string("key"))
+            .apply(controller.param().toBoolean("wait_for_lag", false))
+            .apply(controller.response().future(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            )))
+            .handle(HttpMethod.DELETE, "_crdt/{id}/lww-map/{key}");
+    }
+
+    public Future<Boolean> create(long id) {
+        return crdtService.addResource(id, ResourceType.LWWMap);
+    }
+
+    public Option<Streamable> get(long id, String key) {
+        return map(id).flatMap(map -> map.get(key));
+    }
+
+    /**
+     * @param keys comma separated keys, missing keys are omitted from response
+     */
+    public Option<Map<String, Streamable>> multiGet(long id, String keys) {
+        return map(id).map(map -> map.get(Vector.of(keys.split(","))));
+    }
+
+    public Future<Either<ReplicatorState, Boolean>> assign(long id, String key, JsonStreamable value, boolean waitForLag) {
+        return write(id, waitForLag, map -> map.assign(key, value, System.currentTimeMillis()));
+    }
+
+    public Future<Either<ReplicatorState, Boolean>> remove(long id, String key, boolean waitForLag) {
+        return write(id, waitForLag, map -> map.remove(key, System.currentTimeMillis()));
+    }
+
+    private Option<LWWMap> map(long id) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Option.none();
+        } else {
+            return bucket.registry().crdtOpt(id, LWWMap.class);
+        }
+    }
+
+    private Future<Either<ReplicatorState, Boolean>> write(long id, boolean waitForLag, Consumer<LWWMap> update) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Future.successful(Either.right(false));
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Future.successful(Either.left(backpressure.get()));
+        }
+        Option<LWWMap> mapOpt = bucket.registry().crdtOpt(id, LWWMap.class);
+        mapOpt.forEach(update);
+        return RestBackpressure.awaitLag(bucket, waitForLag, Either.right(mapOpt.isDefined()));
+    }
+}
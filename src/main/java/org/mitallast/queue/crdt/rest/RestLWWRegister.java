@@ -3,12 +3,14 @@ package org.mitallast.queue.crdt.rest;
 import com.google.inject.Inject;
 import io.netty.handler.codec.http.HttpMethod;
 import javaslang.concurrent.Future;
+import javaslang.control.Either;
 import javaslang.control.Option;
 import org.mitallast.queue.common.json.JsonStreamable;
 import org.mitallast.queue.common.stream.Streamable;
 import org.mitallast.queue.crdt.CrdtService;
 import org.mitallast.queue.crdt.bucket.Bucket;
 import org.mitallast.queue.crdt.commutative.LWWRegister;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
 import org.mitallast.queue.crdt.routing.ResourceType;
 import org.mitallast.queue.rest.RestController;
 
@@ -38,10 +40,14 @@ public class RestLWWRegister {
         controller.handle(this::assign)
             .apply(controller.param().toLong("id"))
             .apply(controller.param().json(JsonStreamable.class))
-            .apply(controller.response().either(
-                controller.response().ok(),
-                controller.response().badRequest()
-            ))
+            .apply(controller.param().toBoolean("wait_for_lag", false))
+            .apply(controller.response().future(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            )))
             .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/lww-register/value");
     }
 
@@ -58,15 +64,19 @@ public class RestLWWRegister {
         }
     }
 
-    public boolean assign(long id, JsonStreamable value) {
+    public Future<Either<ReplicatorState, Boolean>> assign(long id, JsonStreamable value, boolean waitForLag) {
         Bucket bucket = crdtService.bucket(id);
         if (bucket == null) {
-            return false;
+            return Future.successful(Either.right(false));
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Future.successful(Either.left(backpressure.get()));
         }
         Option<LWWRegister> lwwRegisterOpt = bucket.registry().crdtOpt(id, LWWRegister.class);
         if (lwwRegisterOpt.isDefined()) {
             lwwRegisterOpt.get().assign(value, System.currentTimeMillis());
         }
-        return true;
+        return RestBackpressure.awaitLag(bucket, waitForLag, Either.right(true));
     }
 }
@@ -0,0 +1,107 @@
+package org.mitallast.queue.crdt.rest;
+
+import com.google.inject.Inject;
+import io.netty.handler.codec.http.HttpMethod;
+import javaslang.collection.Set;
+import javaslang.concurrent.Future;
+import javaslang.control.Either;
+import javaslang.control.Option;
+import org.mitallast.queue.common.json.JsonStreamable;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.CrdtService;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.commutative.ORSet;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
+import org.mitallast.queue.crdt.routing.ResourceType;
+import org.mitallast.queue.rest.RestController;
+
+public class RestORSet {
+    private final CrdtService crdtService;
+
+    @Inject
+    public RestORSet(
+        RestController controller,
+        CrdtService crdtService
+    ) {
+        this.crdtService = crdtService;
+
+        controller.handle(this::create)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().futureEither(
+                controller.response().created(),
+                controller.response().badRequest()
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/or-set");
+
+        controller.handle(this::values)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().optionalJson())
+            .handle(HttpMethod.GET, "_crdt/{id}/or-set/values");
+
+        controller.handle(this::add)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().json(JsonStreamable.class))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/or-set/add");
+
+        controller.handle(this::remove)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().json(JsonStreamable.class))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().either(
+                    controller.response().ok(),
+                    controller.response().badRequest()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/or-set/remove");
+    }
+
+    public Future<Boolean> create(long id) {
+        return crdtService.addResource(id, ResourceType.ORSet);
+    }
+
+    public Option<Set<Streamable>> values(long id) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Option.none();
+        } else {
+            return bucket.registry().crdtOpt(id, ORSet.class).map(ORSet::values);
+        }
+    }
+
+    public Either<ReplicatorState, Boolean> add(long id, JsonStreamable value) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Either.right(false);
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
+        }
+        Option<ORSet> setOpt = bucket.registry().crdtOpt(id, ORSet.class);
+        if (setOpt.isDefined()) {
+            setOpt.get().add(value);
+        }
+        return Either.right(true);
+    }
+
+    public Either<ReplicatorState, Boolean> remove(long id, JsonStreamable value) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Either.right(false);
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
+        }
+        Option<ORSet> setOpt = bucket.registry().crdtOpt(id, ORSet.class);
+        return Either.right(setOpt.isDefined() && setOpt.get().remove(value));
+    }
+}
@@ -0,0 +1,120 @@
+package org.mitallast.queue.crdt.rest;
+
+import com.google.inject.Inject;
+import io.netty.handler.codec.http.HttpMethod;
+import javaslang.concurrent.Future;
+import javaslang.control.Either;
+import javaslang.control.Option;
+import org.mitallast.queue.crdt.CrdtService;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.commutative.PNCounter;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
+import org.mitallast.queue.crdt.routing.ResourceType;
+import org.mitallast.queue.rest.RestController;
+
+public class RestPNCounter {
+    private final CrdtService crdtService;
+
+    @Inject
+    public RestPNCounter(
+        RestController controller,
+        CrdtService crdtService
+    ) {
+        this.crdtService = crdtService;
+
+        controller.handle(this::create)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().futureEither(
+                controller.response().created(),
+                controller.response().badRequest()
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/pn-counter");
+
+        controller.handle(this::value)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().optional(
+                controller.response().text()
+            ))
+            .handle(HttpMethod.GET, "_crdt/{id}/pn-counter/value");
+
+        controller.handle(this::increment)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().optional(
+                    controller.response().text()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/pn-counter/increment");
+
+        controller.handle(this::decrement)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().optional(
+                    controller.response().text()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/pn-counter/decrement");
+
+        controller.handle(this::add)
+            .apply(controller.param().toLong("id"))
+            .apply(controller.param().toLong("value"))
+            .apply(controller.response().fold(
+                RestBackpressure.status(),
+                controller.response().optional(
+                    controller.response().text()
+                )
+            ))
+            .handle(HttpMethod.POST, HttpMethod.PUT, "_crdt/{id}/pn-counter/add");
+    }
+
+    public Future<Boolean> create(long id) {
+        return crdtService.addResource(id, ResourceType.PNCounter);
+    }
+
+    public Option<Long> value(long id) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Option.none();
+        } else {
+            return bucket.registry().crdtOpt(id, PNCounter.class).map(PNCounter::value);
+        }
+    }
+
+    public Either<ReplicatorState, Option<Long>> increment(long id) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Either.right(Option.none());
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
+        }
+        return Either.right(bucket.registry().crdtOpt(id, PNCounter.class).map(PNCounter::increment));
+    }
+
+    public Either<ReplicatorState, Option<Long>> decrement(long id) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Either.right(Option.none());
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
+        }
+        return Either.right(bucket.registry().crdtOpt(id, PNCounter.class).map(PNCounter::decrement));
+    }
+
+    public Either<ReplicatorState, Option<Long>> add(long id, long value) {
+        Bucket bucket = crdtService.bucket(id);
+        if (bucket == null) {
+            return Either.right(Option.none());
+        }
+        Option<ReplicatorState> backpressure = RestBackpressure.check(bucket);
+        if (backpressure.isDefined()) {
+            return Either.left(backpressure.get());
+        }
+        return Either.right(bucket.registry().crdtOpt(id, PNCounter.class).map(c -> c.add(value)));
+    }
+}
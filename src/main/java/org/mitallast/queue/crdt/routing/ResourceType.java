@@ -1,5 +1,5 @@
 package org.mitallast.queue.crdt.routing;
 
 public enum ResourceType {
-    LWWRegister, GCounter, GSet;
+    LWWRegister, GCounter, GSet, PNCounter, ORSet, LWWMap, HyperLogLog, CountMinSketch;
 }
@@ -2,11 +2,15 @@ package org.mitallast.queue.raft.persistent;
 
 import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import javaslang.collection.Vector;
 import javaslang.control.Option;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.mitallast.queue.common.file.FileException;
 import org.mitallast.queue.common.file.FileService;
+import org.mitallast.queue.common.file.LogFrame;
 import org.mitallast.queue.common.stream.StreamInput;
 import org.mitallast.queue.common.stream.StreamOutput;
 import org.mitallast.queue.common.stream.StreamService;
@@ -15,10 +19,15 @@ import org.mitallast.queue.raft.protocol.RaftSnapshot;
 import org.mitallast.queue.transport.DiscoveryNode;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 
 public class FilePersistentService implements PersistentService {
     private final static Logger logger = LogManager.getLogger();
 
+    private final static int FRAME_TYPE = 2;
     private final static long initialIndex = 1;
     private final static long initialCommittedIndex = 0;
 
@@ -101,12 +110,7 @@ public class FilePersistentService implements PersistentService {
     public ReplicatedLog openLog() {
         logger.info("open log: segment={}", segment);
         final File segmentFile = segmentFile(segment);
-        Vector<LogEntry> entries = Vector.empty();
-        try (StreamInput input = streamService.input(segmentFile)) {
-            while (input.available() > 0) {
-                entries = entries.append(input.readStreamable(LogEntry::new));
-            }
-        }
+        Vector<LogEntry> entries = readEntries(segmentFile);
         StreamOutput segmentOutput = streamService.output(segmentFile, true);
         return new FileReplicatedLog(
             segmentFile,
@@ -117,6 +121,89 @@ public class FilePersistentService implements PersistentService {
         );
     }
 
+    /**
+     * Reads framed entries, torn or corrupted tail is truncated.
+     * Segment written before framing is migrated, new segment gets file header.
+     */
+    private Vector<LogEntry> readEntries(File segmentFile) {
+        byte[] data;
+        try {
+            data = Files.readAllBytes(segmentFile.toPath());
+        } catch (IOException e) {
+            throw new FileException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (!LogFrame.hasFileHeader(buffer, data.length)) {
+            if (LogFrame.isEmpty(buffer, data.length)) {
+                writeEntries(segmentFile, Vector.empty());
+                return Vector.empty();
+            }
+            return migrateEntries(segmentFile);
+        }
+        Vector<LogEntry> entries = Vector.empty();
+        int position = LogFrame.FILE_HEADER_SIZE;
+        int frame;
+        while ((frame = LogFrame.validate(buffer, position, data.length, FRAME_TYPE)) > 0) {
+            ByteBuf payload = Unpooled.wrappedBuffer(data, position + LogFrame.HEADER_SIZE, frame - LogFrame.HEADER_SIZE);
+            try (StreamInput input = streamService.input(payload)) {
+                entries = entries.append(input.readStreamable(LogEntry::new));
+            }
+            position += frame;
+        }
+        if (position < data.length) {
+            logger.warn("truncate broken log tail: file={} position={} length={}", segmentFile, position, data.length);
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+                file.setLength(position);
+            } catch (IOException e) {
+                throw new FileException(e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads segment of unframed entries and rewrites it framed, segment which could not be read
+     * completely is not modified and log is not opened.
+     */
+    private Vector<LogEntry> migrateEntries(File segmentFile) {
+        logger.info("migrate unframed log: file={}", segmentFile);
+        Vector<LogEntry> entries = Vector.empty();
+        try (StreamInput input = streamService.input(segmentFile)) {
+            while (input.available() > 0) {
+                entries = entries.append(input.readStreamable(LogEntry::new));
+            }
+        } catch (Exception e) {
+            throw new FileException("unknown log format: " + segmentFile, e);
+        }
+        File tmpSegment = temporaryFile();
+        writeEntries(tmpSegment, entries);
+        fileService.move(tmpSegment, segmentFile);
+        return entries;
+    }
+
+    private void writeEntries(File file, Vector<LogEntry> entries) {
+        try (StreamOutput output = streamService.output(file, false)) {
+            LogFrame.writeFileHeader(output);
+            for (LogEntry logEntry : entries) {
+                writeEntry(output, logEntry);
+            }
+        }
+    }
+
+    private void writeEntry(StreamOutput output, LogEntry entry) {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            int start = LogFrame.begin(buffer);
+            try (StreamOutput payload = streamService.output(buffer)) {
+                payload.writeStreamable(entry);
+            }
+            LogFrame.end(buffer, start, FRAME_TYPE);
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
+        } finally {
+            buffer.release();
+        }
+    }
+
     private File segmentFile(long segment) {
         return fileService.resource("raft", segment + ".log");
     }
@@ -240,7 +327,7 @@ public class FilePersistentService implements PersistentService {
             }
 
             dirty = true;
-            segmentOutput.writeStreamable(entry);
+            writeEntry(segmentOutput, entry);
             entries = entries.append(entry);
             return this;
         }
@@ -264,16 +351,12 @@ public class FilePersistentService implements PersistentService {
 
             segmentOutput.close();
             File tmpSegment = temporaryFile();
-            try (StreamOutput output = streamService.output(tmpSegment, false)) {
-                for (LogEntry logEntry : entries) {
-                    output.writeStreamable(logEntry);
-                }
-            }
+            writeEntries(tmpSegment, entries);
             fileService.move(tmpSegment, segmentFile);
 
             // recreate file object after move
             this.segmentFile = segmentFile(start);
-            this.segmentOutput = streamService.output(this.segmentFile);
+            this.segmentOutput = streamService.output(this.segmentFile, true);
             dirty = false;
         }
 
@@ -339,24 +422,21 @@ public class FilePersistentService implements PersistentService {
             if (snapshot.getMeta().getLastIncludedIndex() == start) {
                 segmentOutput.close();
                 File tmpSegment = temporaryFile();
-                try (StreamOutput output = streamService.output(tmpSegment, false)) {
-                    for (LogEntry logEntry : entries) {
-                        output.writeStreamable(logEntry);
-                    }
-                }
+                writeEntries(tmpSegment, entries);
                 fileService.move(tmpSegment, segmentFile);
 
                 // recreate file object after move
                 segmentFile = segmentFile(start);
-                segmentOutput = streamService.output(segmentFile);
+                segmentOutput = streamService.output(segmentFile, true);
                 dirty = false;
                 return this;
             } else {
                 segmentOutput.close();
                 File newSegmentFile = segmentFile(lastIncludedIndex);
                 StreamOutput newSegmentOutput = streamService.output(newSegmentFile);
+                LogFrame.writeFileHeader(newSegmentOutput);
                 for (LogEntry logEntry : entries) {
-                    newSegmentOutput.writeStreamable(logEntry);
+                    writeEntry(newSegmentOutput, logEntry);
                 }
                 newSegmentOutput.flush();
                 updateSegment(snapshot.getMeta().getLastIncludedIndex());
@@ -11,7 +11,10 @@ import javaslang.Function0;
 import javaslang.Function1;
 import javaslang.Function2;
 import javaslang.Function3;
+import javaslang.Function4;
+import javaslang.Function5;
 import javaslang.concurrent.Future;
+import javaslang.control.Either;
 import javaslang.control.Option;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -170,6 +173,38 @@ public class RestController {
         });
     }
 
+    public <P1, P2, P3, R> Function4<
+        Function1<RestRequest, P1>,
+        Function1<RestRequest, P2>,
+        Function1<RestRequest, P3>,
+        BiConsumer<RestRequest, R>,
+        FunctionHandlerBuilder> handle(Function3<P1, P2, P3, R> handler) {
+        return (m1, m2, m3, mr) -> new FunctionHandlerBuilder(request -> {
+            P1 p1 = m1.apply(request);
+            P2 p2 = m2.apply(request);
+            P3 p3 = m3.apply(request);
+            R r = handler.apply(p1, p2, p3);
+            mr.accept(request, r);
+        });
+    }
+
+    public <P1, P2, P3, P4, R> Function5<
+        Function1<RestRequest, P1>,
+        Function1<RestRequest, P2>,
+        Function1<RestRequest, P3>,
+        Function1<RestRequest, P4>,
+        BiConsumer<RestRequest, R>,
+        FunctionHandlerBuilder> handle(Function4<P1, P2, P3, P4, R> handler) {
+        return (m1, m2, m3, m4, mr) -> new FunctionHandlerBuilder(request -> {
+            P1 p1 = m1.apply(request);
+            P2 p2 = m2.apply(request);
+            P3 p3 = m3.apply(request);
+            P4 p4 = m4.apply(request);
+            R r = handler.apply(p1, p2, p3, p4);
+            mr.accept(request, r);
+        });
+    }
+
     // Functional mappers
 
     public static final class ResponseMappers {
@@ -200,6 +235,20 @@ public class RestController {
             };
         }
 
+        /**
+         * Map left or right value of result, arguments are in order of {@link Either#fold}
+         */
+        public <L, R> BiConsumer<RestRequest, Either<L, R>> fold(BiConsumer<RestRequest, L> left,
+                                                                 BiConsumer<RestRequest, R> right) {
+            return (request, value) -> {
+                if (value.isRight()) {
+                    right.accept(request, value.get());
+                } else {
+                    left.accept(request, value.getLeft());
+                }
+            };
+        }
+
         public <T> BiConsumer<RestRequest, T> text() {
             return (request, response) -> request.response().text(response.toString());
         }
@@ -301,6 +350,10 @@ public class RestController {
             return string(name).andThen(Boolean::valueOf);
         }
 
+        public Function1<RestRequest, Boolean> toBoolean(String name, boolean defaultValue) {
+            return request -> request.hasParam(name) ? Boolean.valueOf(request.param(name)) : defaultValue;
+        }
+
         public <T> Function1<RestRequest, T> json(Class<T> type) {
             return request -> jsonService.deserialize(request.content(), type);
         }
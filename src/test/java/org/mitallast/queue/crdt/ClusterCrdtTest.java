@@ -2,22 +2,37 @@ package org.mitallast.queue.crdt;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.multibindings.Multibinder;
+import com.typesafe.config.Config;
+import javaslang.collection.HashSet;
 import javaslang.collection.Vector;
+import javaslang.control.Either;
 import javaslang.control.Option;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mitallast.queue.common.BaseClusterTest;
 import org.mitallast.queue.common.ConfigBuilder;
+import org.mitallast.queue.common.json.JsonService;
+import org.mitallast.queue.common.json.JsonStreamable;
 import org.mitallast.queue.common.stream.StreamInput;
 import org.mitallast.queue.common.stream.StreamOutput;
 import org.mitallast.queue.common.stream.Streamable;
 import org.mitallast.queue.common.stream.StreamableRegistry;
+import org.mitallast.queue.crdt.commutative.CountMinSketch;
 import org.mitallast.queue.crdt.commutative.GCounter;
 import org.mitallast.queue.crdt.commutative.GSet;
+import org.mitallast.queue.crdt.commutative.HyperLogLog;
+import org.mitallast.queue.crdt.commutative.LWWMap;
 import org.mitallast.queue.crdt.commutative.LWWRegister;
+import org.mitallast.queue.crdt.commutative.ORSet;
+import org.mitallast.queue.crdt.commutative.PNCounter;
+import org.mitallast.queue.crdt.replication.Replicator;
+import org.mitallast.queue.crdt.replication.ReplicatorMetrics;
+import org.mitallast.queue.crdt.replication.ReplicatorState;
+import org.mitallast.queue.crdt.rest.RestLWWMap;
 import org.mitallast.queue.crdt.routing.ResourceType;
 import org.mitallast.queue.raft.ClusterRaftTest;
+import org.mitallast.queue.rest.RestController;
 
 import java.io.IOException;
 
@@ -83,6 +98,75 @@ public class ClusterCrdtTest extends BaseClusterTest {
 
             printQps("CRDT lww-register", total, start, end);
         }
+        assertReplicated();
+    }
+
+    @Test
+    public void testLWWMap() throws Exception {
+        awaitElection();
+
+        long total = 100000;
+        long keys = 1000;
+
+        for (long c = 0; c < 10; c++) {
+            final long crdt = c;
+            createResource(crdt, ResourceType.LWWMap);
+
+            Vector<LWWMap> maps = crdtServices
+                .map(s -> s.bucket(crdt).registry())
+                .map(r -> r.crdt(crdt, LWWMap.class));
+
+            long start = System.currentTimeMillis();
+            for (long i = 0; i < total; i++) {
+                maps.get((int) (i % nodes.size())).assign(String.valueOf(i % keys), new TestLong(i), i + 1);
+            }
+            for (long k = 0; k < keys; k += 2) {
+                maps.get((int) (k % nodes.size())).remove(String.valueOf(k), total + 1);
+            }
+            Vector<String> all = Vector.range(0, keys).map(String::valueOf);
+            for (int w = 0; w < 1000 && !maps.forAll(m -> m.get(all).size() == keys / 2); w++) {
+                Thread.sleep(10);
+            }
+            long end = System.currentTimeMillis();
+
+            for (LWWMap map : maps) {
+                Assert.assertEquals(keys / 2, map.get(all).size());
+                Assert.assertEquals(Option.none(), map.get("0"));
+                Assert.assertEquals(Option.some(new TestLong(total - keys + 1)), map.get("1"));
+            }
+
+            printQps("CRDT lww-map", total, start, end);
+        }
+        assertReplicated();
+    }
+
+    @Test
+    public void testLWWMapWaitForLag() throws Exception {
+        awaitElection();
+        createResource(0, ResourceType.LWWMap);
+
+        RestController controller = new RestController(nodes.head().injector().getInstance(JsonService.class));
+        RestLWWMap rest = new RestLWWMap(controller, crdtServices.head());
+        Replicator replicator = crdtServices.head().bucket(0).replicator();
+        long throttle = nodes.head().injector().getInstance(Config.class).getLong("crdt.replication.lag.throttle");
+
+        long total = 10000;
+        for (long i = 0; i < total; i++) {
+            boolean waitForLag = i % 100 == 99;
+            Either<ReplicatorState, Boolean> result = rest.assign(0, "key-" + (i % 10), new JsonStreamable("" + i), waitForLag).get();
+            Assert.assertEquals(Either.right(true), result);
+            if (waitForLag) {
+                Assert.assertTrue(replicator.metrics().maxLag() <= throttle);
+            }
+        }
+        Assert.assertEquals(Either.right(true), rest.remove(0, "key-0", true).get());
+        Assert.assertTrue(replicator.metrics().maxLag() <= throttle);
+        Assert.assertEquals(Option.none(), rest.get(0, "key-0"));
+        Assert.assertTrue(rest.get(0, "key-1").isDefined());
+        for (int w = 0; w < 1000 && replicator.metrics().maxLag() > 0; w++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, replicator.metrics().maxLag());
     }
 
     @Test
@@ -105,7 +189,7 @@ public class ClusterCrdtTest extends BaseClusterTest {
                     counters.get((int) (i % nodes.size())).increment();
                 }
             });
-            for (int w = 0; w < 100; w++) {
+            for (int w = 0; w < 1000; w++) {
                 if (!counters.forAll(r -> r.value() == total)) {
                     Thread.sleep(10);
                     continue;
@@ -120,6 +204,51 @@ public class ClusterCrdtTest extends BaseClusterTest {
 
             printQps("CRDT g-counter", total, start, end);
         }
+        assertReplicated();
+    }
+
+    @Test
+    public void testPNCounter() throws Exception {
+        awaitElection();
+
+        long total = 1000000;
+
+        for (long c = 0; c < 10; c++) {
+            final long crdt = c;
+            createResource(crdt, ResourceType.PNCounter);
+
+            Vector<PNCounter> counters = crdtServices
+                .map(s -> s.bucket(crdt).registry())
+                .map(r -> r.crdt(crdt, PNCounter.class));
+
+            long start = System.currentTimeMillis();
+            executeConcurrent((thread, concurrency) -> {
+                for (long i = thread; i < total; i += concurrency) {
+                    PNCounter counter = counters.get((int) (i % nodes.size()));
+                    if (i % 4 == 0) {
+                        counter.decrement();
+                    } else {
+                        counter.increment();
+                    }
+                }
+            });
+            long expected = total / 2;
+            for (int w = 0; w < 1000; w++) {
+                if (!counters.forAll(r -> r.value() == expected)) {
+                    Thread.sleep(10);
+                    continue;
+                }
+                break;
+            }
+            long end = System.currentTimeMillis();
+
+            for (PNCounter counter : counters) {
+                Assert.assertEquals(expected, counter.value());
+            }
+
+            printQps("CRDT pn-counter", total, start, end);
+        }
+        assertReplicated();
     }
 
     @Test
@@ -163,6 +292,168 @@ public class ClusterCrdtTest extends BaseClusterTest {
         }
     }
 
+    @Test
+    public void testORSet() throws Exception {
+        awaitElection();
+
+        long total = 1000;
+
+        for (long c = 0; c < 10; c++) {
+            final long crdt = c;
+            createResource(crdt, ResourceType.ORSet);
+
+            Vector<ORSet> sets = crdtServices
+                .map(s -> s.bucket(crdt).registry())
+                .map(r -> r.crdt(crdt, ORSet.class));
+
+            long start = System.currentTimeMillis();
+            executeConcurrent((thread, concurrency) -> {
+                for (long i = thread; i < total; i += concurrency) {
+                    sets.get((int) (i % nodes.size())).add(new TestLong(i));
+                }
+            });
+            for (int w = 0; w < 1000 && !sets.forAll(r -> r.values().length() == total); w++) {
+                Thread.sleep(10);
+            }
+            for (ORSet set : sets) {
+                Assert.assertEquals(total, set.values().length());
+            }
+
+            // remove observed adds of other replicas
+            executeConcurrent((thread, concurrency) -> {
+                for (long i = thread; i < total; i += concurrency) {
+                    if (i % 2 == 0) {
+                        Assert.assertTrue(sets.get((int) ((i + 1) % nodes.size())).remove(new TestLong(i)));
+                    }
+                }
+            });
+            for (int w = 0; w < 1000 && !sets.forAll(r -> r.values().length() == total / 2); w++) {
+                Thread.sleep(10);
+            }
+            long end = System.currentTimeMillis();
+
+            for (ORSet set : sets) {
+                Assert.assertEquals(total / 2, set.values().length());
+                Assert.assertFalse(set.contains(new TestLong(0)));
+                Assert.assertTrue(set.contains(new TestLong(1)));
+            }
+
+            printQps("CRDT or-set", total * 3 / 2, start, end);
+        }
+        assertReplicated();
+    }
+
+    @Test
+    public void testHyperLogLog() throws Exception {
+        awaitElection();
+
+        long total = 100000;
+
+        for (long c = 0; c < 10; c++) {
+            final long crdt = c;
+            createResource(crdt, ResourceType.HyperLogLog);
+
+            Vector<HyperLogLog> counters = crdtServices
+                .map(s -> s.bucket(crdt).registry())
+                .map(r -> r.crdt(crdt, HyperLogLog.class));
+
+            long start = System.currentTimeMillis();
+            executeConcurrent((thread, concurrency) -> {
+                for (long i = thread; i < total * 2; i += concurrency) {
+                    // each value is added twice on different nodes
+                    counters.get((int) (i % nodes.size())).add(i % total);
+                }
+            });
+            for (int w = 0; w < 1000 && !counters.forAll(h -> h.count() == counters.head().count()); w++) {
+                Thread.sleep(10);
+            }
+            long end = System.currentTimeMillis();
+
+            long count = counters.head().count();
+            for (HyperLogLog counter : counters) {
+                Assert.assertEquals(count, counter.count());
+            }
+            Assert.assertEquals(total, count, total * 0.03);
+
+            printQps("CRDT hll", total * 2, start, end);
+        }
+        assertReplicated();
+    }
+
+    @Test
+    public void testCountMinSketch() throws Exception {
+        awaitElection();
+
+        int hot = 5;
+        long cold = 50000;
+
+        for (long c = 0; c < 10; c++) {
+            final long crdt = c;
+            createResource(crdt, ResourceType.CountMinSketch);
+
+            Vector<CountMinSketch> sketches = crdtServices
+                .map(s -> s.bucket(crdt).registry())
+                .map(r -> r.crdt(crdt, CountMinSketch.class));
+
+            long start = System.currentTimeMillis();
+            executeConcurrent((thread, concurrency) -> {
+                for (long i = thread; i < cold; i += concurrency) {
+                    CountMinSketch sketch = sketches.get((int) (i % nodes.size()));
+                    sketch.add("cold-" + i);
+                    // hot key k is added (k + 1) times per 100 cold keys
+                    if (i % 100 < hot) {
+                        for (long k = i % 100; k < hot; k++) {
+                            sketch.add("hot-" + k);
+                        }
+                    }
+                }
+            });
+            for (int w = 0; w < 1000 && !converged(sketches, hot); w++) {
+                Thread.sleep(10);
+            }
+            long end = System.currentTimeMillis();
+
+            for (int k = 0; k < hot; k++) {
+                long expected = cold / 100 * (k + 1);
+                long estimate = sketches.head().estimate("hot-" + k);
+                Assert.assertTrue(estimate >= expected);
+                Assert.assertEquals(expected, estimate, cold * 0.01);
+                for (CountMinSketch sketch : sketches) {
+                    Assert.assertEquals(estimate, sketch.estimate("hot-" + k));
+                }
+            }
+            for (CountMinSketch sketch : sketches) {
+                Assert.assertEquals(
+                    HashSet.range(0, hot).map(k -> "hot-" + k),
+                    sketch.top().take(hot).keySet()
+                );
+            }
+
+            printQps("CRDT count-min", cold + cold / 100 * hot * (hot + 1) / 2, start, end);
+        }
+        assertReplicated();
+    }
+
+    private boolean converged(Vector<CountMinSketch> sketches, int hot) {
+        return Vector.range(0, hot).map(k -> "hot-" + k).forAll(key ->
+            sketches.forAll(s -> s.estimate(key) == sketches.head().estimate(key)));
+    }
+
+    private void assertReplicated() throws Exception {
+        Vector<Replicator> replicators = crdtServices.map(s -> s.bucket(0).replicator());
+        for (int w = 0; w < 1000 && !replicators.forAll(r -> r.metrics().maxLag() == 0); w++) {
+            Thread.sleep(10);
+        }
+        for (Replicator replicator : replicators) {
+            ReplicatorMetrics metrics = replicator.metrics();
+            logger.info("metrics: {}", metrics);
+            Assert.assertEquals(0, metrics.maxLag());
+            Assert.assertEquals(nodes.size() - 1, metrics.replicas().size());
+            Assert.assertTrue(metrics.requestsSent() > 0);
+            Assert.assertTrue(metrics.entriesAppended() <= metrics.eventsAppended());
+        }
+    }
+
     private void createResource(long crdt, ResourceType type) throws Exception {
         crdtServices.head().addResource(crdt, type).get();
         for (int w = 0; w < 10; w++) {
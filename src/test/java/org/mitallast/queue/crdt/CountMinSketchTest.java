@@ -0,0 +1,142 @@
+package org.mitallast.queue.crdt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import javaslang.Tuple;
+import javaslang.collection.HashMap;
+import javaslang.collection.HashSet;
+import javaslang.collection.Vector;
+import javaslang.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.stream.InternalStreamService;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.StreamService;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.common.stream.StreamableRegistry;
+import org.mitallast.queue.crdt.commutative.CountMinSketch;
+import org.mitallast.queue.crdt.commutative.CountMinSketch.Cells;
+import org.mitallast.queue.crdt.commutative.CountMinSketch.DownstreamMerge;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.ArrayList;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class CountMinSketchTest extends BaseTest {
+
+    private final StreamService streamService = new InternalStreamService(HashSet.<StreamableRegistry>empty().toJavaSet());
+
+    private static class Replica {
+        private final ArrayList<Streamable> log = new ArrayList<>();
+        private final CountMinSketch sketch;
+
+        private Replica(long replica, int k) {
+            Replicator replicator = mock(Replicator.class);
+            doAnswer(invocation -> {
+                log.add(invocation.getArgument(1));
+                return Future.successful(null);
+            }).when(replicator).append(anyLong(), any());
+            sketch = new CountMinSketch(0, replica, replicator, 1024, 4, k);
+        }
+
+        /**
+         * Deliver all log entries of replica in order
+         */
+        private void deliver(Replica to) {
+            for (Streamable event : log) {
+                to.sketch.update(event);
+            }
+        }
+    }
+
+    /**
+     * @return cells of replica 1 in merge as index:value pairs, read from serialized form
+     */
+    private String cells(DownstreamMerge merge) {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            try (StreamOutput output = streamService.output(buffer)) {
+                merge.writeTo(output);
+            }
+            Assert.assertEquals(1, buffer.readInt());
+            Assert.assertEquals(1, buffer.readLong());
+            int size = buffer.readInt();
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                builder.append(i == 0 ? "" : ",").append(buffer.readInt()).append(':').append(buffer.readLong());
+            }
+            return builder.toString();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void joinCellsByMax() throws Exception {
+        DownstreamMerge a = new DownstreamMerge(
+            HashMap.of(1L, new Cells(new int[]{1, 3}, new long[]{5, 2})), HashSet.of("a"));
+        DownstreamMerge b = new DownstreamMerge(
+            HashMap.of(1L, new Cells(new int[]{0, 3, 4}, new long[]{1, 7, 1})), HashSet.of("b"));
+        Assert.assertEquals("0:1,1:5,3:7,4:1", cells((DownstreamMerge) a.join(b)));
+        Assert.assertEquals("0:1,1:5,3:7,4:1", cells((DownstreamMerge) b.join(a)));
+    }
+
+    @Test
+    public void topKRefreshedByMergedCells() throws Exception {
+        Replica a = new Replica(1, 2);
+        // replica without top-k sends cells only, estimates of known keys are changed by refresh
+        Replica b = new Replica(2, 0);
+
+        a.sketch.add("a", 5);
+        a.sketch.add("b", 3);
+        a.sketch.add("c", 1);
+        Assert.assertEquals(Vector.of(Tuple.of("a", 5L), Tuple.of("b", 3L)), a.sketch.top().toVector());
+
+        b.sketch.add("b", 4);
+        b.deliver(a);
+        Assert.assertEquals(7, a.sketch.estimate("b"));
+        Assert.assertEquals(Vector.of(Tuple.of("b", 7L), Tuple.of("a", 5L)), a.sketch.top().toVector());
+
+        // root of heap is the smallest estimate after refresh
+        a.sketch.add("d", 6);
+        Assert.assertEquals(Vector.of(Tuple.of("b", 7L), Tuple.of("d", 6L)), a.sketch.top().toVector());
+    }
+
+    @Test
+    public void topKCandidatesOfOrigin() throws Exception {
+        Replica a = new Replica(1, 2);
+        Replica b = new Replica(2, 2);
+        a.sketch.add("a", 5);
+        a.sketch.add("b", 3);
+        b.sketch.add("c", 10);
+
+        b.deliver(a);
+        a.deliver(b);
+        Assert.assertEquals(Vector.of(Tuple.of("c", 10L), Tuple.of("a", 5L)), a.sketch.top().toVector());
+        Assert.assertEquals(a.sketch.top(), b.sketch.top());
+    }
+
+    @Test
+    public void shouldCompactDominatedCells() throws Exception {
+        Replica a = new Replica(1, 2);
+        Replica b = new Replica(2, 2);
+        a.sketch.add("a");
+        a.sketch.add("a");
+        Assert.assertTrue(a.sketch.shouldCompact(a.log.get(0)));
+        Assert.assertFalse(a.sketch.shouldCompact(a.log.get(1)));
+
+        // cells of other replica are compacted only after they are overwritten by greater ones
+        b.sketch.add("b");
+        b.deliver(a);
+        Assert.assertFalse(a.sketch.shouldCompact(b.log.get(0)));
+        b.sketch.add("b");
+        b.deliver(a);
+        Assert.assertTrue(a.sketch.shouldCompact(b.log.get(0)));
+        Assert.assertFalse(a.sketch.shouldCompact(b.log.get(1)));
+    }
+}
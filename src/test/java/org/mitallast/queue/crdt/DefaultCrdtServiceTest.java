@@ -0,0 +1,202 @@
+package org.mitallast.queue.crdt;
+
+import javaslang.collection.Vector;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.ConfigBuilder;
+import org.mitallast.queue.common.events.EventBus;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.ClusterCrdtTest.TestLong;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.bucket.BucketFactory;
+import org.mitallast.queue.crdt.log.LogEntry;
+import org.mitallast.queue.crdt.protocol.AppendEntries;
+import org.mitallast.queue.crdt.protocol.AppendRejected;
+import org.mitallast.queue.crdt.protocol.AppendSuccessful;
+import org.mitallast.queue.crdt.protocol.InstallSnapshot;
+import org.mitallast.queue.crdt.registry.CrdtRegistry;
+import org.mitallast.queue.crdt.registry.RegistrySnapshot;
+import org.mitallast.queue.crdt.replication.Replicator;
+import org.mitallast.queue.crdt.replication.state.ReplicaState;
+import org.mitallast.queue.crdt.routing.RoutingReplica;
+import org.mitallast.queue.crdt.routing.RoutingTable;
+import org.mitallast.queue.crdt.routing.allocation.AllocationStrategy;
+import org.mitallast.queue.crdt.routing.event.RoutingTableChanged;
+import org.mitallast.queue.crdt.routing.fsm.RoutingTableFSM;
+import org.mitallast.queue.raft.Raft;
+import org.mitallast.queue.raft.discovery.ClusterDiscovery;
+import org.mitallast.queue.transport.DiscoveryNode;
+import org.mitallast.queue.transport.TransportController;
+import org.mitallast.queue.transport.TransportHandler;
+import org.mitallast.queue.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class DefaultCrdtServiceTest extends BaseTest {
+    private final DiscoveryNode self = new DiscoveryNode("127.0.0.1", 8900);
+    private final DiscoveryNode other = new DiscoveryNode("127.0.0.1", 8901);
+    private final Map<Class, TransportHandler> handlers = new ConcurrentHashMap<>();
+    private final Map<Integer, TestBucket> buckets = new ConcurrentHashMap<>();
+
+    private CrdtScheduler scheduler;
+    private TransportService transportService;
+
+    private class TestBucket {
+        private final Bucket bucket = mock(Bucket.class);
+        private final Map<Long, Long> indexes = new ConcurrentHashMap<>();
+        private final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        private volatile CountDownLatch blocked = new CountDownLatch(0);
+
+        private TestBucket(int index, long replica) {
+            ReplicaState state = mock(ReplicaState.class);
+            when(state.get(anyLong())).then(invocation -> indexes.getOrDefault(invocation.<Long>getArgument(0), 0L));
+            doAnswer(invocation -> indexes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(state).put(anyLong(), anyLong());
+
+            Crdt crdt = mock(Crdt.class);
+            doAnswer(invocation -> {
+                blocked.await();
+                applied(invocation.getArgument(0).toString());
+                return null;
+            }).when(crdt).update(any());
+            CrdtRegistry registry = mock(CrdtRegistry.class);
+            when(registry.crdt(anyLong())).thenReturn(crdt);
+            doAnswer(invocation -> {
+                applied("snapshot " + invocation.<RegistrySnapshot>getArgument(0).index());
+                return null;
+            }).when(registry).restore(any());
+
+            ReentrantLock lock = new ReentrantLock();
+            Executor executor = scheduler.applier();
+            when(bucket.index()).thenReturn(index);
+            when(bucket.replica()).thenReturn(replica);
+            when(bucket.lock()).thenReturn(lock);
+            when(bucket.executor()).thenReturn(executor);
+            when(bucket.state()).thenReturn(state);
+            when(bucket.registry()).thenReturn(registry);
+            when(bucket.replicator()).thenReturn(mock(Replicator.class));
+        }
+
+        private void applied(String event) {
+            applied.add(event);
+            threads.add(Thread.currentThread().getName());
+        }
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        scheduler = new CrdtScheduler(new ConfigBuilder().with("crdt.scheduler.appliers", 2).build());
+        transportService = mock(TransportService.class);
+
+        RoutingTable routingTable = new RoutingTable(2, 2)
+            .withReplica(0, new RoutingReplica(1, self))
+            .withReplica(0, new RoutingReplica(2, other))
+            .withReplica(1, new RoutingReplica(3, self))
+            .withReplica(1, new RoutingReplica(4, other));
+        RoutingTableFSM fsm = mock(RoutingTableFSM.class);
+        when(fsm.get()).thenReturn(routingTable);
+        ClusterDiscovery discovery = mock(ClusterDiscovery.class);
+        when(discovery.self()).thenReturn(self);
+
+        TransportController transportController = mock(TransportController.class);
+        doAnswer(invocation -> handlers.put(invocation.getArgument(0), invocation.getArgument(1)))
+            .when(transportController).registerMessageHandler(any(), any());
+        EventBus eventBus = mock(EventBus.class);
+        List<Consumer<RoutingTableChanged>> routingHandlers = new ArrayList<>();
+        doAnswer(invocation -> routingHandlers.add(invocation.getArgument(1)))
+            .when(eventBus).subscribe(eq(RoutingTableChanged.class), any(), any());
+        BucketFactory bucketFactory = mock(BucketFactory.class);
+        when(bucketFactory.create(anyInt(), anyLong())).then(invocation -> {
+            TestBucket bucket = new TestBucket(invocation.getArgument(0), invocation.getArgument(1));
+            buckets.put(invocation.getArgument(0), bucket);
+            return bucket.bucket;
+        });
+
+        new DefaultCrdtService(
+            mock(Raft.class),
+            fsm,
+            mock(AllocationStrategy.class),
+            discovery,
+            transportController,
+            bucketFactory,
+            eventBus,
+            transportService
+        );
+        routingHandlers.forEach(handler -> handler.accept(new RoutingTableChanged(1, routingTable)));
+        Assert.assertEquals(2, buckets.size());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        buckets.values().forEach(bucket -> bucket.blocked.countDown());
+        scheduler.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void receive(Streamable message) {
+        handlers.get(message.getClass()).handle(message);
+    }
+
+    private AppendEntries append(int bucket, long replica, long seq, long prev) {
+        return new AppendEntries(bucket, replica, seq, prev, Vector.of(new LogEntry(prev + 1, 0, new TestLong(prev + 1))));
+    }
+
+    @Test
+    public void testApplyInOrderOfReceive() throws Exception {
+        int total = 1000;
+        receive(new InstallSnapshot(0, 2, 0, new RegistrySnapshot(100, Vector.empty())));
+        for (int i = 0; i < total; i++) {
+            // entries of each bucket are chained by prev index, reordered apply is rejected
+            receive(append(0, 2, i + 1, 100 + i));
+            receive(append(1, 4, i + 1, i));
+        }
+        verify(transportService, timeout(10000).times(total * 2 + 1)).send(eq(other), isA(AppendSuccessful.class));
+        verify(transportService, never()).send(any(), isA(AppendRejected.class));
+
+        Assert.assertEquals(100L + total, (long) buckets.get(0).indexes.get(2L));
+        Assert.assertEquals((long) total, (long) buckets.get(1).indexes.get(4L));
+        Assert.assertEquals("snapshot 100", buckets.get(0).applied.get(0));
+        for (int i = 0; i < total; i++) {
+            Assert.assertEquals(new TestLong(101 + i).toString(), buckets.get(0).applied.get(i + 1));
+            Assert.assertEquals(new TestLong(i + 1).toString(), buckets.get(1).applied.get(i));
+        }
+        for (TestBucket bucket : buckets.values()) {
+            Assert.assertTrue(bucket.threads.stream().allMatch(thread -> thread.startsWith("crdt-apply")));
+        }
+    }
+
+    @Test
+    public void testBucketsAppliedInParallel() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        buckets.get(0).blocked = blocked;
+
+        // handler does not wait for apply, blocked bucket does not delay other bucket
+        receive(append(0, 2, 1, 0));
+        receive(append(0, 2, 2, 1));
+        receive(append(1, 4, 1, 0));
+        verify(transportService, timeout(10000)).send(eq(other), isA(AppendSuccessful.class));
+        Assert.assertTrue(buckets.get(0).applied.isEmpty());
+        Assert.assertEquals(1, buckets.get(1).applied.size());
+
+        blocked.countDown();
+        verify(transportService, timeout(10000).times(3)).send(eq(other), isA(AppendSuccessful.class));
+        verify(transportService, never()).send(any(), isA(AppendRejected.class));
+        Assert.assertEquals(2L, (long) buckets.get(0).indexes.get(2L));
+    }
+}
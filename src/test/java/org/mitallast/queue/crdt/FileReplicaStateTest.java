@@ -0,0 +1,115 @@
+package org.mitallast.queue.crdt;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import javaslang.collection.HashMap;
+import javaslang.collection.HashSet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.file.FileService;
+import org.mitallast.queue.common.stream.InternalStreamService;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.StreamableRegistry;
+import org.mitallast.queue.crdt.log.LogSyncService;
+import org.mitallast.queue.crdt.replication.state.FileReplicaState;
+
+import java.io.File;
+
+public class FileReplicaStateTest extends BaseTest {
+
+    InternalStreamService streamService;
+    Config config;
+    FileService fileService;
+    LogSyncService logSync;
+
+    @Before
+    public void setUp() throws Exception {
+        streamService = new InternalStreamService(HashSet.<StreamableRegistry>empty().toJavaSet());
+        config = ConfigFactory.parseMap(HashMap.of("node.path", testFolder.newFolder().getAbsolutePath()).toJavaMap())
+            .withFallback(ConfigFactory.defaultReference());
+        fileService = new FileService(config, streamService);
+        logSync = new LogSyncService(config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logSync.close();
+    }
+
+    private FileReplicaState createState() {
+        return new FileReplicaState(fileService, streamService, logSync, 0, 0);
+    }
+
+    @Test
+    public void putAndRestore() throws Exception {
+        FileReplicaState state = createState();
+        Assert.assertEquals(0, state.get(1));
+        for (long i = 1; i <= 1000; i++) {
+            state.put(1, i);
+            state.put(2, i * 2);
+        }
+        Assert.assertEquals(1000, state.get(1));
+        Assert.assertEquals(2000, state.get(2));
+        state.close();
+
+        state = createState();
+        Assert.assertEquals(1000, state.get(1));
+        Assert.assertEquals(2000, state.get(2));
+        state.close();
+    }
+
+    @Test
+    public void restoreIndexes() throws Exception {
+        FileReplicaState state = createState();
+        state.put(1, 100);
+        state.put(2, 200);
+        Assert.assertEquals(HashMap.of(1L, 100L, 2L, 200L), state.indexes());
+
+        // snapshot taken before replica 1 applied its last entries, replica 2 is not applied at all
+        state.restore(HashMap.of(1L, 50L, 3L, 30L));
+        Assert.assertEquals(50, state.get(1));
+        Assert.assertEquals(0, state.get(2));
+        Assert.assertEquals(30, state.get(3));
+        state.put(1, 60);
+        state.close();
+
+        state = createState();
+        Assert.assertEquals(60, state.get(1));
+        Assert.assertEquals(0, state.get(2));
+        Assert.assertEquals(30, state.get(3));
+        state.close();
+    }
+
+    @Test
+    public void grow() throws Exception {
+        FileReplicaState state = createState();
+        for (long replica = 0; replica < 100; replica++) {
+            state.put(replica, replica + 1);
+        }
+        state.close();
+
+        state = createState();
+        for (long replica = 0; replica < 100; replica++) {
+            Assert.assertEquals(replica + 1, state.get(replica));
+        }
+        state.close();
+    }
+
+    @Test
+    public void migrateStateLog() throws Exception {
+        File legacy = fileService.resource("crdt/0/replica/0", "state.log");
+        try (StreamOutput output = streamService.output(legacy)) {
+            output.writeLong(1);
+            output.writeLong(10);
+            output.writeLong(1);
+            output.writeLong(20);
+        }
+        FileReplicaState state = createState();
+        Assert.assertEquals(20, state.get(1));
+        Assert.assertFalse(legacy.exists());
+        state.close();
+    }
+}
@@ -2,22 +2,38 @@ package org.mitallast.queue.crdt;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
+import javaslang.Tuple;
+import javaslang.Tuple2;
 import javaslang.collection.HashMap;
 import javaslang.collection.HashSet;
+import javaslang.collection.Iterator;
 import javaslang.collection.Vector;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.file.FileException;
 import org.mitallast.queue.common.file.FileService;
 import org.mitallast.queue.common.stream.*;
+import org.mitallast.queue.crdt.log.CompactionStats;
 import org.mitallast.queue.crdt.log.FileReplicatedLog;
 import org.mitallast.queue.crdt.log.LogEntry;
+import org.mitallast.queue.crdt.log.LogSyncService;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 public class FileReplicatedLogTest extends BaseTest {
 
     InternalStreamService streamService;
     Config config;
+    LogSyncService logSync;
+    CrdtScheduler scheduler;
     FileReplicatedLog log;
 
     @Before
@@ -27,14 +43,33 @@ public class FileReplicatedLogTest extends BaseTest {
         ).toJavaSet());
         config = ConfigFactory.parseMap(HashMap.of("node.path", testFolder.newFolder().getAbsolutePath()).toJavaMap())
             .withFallback(ConfigFactory.defaultReference());
-        log = new FileReplicatedLog(
+        logSync = new LogSyncService(config);
+        scheduler = new CrdtScheduler(config);
+        log = createLog();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+        logSync.close();
+        scheduler.close();
+    }
+
+    private FileReplicatedLog createLog() {
+        return createLog(logEntry -> false);
+    }
+
+    private FileReplicatedLog createLog(Predicate<LogEntry> compactionFilter) {
+        return new FileReplicatedLog(
             config,
             new FileService(
                 config,
                 streamService
             ),
             streamService,
-            logEntry -> false,
+            logSync,
+            scheduler,
+            compactionFilter,
             0,
             0
         );
@@ -80,6 +115,360 @@ public class FileReplicatedLogTest extends BaseTest {
         }
     }
 
+    @Test
+    public void appendBatch() throws Exception {
+        long total = 25000;
+        Vector<Tuple2<Long, Streamable>> events = Vector.range(0, total)
+            .map(i -> Tuple.of((long) i, new TestLong(i)));
+        Vector<LogEntry> appended = Vector.empty();
+        for (Vector<Tuple2<Long, Streamable>> batch : events.grouped(1000)) {
+            appended = appended.appendAll(log.append(batch));
+        }
+        Assert.assertEquals(total, log.index());
+        Assert.assertEquals(appended.map(LogEntry::index), log.entriesFrom(0).map(LogEntry::index));
+        for (int i = 0; i < total; i++) {
+            Assert.assertEquals(i + 1, appended.get(i).index());
+            Assert.assertEquals(i, appended.get(i).id());
+        }
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        long total = 25000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        log.close();
+
+        log = createLog();
+        Assert.assertEquals(total, log.index());
+        Vector<LogEntry> logEntries = log.entriesFrom(0);
+        Assert.assertEquals(total, logEntries.size());
+        for (int i = 0; i < total; i++) {
+            Assert.assertEquals(i + 1, logEntries.get(i).index());
+            Assert.assertEquals(i, logEntries.get(i).id());
+        }
+
+        LogEntry append = log.append(total, new TestLong(total));
+        Assert.assertEquals(total + 1, append.index());
+    }
+
+    @Test
+    public void recoverFromCheckpoint() throws Exception {
+        long total = 25000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        log.close();
+
+        FileService fileService = new FileService(config, streamService);
+        // sealed segments could be already merged by compaction
+        Assert.assertTrue(fileService.resources("crdt/0/log/0", "regex:event.[0-9]+.idx").count() >= 1);
+        // broken checkpoint should fallback to segment scan
+        fileService.resources("crdt/0/log/0", "regex:event.[0-9]+.idx")
+            .findFirst()
+            .ifPresent(path -> path.toFile().delete());
+
+        log = createLog();
+        Assert.assertEquals(total, log.index());
+        Vector<LogEntry> logEntries = log.entriesFrom(0);
+        Assert.assertEquals(total, logEntries.size());
+        for (int i = 0; i < total; i++) {
+            Assert.assertEquals(i + 1, logEntries.get(i).index());
+        }
+        Assert.assertEquals(10001, log.cursor(10000).next().index());
+        Assert.assertEquals(total + 1, log.append(total, new TestLong(total)).index());
+    }
+
+    @Test
+    public void reopenTruncateTornTail() throws Exception {
+        long total = 100;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        log.close();
+
+        File segmentFile = new FileService(config, streamService).resource("crdt/0/log/0", "event.0.log");
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            // corrupt payload of last record
+            file.seek(segmentFile.length() - 1);
+            file.write(0xFF);
+        }
+
+        log = createLog();
+        Assert.assertEquals(total - 1, log.index());
+        Assert.assertEquals(total - 1, log.entriesFrom(0).size());
+        Assert.assertEquals(total, log.append(total, new TestLong(total)).index());
+        log.close();
+
+        log = createLog();
+        Assert.assertEquals(total, log.entriesFrom(0).size());
+        Assert.assertEquals(total, log.entriesFrom(0).last().id());
+    }
+
+    @Test
+    public void reopenMigrateUnframed() throws Exception {
+        log.close();
+        long total = 100;
+        File segmentFile = new FileService(config, streamService).resource("crdt/0/log/0", "event.0.log");
+        try (StreamOutput output = streamService.output(segmentFile)) {
+            for (int i = 0; i < total; i++) {
+                output.writeStreamable(new LogEntry(i + 1, i, new TestLong(i)));
+            }
+        }
+
+        log = createLog();
+        Assert.assertEquals(total, log.index());
+        Assert.assertEquals(total, log.entriesFrom(0).size());
+        Assert.assertEquals(total + 1, log.append(total, new TestLong(total)).index());
+        log.close();
+
+        log = createLog();
+        Assert.assertEquals(total + 1, log.entriesFrom(0).size());
+        Assert.assertEquals(total, log.entriesFrom(0).last().id());
+    }
+
+    @Test
+    public void reopenRefuseUnknownFormat() throws Exception {
+        log.close();
+        File segmentFile = new FileService(config, streamService).resource("crdt/0/log/0", "event.0.log");
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(0);
+            file.writeLong(-1);
+        }
+        try {
+            log = createLog();
+            Assert.fail("unknown format should not be opened");
+        } catch (FileException expected) {
+            Assert.assertEquals(8, segmentFile.length());
+        }
+        Assert.assertTrue(segmentFile.delete());
+        log = createLog();
+    }
+
+    @Test
+    public void truncate() throws Exception {
+        long total = 35000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        Assert.assertEquals(0, log.startIndex());
+        log.truncate(30000);
+        for (int w = 0; w < 100 && log.startIndex() == 0; w++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(30000, log.startIndex());
+        Assert.assertEquals(30001, log.cursor(0).next().index());
+        Assert.assertEquals(total - 30000, log.entriesFrom(0).size());
+        log.close();
+
+        log = createLog();
+        Assert.assertEquals(30000, log.startIndex());
+        Assert.assertEquals(total, log.index());
+        Assert.assertEquals(total - 30000, log.entriesFrom(0).size());
+    }
+
+    @Test
+    public void cursor() throws Exception {
+        long total = 25000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        for (long from : new long[]{0, 1, 9999, 10000, 10001, 24999}) {
+            Vector<LogEntry> batch = log.cursor(from).take(100).toVector();
+            Assert.assertEquals(Math.min(100, total - from), batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                Assert.assertEquals(from + i + 1, batch.get(i).index());
+            }
+        }
+        Assert.assertFalse(log.cursor(total).hasNext());
+    }
+
+    @Test
+    public void entriesFromLimited() throws Exception {
+        long total = 25000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        Vector<LogEntry> byCount = log.entriesFrom(9990, 100, Long.MAX_VALUE);
+        Assert.assertEquals(100, byCount.size());
+        Assert.assertEquals(9991, byCount.head().index());
+
+        int frameSize = (int) (log.compactionStats().segments().head().bytes() / 10000);
+        Vector<LogEntry> bySize = log.entriesFrom(9990, 100, frameSize * 20 + frameSize / 2);
+        Assert.assertEquals(20, bySize.size());
+        Assert.assertEquals(9991, bySize.head().index());
+
+        Assert.assertEquals(1, log.entriesFrom(0, 100, 1).size());
+        Assert.assertEquals(10, log.entriesFrom(total - 10, 100, Long.MAX_VALUE).size());
+        Assert.assertTrue(log.entriesFrom(total, 100, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void entriesFromReturnsAtLeastOneEntry() throws Exception {
+        long total = 100;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        // limit less than one entry still advances by single entry, so replication is not stuck
+        long prev = 0;
+        while (prev < total) {
+            Vector<LogEntry> entries = log.entriesFrom(prev, 100, 1);
+            Assert.assertEquals(1, entries.size());
+            Assert.assertEquals(prev + 1, entries.head().index());
+            prev = entries.head().index();
+        }
+        Assert.assertTrue(log.entriesFrom(prev, 100, 1).isEmpty());
+    }
+
+    @Test
+    public void appendGroupCommit() throws Exception {
+        logSync.close();
+        logSync = new LogSyncService(ConfigFactory.parseMap(HashMap.of("crdt.log.durability", "group-commit").toJavaMap())
+            .withFallback(config));
+        log.close();
+        log = createLog();
+
+        long total = 100000;
+        long start = System.currentTimeMillis();
+        executeConcurrent((thread, concurrency) -> {
+            for (int i = thread; i < total; i += concurrency) {
+                LogEntry append = log.append(i, new TestLong(i));
+                assert append.id() == i;
+            }
+        });
+        long end = System.currentTimeMillis();
+        printQps("append group commit", total, start, end);
+        Assert.assertEquals(total, log.entriesFrom(0).size());
+    }
+
+    @Test
+    public void writtenAfterCloseGroupCommit() throws Exception {
+        logSync.close();
+        logSync = new LogSyncService(ConfigFactory.parseMap(HashMap.of("crdt.log.durability", "group-commit").toJavaMap())
+            .withFallback(config));
+
+        AtomicLong flushed = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        long total = 100000;
+        Future<?> writers = submit(() -> {
+            executeConcurrent((thread, concurrency) -> {
+                for (int i = thread; i < total; i += concurrency) {
+                    try {
+                        logSync.written(flushed::incrementAndGet);
+                    } catch (IllegalStateException e) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            });
+            return null;
+        });
+        while (flushed.get() == 0) {
+            Thread.sleep(1);
+        }
+        logSync.close();
+        // every request enqueued concurrently with close is completed or failed
+        writers.get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(rejected.get() > 0);
+        try {
+            logSync.written(flushed::incrementAndGet);
+            Assert.fail("expected rejected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        log.close();
+        log = createLog(logEntry -> logEntry.id() % 2 == 0);
+
+        long total = 35000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        CompactionStats stats = log.compactionStats();
+        for (int w = 0; w < 100 && stats.segments().size() > 2; w++) {
+            Thread.sleep(100);
+            stats = log.compactionStats();
+        }
+        logger.info("compaction stats: {}", stats);
+        Assert.assertTrue(stats.segmentsRewritten() >= 3);
+        Assert.assertEquals(2, stats.segments().size());
+        Assert.assertTrue(stats.bytesReclaimed() > 0);
+        Assert.assertEquals(1.0, stats.segments().head().liveRatio(), 0.0);
+
+        Vector<LogEntry> logEntries = log.entriesFrom(0);
+        Assert.assertEquals(15000 + 5000, logEntries.size());
+        Assert.assertEquals(15000, logEntries.filter(logEntry -> logEntry.index() <= 30000).size());
+        Assert.assertTrue(logEntries.filter(logEntry -> logEntry.index() <= 30000).forAll(logEntry -> logEntry.id() % 2 == 1));
+        log.close();
+
+        log = createLog();
+        Assert.assertEquals(total, log.index());
+        Assert.assertEquals(logEntries.map(LogEntry::index), log.entriesFrom(0).map(LogEntry::index));
+        Assert.assertEquals(logEntries.drop(100).take(100).map(LogEntry::index), log.cursor(logEntries.get(99).index()).take(100).map(LogEntry::index).toVector());
+    }
+
+    @Test
+    public void compression() throws Exception {
+        log.close();
+        config = ConfigFactory.parseMap(HashMap.of("crdt.segment.compression", "deflate").toJavaMap())
+            .withFallback(config);
+        log = createLog();
+
+        long total = 35000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        CompactionStats stats = log.compactionStats();
+        for (int w = 0; w < 100 && stats.segments().size() > 2; w++) {
+            Thread.sleep(100);
+            stats = log.compactionStats();
+        }
+        logger.info("compaction stats: {}", stats);
+        Assert.assertEquals(2, stats.segments().size());
+        Assert.assertTrue(stats.bytesReclaimed() > 0);
+        File segmentFile = new FileService(config, streamService).resource("crdt/0/log/0", "event.0.log");
+        Assert.assertTrue(segmentFile.length() < stats.segments().head().bytes() / 2);
+
+        Vector<LogEntry> logEntries = log.entriesFrom(0);
+        Assert.assertEquals(total, logEntries.size());
+        Assert.assertEquals(12346, log.cursor(12345).next().index());
+        log.close();
+
+        // index of compressed segment should be rebuilt from blocks
+        new FileService(config, streamService).resource("crdt/0/log/0", "event.0.idx").delete();
+        log = createLog();
+        Assert.assertEquals(total, log.index());
+        Assert.assertEquals(logEntries.map(LogEntry::index), log.entriesFrom(0).map(LogEntry::index));
+        Assert.assertEquals(logEntries.map(LogEntry::id), log.entriesFrom(0).map(LogEntry::id));
+        Assert.assertEquals(20001, log.cursor(20000).next().index());
+        Assert.assertEquals(total + 1, log.append(total, new TestLong(total)).index());
+    }
+
+    @Test
+    public void cursorAfterTruncate() throws Exception {
+        long total = 25000;
+        for (int i = 0; i < total; i++) {
+            log.append(i, new TestLong(i));
+        }
+        log.close();
+
+        // segments restored from checkpoint are mapped on first access
+        log = createLog();
+        Iterator<LogEntry> cursor = log.cursor(0);
+        log.truncate(20000);
+        for (int w = 0; w < 100 && log.startIndex() == 0; w++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(20000, log.startIndex());
+        for (long i = 1; i <= 100; i++) {
+            Assert.assertEquals(i, cursor.next().index());
+        }
+        File segmentFile = new File(new FileService(config, streamService).service("crdt/0/log/0"), "event.0.log");
+        Assert.assertFalse(segmentFile.exists());
+    }
+
     public static class TestLong implements Streamable {
         private final long value;
 
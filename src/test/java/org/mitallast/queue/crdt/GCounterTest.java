@@ -0,0 +1,153 @@
+package org.mitallast.queue.crdt;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import javaslang.collection.HashMap;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.commutative.GCounter;
+import org.mitallast.queue.crdt.registry.DefaultCrdtRegistry;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class GCounterTest extends BaseTest {
+
+    private final List<Streamable> log = Collections.synchronizedList(new ArrayList<>());
+    private final Replicator replicator = mock(Replicator.class);
+    private CrdtScheduler scheduler;
+    private DefaultCrdtRegistry registry;
+
+    {
+        doAnswer(invocation -> {
+            log.add(invocation.getArgument(1));
+            return javaslang.concurrent.Future.successful(null);
+        }).when(replicator).append(anyLong(), any());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (registry != null) {
+            registry.close();
+        }
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    private GCounter createRegistryCounter(long flushThreshold, String flushInterval) {
+        Config config = ConfigFactory.parseMap(HashMap.of(
+            "crdt.g-counter.striped", "true",
+            "crdt.g-counter.flush-threshold", String.valueOf(flushThreshold),
+            "crdt.g-counter.flush-interval", flushInterval
+        ).toJavaMap()).withFallback(ConfigFactory.defaultReference());
+        scheduler = new CrdtScheduler(config);
+        registry = new DefaultCrdtRegistry(config, scheduler, 0, 1, replicator);
+        Assert.assertTrue(registry.createGCounter(0));
+        GCounter counter = registry.crdt(0, GCounter.class);
+        Assert.assertTrue(counter.isStriped());
+        return counter;
+    }
+
+    /**
+     * @return value of replica 1 observed by downstream replica which applied replicated log
+     */
+    private long replicated() {
+        GCounter downstream = new GCounter(0, 2, mock(Replicator.class));
+        synchronized (log) {
+            for (Streamable event : log) {
+                downstream.update(event);
+            }
+        }
+        return downstream.value();
+    }
+
+    @Test
+    public void valueDuringFlushNeverUndercounts() throws Exception {
+        GCounter counter = new GCounter(0, 1, replicator, 4, Long.MAX_VALUE);
+        long total = 1000000;
+        AtomicBoolean done = new AtomicBoolean();
+
+        Future<Void> flusher = submit(() -> {
+            while (!done.get()) {
+                counter.flush();
+            }
+        });
+        Future<Void> reader = submit(() -> {
+            long last = 0;
+            while (!done.get()) {
+                long value = counter.value();
+                Assert.assertTrue(value + " < " + last, value >= last);
+                Assert.assertTrue(value <= total);
+                last = value;
+            }
+        });
+        executeConcurrent((thread, concurrency) -> {
+            for (long i = thread; i < total; i += concurrency) {
+                counter.increment();
+            }
+        });
+        done.set(true);
+        reader.get();
+        flusher.get();
+
+        Assert.assertEquals(total, counter.value());
+        Assert.assertEquals(total, counter.flush());
+        Assert.assertEquals(total, replicated());
+    }
+
+    @Test
+    public void thresholdFlush() throws Exception {
+        GCounter counter = createRegistryCounter(10, "1h");
+        for (int i = 0; i < 25; i++) {
+            counter.increment();
+        }
+        Assert.assertEquals(25, counter.value());
+        Assert.assertEquals(2, log.size());
+        Assert.assertEquals(20, replicated());
+    }
+
+    @Test
+    public void intervalFlush() throws Exception {
+        GCounter counter = createRegistryCounter(1024, "10ms");
+        for (int i = 0; i < 25; i++) {
+            counter.increment();
+        }
+        for (int w = 0; w < 100 && replicated() < 25; w++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(25, replicated());
+    }
+
+    @Test
+    public void closeFlushesRemainingCells() throws Exception {
+        GCounter counter = createRegistryCounter(1024, "1h");
+        for (int i = 0; i < 25; i++) {
+            counter.increment();
+        }
+        Assert.assertTrue(log.isEmpty());
+        registry.close();
+        Assert.assertEquals(25, replicated());
+    }
+
+    @Test
+    public void removeStopsFlush() throws Exception {
+        GCounter counter = createRegistryCounter(1024, "1h");
+        counter.increment();
+        Assert.assertTrue(registry.remove(0));
+        registry.close();
+        Assert.assertTrue(log.isEmpty());
+    }
+}
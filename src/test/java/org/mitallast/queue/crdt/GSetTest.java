@@ -0,0 +1,49 @@
+package org.mitallast.queue.crdt;
+
+import javaslang.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.crdt.ClusterCrdtTest.TestLong;
+import org.mitallast.queue.crdt.commutative.GSet;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class GSetTest extends BaseTest {
+
+    @Test
+    public void downstreamUpdateDoesNotWaitForBlockedAppend() throws Exception {
+        CountDownLatch appending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Replicator replicator = mock(Replicator.class);
+        doAnswer(invocation -> {
+            appending.countDown();
+            release.await();
+            return Future.successful(null);
+        }).when(replicator).append(anyLong(), any());
+        GSet set = new GSet(0, replicator);
+
+        java.util.concurrent.Future<Void> add = submit(() -> set.add(new TestLong(1)));
+        Assert.assertTrue(appending.await(10, TimeUnit.SECONDS));
+
+        // writer queue is full, replicated entries are still applied
+        set.update(new GSet.DownstreamAdd(new TestLong(2)));
+        Assert.assertTrue(set.values().contains(new TestLong(1)));
+        Assert.assertTrue(set.values().contains(new TestLong(2)));
+
+        // concurrent add of the same value is not logged twice
+        set.add(new TestLong(1));
+        release.countDown();
+        add.get(10, TimeUnit.SECONDS);
+        verify(replicator, times(1)).append(anyLong(), any());
+    }
+}
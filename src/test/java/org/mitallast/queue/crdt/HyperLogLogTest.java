@@ -0,0 +1,166 @@
+package org.mitallast.queue.crdt;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import javaslang.collection.HashSet;
+import javaslang.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.stream.InternalStreamService;
+import org.mitallast.queue.common.stream.StreamInput;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.StreamService;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.common.stream.StreamableRegistry;
+import org.mitallast.queue.crdt.commutative.CmRDT.DeltaUpdate;
+import org.mitallast.queue.crdt.commutative.HyperLogLog;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.ArrayList;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class HyperLogLogTest extends BaseTest {
+
+    private final StreamService streamService = new InternalStreamService(HashSet.<StreamableRegistry>empty().toJavaSet());
+    private final ArrayList<Streamable> log = new ArrayList<>();
+
+    private HyperLogLog create(int precision) {
+        Replicator replicator = mock(Replicator.class);
+        doAnswer(invocation -> {
+            log.add(invocation.getArgument(1));
+            return Future.successful(null);
+        }).when(replicator).append(anyLong(), any());
+        return new HyperLogLog(0, replicator, precision);
+    }
+
+    private HyperLogLog.DownstreamAssign last() {
+        return (HyperLogLog.DownstreamAssign) log.get(log.size() - 1);
+    }
+
+    /**
+     * @return registers of merge as index:rank pairs, read from serialized form
+     */
+    private String registers(HyperLogLog.DownstreamMerge merge) {
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            try (StreamOutput output = streamService.output(buffer)) {
+                merge.writeTo(output);
+            }
+            int size = buffer.readInt();
+            int[] indexes = new int[size];
+            for (int i = 0; i < size; i++) {
+                indexes[i] = buffer.readInt();
+            }
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                builder.append(i == 0 ? "" : ",").append(indexes[i]).append(':').append(buffer.readByte());
+            }
+            return builder.toString();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void joinOrdersByIndexAndKeepsMaxRank() throws Exception {
+        DeltaUpdate joined = new HyperLogLog.DownstreamAssign(5, (byte) 3)
+            .join(new HyperLogLog.DownstreamAssign(2, (byte) 1))
+            .join(new HyperLogLog.DownstreamMerge(new int[]{2, 5, 7}, new byte[]{4, 2, 1}))
+            .join(new HyperLogLog.DownstreamAssign(0, (byte) 6));
+        Assert.assertEquals("0:6,2:4,5:3,7:1", registers((HyperLogLog.DownstreamMerge) joined));
+    }
+
+    @Test
+    public void rankAtMinPrecision() throws Exception {
+        HyperLogLog hll = create(4);
+        // index is 4 high bits, rank is position of first set bit after them
+        hll.addHash(0x0800000000000000L);
+        Assert.assertEquals(0, last().key());
+        Assert.assertEquals(1, last().version());
+
+        hll.addHash(0x1001000000000000L);
+        Assert.assertEquals(1, last().key());
+        Assert.assertEquals(12, last().version());
+
+        // rank is bounded by 64 - precision + 1 if no bit is set after index
+        hll.addHash(0xF000000000000000L);
+        Assert.assertEquals(15, last().key());
+        Assert.assertEquals(61, last().version());
+    }
+
+    @Test
+    public void rankAtMaxPrecision() throws Exception {
+        HyperLogLog hll = create(18);
+        hll.addHash(-1L);
+        Assert.assertEquals((1 << 18) - 1, last().key());
+        Assert.assertEquals(1, last().version());
+
+        hll.addHash(1L);
+        Assert.assertEquals(0, last().key());
+        Assert.assertEquals(46, last().version());
+
+        hll.addHash(0L);
+        Assert.assertEquals(0, last().key());
+        Assert.assertEquals(47, last().version());
+
+        // smaller rank does not change register and is not replicated
+        int size = log.size();
+        hll.addHash(2L);
+        Assert.assertEquals(size, log.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectPrecisionOutOfRange() throws Exception {
+        create(19);
+    }
+
+    @Test
+    public void estimateErrorBound() throws Exception {
+        HyperLogLog hll = create(14);
+        // standard error is 1.04 / sqrt(2^14) = 0.8%, bound is about 4 standard errors
+        long added = 0;
+        for (long total : new long[]{100, 1000, 10000, 100000, 1000000}) {
+            for (; added < total; added++) {
+                hll.add(added);
+            }
+            double error = Math.abs(hll.count() - total) / (double) total;
+            Assert.assertTrue("error " + error + " at " + total, error < 0.035);
+        }
+    }
+
+    @Test
+    public void streamRoundTrip() throws Exception {
+        HyperLogLog hll = create(10);
+        for (long i = 0; i < 10000; i++) {
+            hll.add(i);
+        }
+
+        HyperLogLog restored = create(10);
+        ByteBuf buffer = Unpooled.buffer();
+        try {
+            try (StreamOutput output = streamService.output(buffer)) {
+                for (Streamable event : hll.snapshot()) {
+                    event.writeTo(output);
+                }
+                last().writeTo(output);
+            }
+            try (StreamInput input = streamService.input(buffer)) {
+                HyperLogLog.DownstreamMerge merge = new HyperLogLog.DownstreamMerge(input);
+                HyperLogLog.DownstreamAssign assign = new HyperLogLog.DownstreamAssign(input);
+                Assert.assertEquals(last().key(), assign.key());
+                Assert.assertEquals(last().version(), assign.version());
+                restored.update(merge);
+            }
+        } finally {
+            buffer.release();
+        }
+        Assert.assertEquals(hll.count(), restored.count());
+        Assert.assertEquals(registers((HyperLogLog.DownstreamMerge) hll.snapshot().head()),
+            registers((HyperLogLog.DownstreamMerge) restored.snapshot().head()));
+    }
+}
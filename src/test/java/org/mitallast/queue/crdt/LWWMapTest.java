@@ -0,0 +1,117 @@
+package org.mitallast.queue.crdt;
+
+import javaslang.Tuple;
+import javaslang.Tuple2;
+import javaslang.collection.Vector;
+import javaslang.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.ClusterCrdtTest.TestLong;
+import org.mitallast.queue.crdt.commutative.LWWMap;
+import org.mitallast.queue.crdt.replication.Coalescing;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.ArrayList;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class LWWMapTest extends BaseTest {
+
+    private static class Replica {
+        private final ArrayList<Streamable> log = new ArrayList<>();
+        private final LWWMap map;
+
+        private Replica(long replica) {
+            Replicator replicator = mock(Replicator.class);
+            doAnswer(invocation -> {
+                log.add(invocation.getArgument(1));
+                return Future.successful(null);
+            }).when(replicator).append(anyLong(), any());
+            map = new LWWMap(0, replica, replicator);
+        }
+
+        /**
+         * Deliver all log entries of replica in order
+         */
+        private void deliver(Replica to) {
+            for (Streamable event : log) {
+                to.map.update(event);
+            }
+        }
+    }
+
+    private final Replica a = new Replica(1);
+    private final Replica b = new Replica(2);
+
+    @Test
+    public void removeWithSameTimestampOverridesAssign() throws Exception {
+        a.map.assign("key", new TestLong(1), 100);
+        a.map.remove("key", 100);
+        Assert.assertTrue(a.map.get("key").isEmpty());
+
+        a.deliver(b);
+        Assert.assertTrue(b.map.get("key").isEmpty());
+        Assert.assertTrue(a.map.shouldCompact(a.log.get(0)));
+    }
+
+    @Test
+    public void concurrentAssignsWithSameTimestampConverge() throws Exception {
+        a.map.assign("key", new TestLong(1), 100);
+        b.map.assign("key", new TestLong(2), 100);
+
+        a.deliver(b);
+        b.deliver(a);
+        Assert.assertEquals(a.map.get("key"), b.map.get("key"));
+        Assert.assertEquals(new TestLong(2), a.map.get("key").get());
+    }
+
+    @Test
+    public void writeAfterRestoreOverridesRestoredWithSameTimestamp() throws Exception {
+        a.map.assign("key", new TestLong(1), 100);
+
+        Replica restored = new Replica(1);
+        a.deliver(restored);
+        restored.map.remove("key", 100);
+        Assert.assertTrue(restored.map.get("key").isEmpty());
+    }
+
+    private Vector<Tuple2<Long, Streamable>> coalesce(Replica replica, int... positions) {
+        Vector<Tuple2<Long, Streamable>> events = Vector.empty();
+        for (int position : positions) {
+            events = events.append(Tuple.of(0L, replica.log.get(position)));
+        }
+        return Coalescing.events(events, true, false);
+    }
+
+    @Test
+    public void assignsOfSameKeyAreCoalesced() throws Exception {
+        a.map.assign("key", new TestLong(1), 100);
+        a.map.assign("other", new TestLong(2), 100);
+        a.map.assign("key", new TestLong(3), 200);
+
+        Vector<Tuple2<Long, Streamable>> coalesced = coalesce(a, 0, 1, 2);
+        Assert.assertEquals(2, coalesced.size());
+        Assert.assertSame(a.log.get(1), coalesced.get(0)._2);
+        Assert.assertSame(a.log.get(2), coalesced.get(1)._2);
+    }
+
+    @Test
+    public void coalescedAssignsWithSameTimestampKeepNewestRegister() throws Exception {
+        a.map.assign("key", new TestLong(1), 100);
+        a.map.remove("key", 100);
+
+        // appends of concurrent writes could be reordered, register order wins over batch order
+        Vector<Tuple2<Long, Streamable>> coalesced = coalesce(a, 1, 0);
+        Assert.assertEquals(1, coalesced.size());
+        Assert.assertSame(a.log.get(1), coalesced.head()._2);
+
+        b.map.update(coalesced.head()._2);
+        a.deliver(b);
+        Assert.assertTrue(b.map.get("key").isEmpty());
+    }
+}
@@ -0,0 +1,158 @@
+package org.mitallast.queue.crdt;
+
+import javaslang.collection.HashSet;
+import javaslang.collection.Vector;
+import javaslang.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.ClusterCrdtTest.TestLong;
+import org.mitallast.queue.crdt.commutative.CmRDT;
+import org.mitallast.queue.crdt.commutative.ORSet;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.ArrayList;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class ORSetTest extends BaseTest {
+
+    private static class Replica {
+        private final ArrayList<Streamable> log = new ArrayList<>();
+        private final ORSet set;
+
+        private Replica(long replica) {
+            Replicator replicator = mock(Replicator.class);
+            doAnswer(invocation -> {
+                log.add(invocation.getArgument(1));
+                return Future.successful(null);
+            }).when(replicator).append(anyLong(), any());
+            set = new ORSet(0, replica, replicator);
+        }
+
+        private Streamable last() {
+            return log.get(log.size() - 1);
+        }
+
+        /**
+         * Deliver all log entries of replica in order
+         */
+        private void deliver(Replica to) {
+            for (Streamable event : log) {
+                to.set.update(event);
+            }
+        }
+    }
+
+    private final Replica a = new Replica(1);
+    private final Replica b = new Replica(2);
+    private final Replica c = new Replica(3);
+
+    @Test
+    public void addWinsOverConcurrentRemove() throws Exception {
+        a.set.add(new TestLong(1));
+        b.set.update(a.last());
+        Assert.assertTrue(b.set.contains(new TestLong(1)));
+
+        b.set.remove(new TestLong(1));
+        a.set.add(new TestLong(1));
+
+        a.set.update(b.last());
+        b.set.update(a.last());
+
+        Assert.assertTrue(a.set.contains(new TestLong(1)));
+        Assert.assertTrue(b.set.contains(new TestLong(1)));
+    }
+
+    @Test
+    public void removeBeforeAdd() throws Exception {
+        a.set.add(new TestLong(1));
+        a.set.add(new TestLong(2));
+        c.set.update(a.log.get(0));
+        c.set.remove(new TestLong(1));
+
+        // remove of c is delivered to b before add of a
+        b.set.update(c.last());
+        a.deliver(b);
+        a.set.update(c.last());
+
+        Assert.assertEquals(HashSet.of(new TestLong(2)), b.set.values().toSet());
+        Assert.assertEquals(HashSet.of(new TestLong(2)), a.set.values().toSet());
+    }
+
+    @Test
+    public void compactRemovedAdds() throws Exception {
+        a.set.add(new TestLong(1));
+        Streamable add = a.last();
+        a.set.remove(new TestLong(1));
+        Streamable remove = a.last();
+        // latest add keeps counter of replica
+        Assert.assertFalse(a.set.shouldCompact(add));
+
+        a.set.add(new TestLong(2));
+        Assert.assertTrue(a.set.shouldCompact(add));
+        Assert.assertFalse(a.set.shouldCompact(remove));
+        Assert.assertFalse(a.set.shouldCompact(a.last()));
+
+        // replica which has not seen compacted add converges
+        for (Streamable event : a.log) {
+            if (!a.set.shouldCompact(event)) {
+                b.set.update(event);
+            }
+        }
+        Assert.assertEquals(a.set.values().toSet(), b.set.values().toSet());
+    }
+
+    @Test
+    public void joinDeltas() throws Exception {
+        a.set.add(new TestLong(1));
+        a.set.add(new TestLong(2));
+        a.set.remove(new TestLong(1));
+        a.set.add(new TestLong(1));
+        a.set.remove(new TestLong(2));
+        a.set.add(new TestLong(3));
+
+        CmRDT.DeltaUpdate joined = (CmRDT.DeltaUpdate) a.log.get(0);
+        for (int i = 1; i < a.log.size(); i++) {
+            joined = joined.join((CmRDT.DeltaUpdate) a.log.get(i));
+        }
+        b.set.update(joined);
+        a.deliver(c);
+
+        Assert.assertEquals(HashSet.of(new TestLong(1), new TestLong(3)), a.set.values().toSet());
+        Assert.assertEquals(a.set.values().toSet(), b.set.values().toSet());
+        Assert.assertEquals(a.set.values().toSet(), c.set.values().toSet());
+    }
+
+    @Test
+    public void restoreFromSnapshot() throws Exception {
+        a.set.add(new TestLong(1));
+        a.set.add(new TestLong(2));
+        a.deliver(b);
+        a.deliver(c);
+        b.set.add(new TestLong(3));
+        Vector<Streamable> snapshot = b.set.snapshot();
+
+        c.set.remove(new TestLong(1));
+        b.set.update(c.last());
+
+        // d is bootstrapped from snapshot of b taken before remove
+        Replica d = new Replica(4);
+        for (Streamable event : snapshot) {
+            d.set.update(event);
+        }
+        d.set.update(c.last());
+        Assert.assertEquals(HashSet.of(new TestLong(2), new TestLong(3)), d.set.values().toSet());
+
+        // stale snapshot does not restore removed element
+        for (Streamable event : snapshot) {
+            c.set.update(event);
+        }
+        Assert.assertEquals(HashSet.of(new TestLong(2), new TestLong(3)), c.set.values().toSet());
+        Assert.assertEquals(b.set.values().toSet(), c.set.values().toSet());
+    }
+}
@@ -0,0 +1,122 @@
+package org.mitallast.queue.crdt;
+
+import javaslang.Tuple;
+import javaslang.collection.HashMap;
+import javaslang.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.commutative.PNCounter;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.ArrayList;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class PNCounterTest extends BaseTest {
+
+    private static class Replica {
+        private final ArrayList<Streamable> log = new ArrayList<>();
+        private final PNCounter counter;
+
+        private Replica(long replica) {
+            Replicator replicator = mock(Replicator.class);
+            doAnswer(invocation -> {
+                log.add(invocation.getArgument(1));
+                return Future.successful(null);
+            }).when(replicator).append(anyLong(), any());
+            counter = new PNCounter(0, replica, replicator);
+        }
+
+        /**
+         * Deliver all log entries of replica in order
+         */
+        private void deliver(Replica to) {
+            for (Streamable event : log) {
+                to.counter.update(event);
+            }
+        }
+    }
+
+    private final Replica a = new Replica(1);
+    private final Replica b = new Replica(2);
+
+    @Test
+    public void shouldCompactDominatedAssign() throws Exception {
+        a.counter.add(5);
+        a.counter.add(-3);
+        Assert.assertEquals(2, a.counter.value());
+        Assert.assertEquals(2, a.log.size());
+
+        Assert.assertTrue(a.counter.shouldCompact(a.log.get(0)));
+        Assert.assertFalse(a.counter.shouldCompact(a.log.get(1)));
+    }
+
+    @Test
+    public void shouldNotCompactConcurrentMerge() throws Exception {
+        a.counter.add(5);
+        // increments are behind, decrements are ahead of local state
+        PNCounter.DownstreamMerge merge = new PNCounter.DownstreamMerge(HashMap.of(1L, Tuple.of(4L, 1L)));
+        Assert.assertFalse(a.counter.shouldCompact(merge));
+
+        a.counter.add(-2);
+        Assert.assertTrue(a.counter.shouldCompact(merge));
+    }
+
+    @Test
+    public void mergeKeepsMaxOfVectors() throws Exception {
+        a.counter.add(10);
+        a.counter.add(-4);
+        b.counter.add(-7);
+
+        a.deliver(b);
+        b.deliver(a);
+        Assert.assertEquals(-1, a.counter.value());
+        Assert.assertEquals(-1, b.counter.value());
+
+        // reordered and duplicate updates do not change state
+        for (int i = a.log.size() - 1; i >= 0; i--) {
+            b.counter.update(a.log.get(i));
+        }
+        Assert.assertEquals(-1, b.counter.value());
+
+        PNCounter restored = new Replica(3).counter;
+        for (Streamable event : b.counter.snapshot()) {
+            restored.update(event);
+        }
+        Assert.assertEquals(-1, restored.value());
+    }
+
+    @Test
+    public void joinKeepsMaxOfVectors() throws Exception {
+        a.counter.add(10);
+        a.counter.add(-4);
+        PNCounter.DownstreamAssign first = (PNCounter.DownstreamAssign) a.log.get(0);
+        PNCounter.DownstreamAssign second = (PNCounter.DownstreamAssign) a.log.get(1);
+
+        b.counter.update(second.join(first));
+        Assert.assertEquals(6, b.counter.value());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectMinValue() throws Exception {
+        a.counter.add(Long.MIN_VALUE);
+    }
+
+    @Test
+    public void rejectOverflow() throws Exception {
+        a.counter.add(Long.MAX_VALUE);
+        try {
+            a.counter.add(-1);
+            Assert.fail("expected overflow of replica vectors");
+        } catch (ArithmeticException expected) {
+        }
+        Assert.assertEquals(Long.MAX_VALUE, a.counter.value());
+        Assert.assertEquals(1, a.log.size());
+        Assert.assertTrue(((PNCounter.DownstreamAssign) a.log.get(0)).version() >= 0);
+    }
+}
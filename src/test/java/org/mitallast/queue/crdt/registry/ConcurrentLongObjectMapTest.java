@@ -0,0 +1,66 @@
+package org.mitallast.queue.crdt.registry;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+
+public class ConcurrentLongObjectMapTest extends BaseTest {
+
+    @Test
+    public void testPutIfAbsent() {
+        ConcurrentLongObjectMap<String> map = new ConcurrentLongObjectMap<>();
+        Assert.assertNull(map.get(0));
+        Assert.assertNull(map.putIfAbsent(0, "a"));
+        Assert.assertEquals("a", map.putIfAbsent(0, "b"));
+        Assert.assertEquals("a", map.get(0));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testRemove() {
+        ConcurrentLongObjectMap<String> map = new ConcurrentLongObjectMap<>();
+        map.putIfAbsent(1, "a");
+        Assert.assertEquals("a", map.remove(1));
+        Assert.assertNull(map.remove(1));
+        Assert.assertNull(map.get(1));
+        Assert.assertEquals(0, map.size());
+
+        Assert.assertNull(map.putIfAbsent(1, "b"));
+        Assert.assertEquals("b", map.get(1));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testResize() {
+        ConcurrentLongObjectMap<Long> map = new ConcurrentLongObjectMap<>();
+        for (long i = 0; i < 10000; i++) {
+            map.putIfAbsent(i, i);
+        }
+        for (long i = 0; i < 10000; i += 2) {
+            map.remove(i);
+        }
+        for (long i = 0; i < 10000; i++) {
+            Assert.assertEquals(i % 2 == 0 ? null : i, map.get(i));
+        }
+        Assert.assertEquals(5000, map.size());
+        long[] sum = new long[1];
+        map.forEachEntry((key, value) -> {
+            Assert.assertEquals(key, (long) value);
+            sum[0] += key;
+            return true;
+        });
+        Assert.assertEquals(25000000, sum[0]);
+    }
+
+    @Test
+    public void testConcurrentPutIfAbsent() throws Exception {
+        ConcurrentLongObjectMap<Long> map = new ConcurrentLongObjectMap<>();
+        executeConcurrent(() -> {
+            for (long i = 0; i < max(); i++) {
+                map.putIfAbsent(i, i);
+                Assert.assertEquals(i, (long) map.get(i));
+            }
+        });
+        Assert.assertEquals(max(), map.size());
+    }
+}
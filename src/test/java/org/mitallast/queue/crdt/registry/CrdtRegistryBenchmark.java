@@ -0,0 +1,69 @@
+package org.mitallast.queue.crdt.registry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.ConfigBuilder;
+import org.mitallast.queue.crdt.CrdtScheduler;
+import org.mitallast.queue.crdt.replication.Replicator;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+
+public class CrdtRegistryBenchmark extends BaseTest {
+    private CrdtRegistry registry;
+    private AtomicLong created;
+
+    @Override
+    protected int max() {
+        return 2000000;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new DefaultCrdtRegistry(
+            new ConfigBuilder().build(),
+            mock(CrdtScheduler.class),
+            0,
+            0,
+            mock(Replicator.class)
+        );
+        created = new AtomicLong();
+        for (long id = 0; id < 1000; id++) {
+            registry.createLWWRegister(created.getAndIncrement());
+        }
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        long start = System.currentTimeMillis();
+        executeConcurrent(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < max(); i++) {
+                registry.crdtOpt(random.nextLong(created.get()));
+            }
+        });
+        long end = System.currentTimeMillis();
+        printQps("registry lookup", total(), start, end);
+    }
+
+    @Test
+    public void testMixedCreateLookup() throws Exception {
+        long start = System.currentTimeMillis();
+        executeConcurrent(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < max(); i++) {
+                // one of 64 operations creates resource, as on routing update under read load
+                if ((i & 63) == 0) {
+                    registry.createLWWRegister(created.getAndIncrement());
+                } else {
+                    registry.crdtOpt(random.nextLong(created.get()));
+                }
+            }
+        });
+        long end = System.currentTimeMillis();
+        printQps("registry create/lookup", total(), start, end);
+    }
+}
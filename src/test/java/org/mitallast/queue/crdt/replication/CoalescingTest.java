@@ -0,0 +1,155 @@
+package org.mitallast.queue.crdt.replication;
+
+import javaslang.Tuple;
+import javaslang.Tuple2;
+import javaslang.collection.HashSet;
+import javaslang.collection.Set;
+import javaslang.collection.Vector;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.stream.StreamOutput;
+import org.mitallast.queue.common.stream.Streamable;
+import org.mitallast.queue.crdt.ClusterCrdtTest.TestLong;
+import org.mitallast.queue.crdt.commutative.CmRDT.DeltaUpdate;
+import org.mitallast.queue.crdt.commutative.CmRDT.OverwriteUpdate;
+import org.mitallast.queue.crdt.log.LogEntry;
+
+public class CoalescingTest extends BaseTest {
+
+    private static class Overwrite implements OverwriteUpdate {
+        private final long key;
+        private final long version;
+
+        private Overwrite(long key, long version) {
+            this.key = key;
+            this.version = version;
+        }
+
+        @Override
+        public long key() {
+            return key;
+        }
+
+        @Override
+        public long version() {
+            return version;
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+        }
+    }
+
+    private static class Delta implements DeltaUpdate {
+        private final Set<String> values;
+
+        private Delta(String... values) {
+            this(HashSet.of(values));
+        }
+
+        private Delta(Set<String> values) {
+            this.values = values;
+        }
+
+        @Override
+        public DeltaUpdate join(DeltaUpdate other) {
+            return new Delta(values.addAll(((Delta) other).values));
+        }
+
+        @Override
+        public void writeTo(StreamOutput stream) {
+        }
+    }
+
+    private static Tuple2<Long, Streamable> event(long id, Streamable event) {
+        return Tuple.of(id, event);
+    }
+
+    @Test
+    public void lastVersionWinsPerKey() throws Exception {
+        Overwrite newest = new Overwrite(1, 3);
+        Vector<Tuple2<Long, Streamable>> coalesced = Coalescing.events(Vector.of(
+            event(1, new Overwrite(1, 1)),
+            event(1, newest),
+            event(1, new Overwrite(1, 2))
+        ), true, false);
+        Assert.assertEquals(1, coalesced.size());
+        Assert.assertEquals(1L, (long) coalesced.head()._1);
+        Assert.assertSame(newest, coalesced.head()._2);
+    }
+
+    @Test
+    public void overwritesOfOtherKeysAndIdsAreKept() throws Exception {
+        Vector<Tuple2<Long, Streamable>> events = Vector.of(
+            event(1, new Overwrite(1, 1)),
+            event(2, new Overwrite(1, 1)),
+            event(1, new Overwrite(2, 1))
+        );
+        Assert.assertEquals(events, Coalescing.events(events, true, false));
+    }
+
+    @Test
+    public void deltasAreJoinedPerId() throws Exception {
+        Vector<Tuple2<Long, Streamable>> coalesced = Coalescing.events(Vector.of(
+            event(1, new Delta("a")),
+            event(2, new Delta("x")),
+            event(1, new Delta("b")),
+            event(2, new Delta("y")),
+            event(2, new Delta("x"))
+        ), false, true);
+        Assert.assertEquals(Vector.of(1L, 2L), coalesced.map(Tuple2::_1));
+        Assert.assertEquals(HashSet.of("a", "b"), ((Delta) coalesced.get(0)._2).values);
+        Assert.assertEquals(HashSet.of("x", "y"), ((Delta) coalesced.get(1)._2).values);
+    }
+
+    @Test
+    public void coalescedTakesPositionOfLastMember() throws Exception {
+        TestLong first = new TestLong(1);
+        TestLong second = new TestLong(2);
+        TestLong third = new TestLong(3);
+        Overwrite newest = new Overwrite(1, 2);
+        Vector<Tuple2<Long, Streamable>> coalesced = Coalescing.events(Vector.of(
+            event(1, new Overwrite(1, 1)),
+            event(9, first),
+            event(2, new Delta("a")),
+            event(9, second),
+            event(1, newest),
+            event(2, new Delta("b")),
+            event(9, third)
+        ), true, true);
+        Assert.assertEquals(Vector.of(9L, 9L, 1L, 2L, 9L), coalesced.map(Tuple2::_1));
+        Assert.assertSame(first, coalesced.get(0)._2);
+        Assert.assertSame(second, coalesced.get(1)._2);
+        Assert.assertSame(newest, coalesced.get(2)._2);
+        Assert.assertEquals(HashSet.of("a", "b"), ((Delta) coalesced.get(3)._2).values);
+        Assert.assertSame(third, coalesced.get(4)._2);
+    }
+
+    @Test
+    public void disabledModesKeepEvents() throws Exception {
+        Vector<Tuple2<Long, Streamable>> events = Vector.of(
+            event(1, new Overwrite(1, 1)),
+            event(1, new Overwrite(1, 2)),
+            event(2, new Delta("a")),
+            event(2, new Delta("b"))
+        );
+        Assert.assertEquals(events, Coalescing.events(events, false, false));
+        Assert.assertEquals(3, Coalescing.events(events, true, false).size());
+        Assert.assertEquals(3, Coalescing.events(events, false, true).size());
+    }
+
+    @Test
+    public void entriesKeepIndexOfLastMember() throws Exception {
+        Overwrite newest = new Overwrite(1, 2);
+        TestLong other = new TestLong(1);
+        Vector<LogEntry> coalesced = Coalescing.entries(Vector.of(
+            new LogEntry(1, 1, new Overwrite(1, 1)),
+            new LogEntry(2, 1, newest),
+            new LogEntry(3, 9, other)
+        ), true, false);
+        Assert.assertEquals(Vector.of(2L, 3L), coalesced.map(LogEntry::index));
+        Assert.assertSame(newest, coalesced.get(0).event());
+        Assert.assertSame(other, coalesced.get(1).event());
+    }
+}
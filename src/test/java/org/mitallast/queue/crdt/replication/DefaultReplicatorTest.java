@@ -0,0 +1,293 @@
+package org.mitallast.queue.crdt.replication;
+
+import javaslang.collection.Vector;
+import javaslang.concurrent.Future;
+import javaslang.control.Option;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.ConfigBuilder;
+import org.mitallast.queue.common.events.EventBus;
+import org.mitallast.queue.common.file.FileException;
+import org.mitallast.queue.crdt.ClusterCrdtTest.TestLong;
+import org.mitallast.queue.crdt.CrdtScheduler;
+import org.mitallast.queue.crdt.bucket.Bucket;
+import org.mitallast.queue.crdt.log.LogEntry;
+import org.mitallast.queue.crdt.log.ReplicatedLog;
+import org.mitallast.queue.crdt.protocol.AppendEntries;
+import org.mitallast.queue.crdt.protocol.AppendRejected;
+import org.mitallast.queue.crdt.protocol.AppendSuccessful;
+import org.mitallast.queue.crdt.protocol.InstallSnapshot;
+import org.mitallast.queue.crdt.registry.RegistrySnapshot;
+import org.mitallast.queue.crdt.routing.RoutingReplica;
+import org.mitallast.queue.crdt.routing.RoutingTable;
+import org.mitallast.queue.crdt.routing.fsm.RoutingTableFSM;
+import org.mitallast.queue.transport.DiscoveryNode;
+import org.mitallast.queue.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class DefaultReplicatorTest extends BaseTest {
+    private CrdtScheduler scheduler;
+    private ReplicatedLog log;
+    private Bucket bucket;
+    private TransportService transportService;
+    private DefaultReplicator replicator;
+    private final List<AppendEntries> sent = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> limits = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new CrdtScheduler(new ConfigBuilder().build());
+        log = mock(ReplicatedLog.class);
+        when(log.append(any())).thenReturn(Vector.empty());
+        when(log.entriesFrom(anyLong(), anyInt(), anyLong())).thenReturn(Vector.empty());
+        bucket = mock(Bucket.class);
+        when(bucket.log()).thenReturn(log);
+        when(bucket.lastSnapshot()).thenReturn(Option.none());
+        transportService = mock(TransportService.class);
+        doAnswer(invocation -> {
+            if (invocation.getArgument(1) instanceof AppendEntries) {
+                sent.add(invocation.getArgument(1));
+            }
+            return null;
+        }).when(transportService).send(any(), any());
+    }
+
+    private static ConfigBuilder config() {
+        return new ConfigBuilder().with("crdt.timeout", "100ms");
+    }
+
+    private void start(RoutingTable routingTable) {
+        start(routingTable, config());
+    }
+
+    private void start(RoutingTable routingTable, ConfigBuilder config) {
+        RoutingTableFSM fsm = mock(RoutingTableFSM.class);
+        when(fsm.get()).thenReturn(routingTable);
+        replicator = new DefaultReplicator(
+            config.build(),
+            fsm,
+            mock(EventBus.class),
+            transportService,
+            scheduler,
+            bucket
+        );
+        replicator.start();
+    }
+
+    private static RoutingTable withReplica() {
+        return new RoutingTable(2, 1).withReplica(0, new RoutingReplica(1, new DiscoveryNode("127.0.0.1", 8901)));
+    }
+
+    /**
+     * Log up to last index, each read returns single entry after prev and records bytes limit
+     */
+    private void logOf(long last) {
+        when(log.index()).thenReturn(last);
+        when(log.entriesFrom(anyLong(), anyInt(), anyLong())).then(invocation -> {
+            long prev = invocation.getArgument(0);
+            limits.add(invocation.getArgument(2));
+            return prev < last ? Vector.of(new LogEntry(prev + 1, 0, new TestLong(prev + 1))) : Vector.empty();
+        });
+    }
+
+    private AppendEntries awaitSent(int count) throws Exception {
+        for (int i = 0; i < 1000 && sent.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(sent.size() >= count);
+        return sent.get(count - 1);
+    }
+
+    private ReplicatorMetrics.ReplicaMetrics replicaMetrics() {
+        return replicator.metrics().replicas().head();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (replicator != null) {
+            replicator.stop();
+        }
+        scheduler.close();
+    }
+
+    @Test
+    public void testWaitSnapshotOfTruncatedLog() throws Exception {
+        // log prefix is truncated, snapshot is not taken yet
+        when(log.startIndex()).thenReturn(100L);
+        RegistrySnapshot snapshot = new RegistrySnapshot(100, Vector.empty());
+        when(bucket.snapshot()).then(invocation -> {
+            when(bucket.lastSnapshot()).thenReturn(Option.some(snapshot));
+            return snapshot;
+        });
+        start(new RoutingTable(2, 1).withReplica(0, new RoutingReplica(1, new DiscoveryNode("127.0.0.1", 8901))));
+
+        verify(transportService, timeout(10000)).send(any(), isA(InstallSnapshot.class));
+        verify(log, never()).entriesFrom(eq(0L), anyInt(), anyLong());
+    }
+
+    @Test
+    public void testAppendCompletedAfterLogAppend() throws Exception {
+        start(new RoutingTable(1, 1));
+        CountDownLatch appending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(log.append(any())).then(invocation -> {
+            appending.countDown();
+            release.await();
+            return Vector.empty();
+        });
+        Future<Void> future = replicator.append(0, new TestLong(1));
+        Assert.assertTrue(appending.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(future.isCompleted());
+        release.countDown();
+        Assert.assertTrue(future.await().isSuccess());
+    }
+
+    @Test
+    public void testAppendNotBlockedByFullQueue() throws Exception {
+        start(new RoutingTable(1, 1), config().with("crdt.replication.queue-size", 4));
+        CountDownLatch release = new CountDownLatch(1);
+        when(log.append(any())).then(invocation -> {
+            release.await();
+            return Vector.empty();
+        });
+        Vector<Future<Void>> futures = Vector.empty();
+        for (int i = 0; i < 16; i++) {
+            futures = futures.append(replicator.append(0, new TestLong(i)));
+        }
+        Assert.assertEquals(ReplicatorState.UNAVAILABLE, replicator.state());
+        Assert.assertTrue(futures.forAll(future -> !future.isCompleted()));
+        release.countDown();
+        Assert.assertTrue(futures.forAll(future -> future.await().isSuccess()));
+        Assert.assertEquals(ReplicatorState.AVAILABLE, replicator.state());
+    }
+
+    @Test
+    public void testThrottledAtQueueHighWater() throws Exception {
+        start(new RoutingTable(1, 1), config().with("crdt.replication.queue-size", 8));
+        CountDownLatch release = new CountDownLatch(1);
+        when(log.append(any())).then(invocation -> {
+            release.await();
+            return Vector.empty();
+        });
+        for (int i = 0; i < 3; i++) {
+            replicator.append(0, new TestLong(i));
+        }
+        Assert.assertEquals(ReplicatorState.AVAILABLE, replicator.state());
+        replicator.append(0, new TestLong(3));
+        Assert.assertEquals(ReplicatorState.THROTTLED, replicator.state());
+        for (int i = 4; i < 8; i++) {
+            replicator.append(0, new TestLong(i));
+        }
+        Assert.assertEquals(ReplicatorState.UNAVAILABLE, replicator.state());
+        release.countDown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLagThrottleLessThanLimit() throws Exception {
+        start(new RoutingTable(1, 1), config()
+            .with("crdt.replication.lag.throttle", 1024)
+            .with("crdt.replication.lag.limit", 1024));
+    }
+
+    @Test
+    public void testAppendFailedOnLogError() throws Exception {
+        start(new RoutingTable(1, 1));
+        when(log.append(any())).thenThrow(new FileException("disk full"));
+        Future<Void> future = replicator.append(0, new TestLong(1)).await();
+        Assert.assertTrue(future.isFailure());
+        Assert.assertTrue(future.getCause().get() instanceof FileException);
+    }
+
+    @Test
+    public void testAppendFailedAfterStop() throws Exception {
+        start(new RoutingTable(1, 1));
+        replicator.stop();
+        Future<Void> future = replicator.append(0, new TestLong(1)).await();
+        Assert.assertTrue(future.isFailure());
+        Assert.assertTrue(future.getCause().get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testResendFromAcknowledgedOnReject() throws Exception {
+        logOf(100);
+        start(withReplica(), config()
+            .with("crdt.timeout", "10s")
+            .with("crdt.replication.window", 4));
+        replicator.successful(new AppendSuccessful(0, 1, 1, 0));
+        Assert.assertEquals(Vector.of(0L, 1L, 2L, 3L), Vector.ofAll(sent.subList(1, 5)).map(AppendEntries::prevIndex));
+
+        replicator.successful(new AppendSuccessful(0, 1, 2, 1));
+        Assert.assertEquals(6, sent.size());
+        Assert.assertEquals(4, sent.get(5).prevIndex());
+
+        // in-flight requests are dropped, window continues from acknowledged index
+        replicator.rejected(new AppendRejected(0, 1, 4, 1));
+        Assert.assertEquals(10, sent.size());
+        Assert.assertEquals(Vector.of(1L, 2L, 3L, 4L), Vector.ofAll(sent.subList(6, 10)).map(AppendEntries::prevIndex));
+        Assert.assertEquals(Vector.of(7L, 8L, 9L, 10L), Vector.ofAll(sent.subList(6, 10)).map(AppendEntries::seq));
+        Assert.assertEquals(1, replicaMetrics().acknowledged());
+        Assert.assertEquals(5, replicaMetrics().sent());
+
+        // response to request sent before reset is stale
+        replicator.rejected(new AppendRejected(0, 1, 5, 1));
+        Assert.assertEquals(10, sent.size());
+        Assert.assertEquals(1, replicator.metrics().rejected());
+    }
+
+    @Test
+    public void testResendFromAcknowledgedOnTimeout() throws Exception {
+        logOf(100);
+        start(withReplica(), config()
+            .with("crdt.timeout", "300ms")
+            .with("crdt.replication.window", 1));
+        replicator.successful(new AppendSuccessful(0, 1, 1, 0));
+        replicator.successful(new AppendSuccessful(0, 1, 2, 1));
+        Assert.assertEquals(2, awaitSent(3).entries().head().index());
+
+        AppendEntries resent = awaitSent(4);
+        Assert.assertEquals(4, resent.seq());
+        Assert.assertEquals(1, resent.prevIndex());
+        Assert.assertEquals(2, resent.entries().head().index());
+        Assert.assertTrue(replicator.metrics().timeouts() >= 1);
+        Assert.assertEquals(1, replicaMetrics().acknowledged());
+    }
+
+    @Test
+    public void testBatchBytesAdaptedByLatency() throws Exception {
+        logOf(1000);
+        start(withReplica(), config()
+            .with("crdt.timeout", "10s")
+            .with("crdt.replication.window", 1)
+            .with("crdt.replication.min-bytes", 1024)
+            .with("crdt.replication.max-bytes", 4096)
+            .with("crdt.replication.target-latency", "200ms"));
+        // initial request is not full batch, latency of it does not change batch size
+        replicator.successful(new AppendSuccessful(0, 1, 1, 0));
+        Assert.assertEquals(1024, replicaMetrics().batchBytes());
+
+        // batch is doubled up to max-bytes while replica responds within target latency
+        for (long seq = 2; seq <= 4; seq++) {
+            replicator.successful(new AppendSuccessful(0, 1, seq, seq - 1));
+        }
+        Assert.assertEquals(4096, replicaMetrics().batchBytes());
+
+        // and halved down to min-bytes while replica is slow
+        for (long seq = 5; seq <= 7; seq++) {
+            Thread.sleep(300);
+            replicator.successful(new AppendSuccessful(0, 1, seq, seq - 1));
+        }
+        Assert.assertEquals(1024, replicaMetrics().batchBytes());
+        Assert.assertEquals(Vector.of(1024L, 2048L, 4096L, 4096L, 2048L, 1024L, 1024L), Vector.ofAll(limits));
+    }
+}
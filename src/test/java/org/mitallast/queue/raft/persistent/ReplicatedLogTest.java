@@ -9,6 +9,7 @@ import javaslang.control.Option;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mitallast.queue.common.BaseTest;
+import org.mitallast.queue.common.file.FileException;
 import org.mitallast.queue.common.file.FileService;
 import org.mitallast.queue.common.stream.*;
 import org.mitallast.queue.raft.cluster.JointConsensusClusterConfiguration;
@@ -17,6 +18,8 @@ import org.mitallast.queue.raft.protocol.LogEntry;
 import org.mitallast.queue.raft.protocol.RaftSnapshot;
 import org.mitallast.queue.raft.protocol.RaftSnapshotMetadata;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.file.Path;
 import java.util.stream.Collectors;
 
@@ -97,6 +100,53 @@ public class ReplicatedLogTest extends BaseTest {
         Assert.assertTrue(files.contains("2.log"));
     }
 
+    @Test
+    public void testReopenTruncateTornTail() throws Exception {
+        ReplicatedLog origin = log().append(entry1).append(entry2).append(entry3).commit(3);
+        origin.close();
+
+        File segmentFile = fileService().resource("raft", "1.log");
+        long length = segmentFile.length();
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.setLength(length - 3);
+        }
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(Vector.of(entry1, entry2), reopened.entries());
+        reopened.append(rewriteEntry3).close();
+
+        Assert.assertEquals(Vector.of(entry1, entry2, rewriteEntry3), log().entries());
+    }
+
+    @Test
+    public void testReopenMigrateUnframed() throws Exception {
+        File segmentFile = fileService().resource("raft", "1.log");
+        try (StreamOutput output = streamService().output(segmentFile)) {
+            output.writeStreamable(entry1);
+            output.writeStreamable(entry2);
+        }
+
+        ReplicatedLog reopened = log();
+        Assert.assertEquals(Vector.of(entry1, entry2), reopened.entries());
+        reopened.append(entry3).close();
+
+        Assert.assertEquals(Vector.of(entry1, entry2, entry3), log().entries());
+    }
+
+    @Test
+    public void testReopenRefuseUnknownFormat() throws Exception {
+        File segmentFile = fileService().resource("raft", "1.log");
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.writeLong(-1);
+        }
+        try {
+            log();
+            Assert.fail("unknown format should not be opened");
+        } catch (FileException expected) {
+            Assert.assertEquals(8, segmentFile.length());
+        }
+    }
+
     @Test
     public void testContainsEntry() throws Exception {
         Assert.assertTrue(log().append(entry1).contains(entry1));